@@ -0,0 +1,176 @@
+package com.chrome.codereview;
+
+import android.text.TextUtils;
+import android.util.SparseIntArray;
+
+import com.chrome.codereview.model.Comment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Comments of a file by the line and the side they are on. Every comment has a slot, comments of one line are chained
+ * through their slots in the order they were added, and the chains are keyed by a packed int, so lookups don't box.
+ * Slots of removed comments are left empty, so slots of other comments never change.
+ */
+public class CommentIndex {
+
+    public static final int NO_SLOT = -1;
+
+    private final List<Comment> comments;
+    private int[] next;
+    private final SparseIntArray heads = new SparseIntArray();
+    private int removed;
+
+    public CommentIndex(List<Comment> comments) {
+        this.comments = new ArrayList<Comment>(comments.size());
+        next = new int[Math.max(16, comments.size())];
+        for (Comment comment : comments) {
+            add(comment);
+        }
+    }
+
+    public static int key(int line, boolean left) {
+        return line << 1 | (left ? 1 : 0);
+    }
+
+    /**
+     * Returns the slot of the first comment at the line, or {@link #NO_SLOT}.
+     */
+    public int first(int line, boolean left) {
+        return heads.get(key(line, left), NO_SLOT);
+    }
+
+    /**
+     * Returns the slot of the comment after the given one at the same line, or {@link #NO_SLOT}.
+     */
+    public int next(int slot) {
+        return next[slot];
+    }
+
+    /**
+     * Returns the comment of the slot, null if it was removed.
+     */
+    public Comment get(int slot) {
+        return comments.get(slot);
+    }
+
+    public int slotCount() {
+        return comments.size();
+    }
+
+    public int commentCount() {
+        return comments.size() - removed;
+    }
+
+    /**
+     * Returns the slot of the comment with the given message id, or {@link #NO_SLOT}. New drafts have no message id yet.
+     */
+    public int find(String messageId) {
+        if (TextUtils.isEmpty(messageId)) {
+            return NO_SLOT;
+        }
+        for (int slot = 0; slot < comments.size(); slot++) {
+            Comment comment = comments.get(slot);
+            if (comment != null && messageId.equals(comment.messageId())) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns the slot holding this very comment object, or {@link #NO_SLOT}.
+     */
+    public int indexOf(Comment comment) {
+        for (int slot = 0; slot < comments.size(); slot++) {
+            if (comments.get(slot) == comment) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns the slot of the draft at the line, or {@link #NO_SLOT}. The server keeps at most one draft per line and side.
+     */
+    public int findDraft(int line, boolean left) {
+        for (int slot = first(line, left); slot != NO_SLOT; slot = next[slot]) {
+            if (comments.get(slot).isDraft()) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns the comments in the order of their slots.
+     */
+    public List<Comment> toList() {
+        List<Comment> list = new ArrayList<Comment>(commentCount());
+        for (Comment comment : comments) {
+            if (comment != null) {
+                list.add(comment);
+            }
+        }
+        return list;
+    }
+
+    public int add(Comment comment) {
+        int slot = comments.size();
+        comments.add(comment);
+        if (slot == next.length) {
+            next = Arrays.copyOf(next, slot * 2);
+        }
+        next[slot] = NO_SLOT;
+        int key = key(comment.line(), comment.left());
+        int last = heads.get(key, NO_SLOT);
+        if (last == NO_SLOT) {
+            heads.put(key, slot);
+            return slot;
+        }
+        while (next[last] != NO_SLOT) {
+            last = next[last];
+        }
+        next[last] = slot;
+        return slot;
+    }
+
+    /**
+     * Replaces the comment of the slot. A comment that stays at the same line keeps its slot and its place among
+     * the comments of the line, otherwise it's moved to a new slot, which is returned.
+     */
+    public int update(int slot, Comment comment) {
+        Comment old = comments.get(slot);
+        if (old.line() == comment.line() && old.left() == comment.left()) {
+            comments.set(slot, comment);
+            return slot;
+        }
+        remove(slot);
+        return add(comment);
+    }
+
+    public void remove(int slot) {
+        Comment comment = comments.get(slot);
+        int key = key(comment.line(), comment.left());
+        int head = heads.get(key, NO_SLOT);
+        if (head == slot) {
+            if (next[slot] == NO_SLOT) {
+                heads.delete(key);
+            } else {
+                heads.put(key, next[slot]);
+            }
+        } else {
+            int previous = head;
+            while (next[previous] != slot) {
+                previous = next[previous];
+            }
+            next[previous] = next[slot];
+        }
+        comments.set(slot, null);
+        next[slot] = NO_SLOT;
+        removed++;
+    }
+
+}
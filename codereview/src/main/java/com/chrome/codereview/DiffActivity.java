@@ -1,16 +1,33 @@
 package com.chrome.codereview;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Fragment;
+import android.app.LoaderManager;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v13.app.FragmentStatePagerAdapter;
+import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
+import android.text.TextUtils;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.Window;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
 
 import com.chrome.codereview.model.PatchSet;
 import com.chrome.codereview.model.PatchSetFile;
+import com.chrome.codereview.utils.CachedLoader;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by sergeyv on 29/4/14.
@@ -20,15 +37,125 @@ public class DiffActivity extends Activity implements ViewPager.OnPageChangeList
     private static final String PATCHSET_EXTRA = "PATCHSET_EXTRA";
     private static final String ISSUE_ID_EXTRA = "ISSUE_ID_EXTRA";
     private static final String PATCH_ID_EXTRA = "PATCH_ID_EXTRA";
+    private static final String PATCH_SET_IDS_EXTRA = "PATCH_SET_IDS_EXTRA";
+    private static final String BASE_PATCH_SET_ID_KEY = "BASE_PATCH_SET_ID_KEY";
+    private static final String KEY_QUERY = "query";
+    private static final int SEARCH_LOADER_ID = 0;
+
+    /**
+     * Delivers the results found so far while the files are searched, then all of them.
+     */
+    private static class SearchLoader extends CachedLoader<List<PatchSetSearch.Result>> {
+
+        private final PatchSetSearch search;
+        private final String query;
+        private final int firstPosition;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private volatile boolean loaded;
+        // Changed by every cancellation, a search stops once its load is canceled.
+        private volatile int loadCount;
+
+        public SearchLoader(Context context, PatchSetSearch search, String query, int firstPosition) {
+            super(context);
+            this.search = search;
+            this.query = query;
+            this.firstPosition = firstPosition;
+        }
+
+        @Override
+        public List<PatchSetSearch.Result> loadInBackground() {
+            loaded = false;
+            final int load = loadCount;
+            try {
+                List<PatchSetSearch.Result> results = search.find(serverCaller(), query, firstPosition, new PatchSetSearch.Listener() {
+                    @Override
+                    public void onResultsFound(List<PatchSetSearch.Result> results) {
+                        deliverFoundResults(results);
+                    }
+
+                    @Override
+                    public boolean isCanceled() {
+                        return load != loadCount;
+                    }
+                });
+                // Results of a stopped search aren't kept as if they were all, the search is run again instead.
+                return load != loadCount ? null : results;
+            } finally {
+                loaded = true;
+            }
+        }
+
+        @Override
+        public boolean cancelLoad() {
+            loadCount++;
+            return super.cancelLoad();
+        }
+
+        private void deliverFoundResults(final List<PatchSetSearch.Result> results) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!loaded && isStarted()) {
+                        deliverPartialResult(results);
+                    }
+                }
+            });
+        }
+
+        public String query() {
+            return query;
+        }
+
+        /**
+         * False while partial results are delivered.
+         */
+        public boolean isFinished() {
+            return loaded;
+        }
+    }
 
     private PatchSet patchSet;
     private int issueId;
+    private ArrayList<Integer> patchSetIds;
+    private int basePatchSetId = DiffFragment.NO_PATCH_SET;
+    private ViewPager pager;
+    // Kept between searches, so the diffs searched once are searched again at once.
+    private PatchSetSearch search;
+    private AlertDialog searchDialog;
+    private ArrayAdapter<String> searchResultsAdapter;
+    private final List<PatchSetSearch.Result> searchResults = new ArrayList<PatchSetSearch.Result>();
+    private LoaderManager.LoaderCallbacks<List<PatchSetSearch.Result>> searchLoaderCallback = new LoaderManager.LoaderCallbacks<List<PatchSetSearch.Result>>() {
+
+        @Override
+        public Loader<List<PatchSetSearch.Result>> onCreateLoader(int id, Bundle args) {
+            if (search == null || search.basePatchSetId() != basePatchSetId) {
+                search = new PatchSetSearch(issueId, patchSet, basePatchSetId);
+            }
+            return new SearchLoader(DiffActivity.this, search, args.getString(KEY_QUERY), pager.getCurrentItem());
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<PatchSetSearch.Result>> loader, List<PatchSetSearch.Result> data) {
+            if (data == null || searchDialog == null || !searchDialog.isShowing()) {
+                return;
+            }
+            SearchLoader searchLoader = (SearchLoader) loader;
+            showSearchResults(data);
+            if (searchLoader.isFinished()) {
+                searchDialog.setTitle(getString(R.string.find_results, data.size(), searchLoader.query()));
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<PatchSetSearch.Result>> loader) {
+        }
+    };
     private FragmentStatePagerAdapter fragmentStatePagerAdapter = new FragmentStatePagerAdapter(getFragmentManager()) {
 
         @Override
         public Fragment getItem(int position) {
             DiffFragment fragment = new DiffFragment();
-            fragment.initialize(issueId, patchSet, position);
+            fragment.initialize(issueId, patchSet, position, basePatchSetId);
             return fragment;
         }
 
@@ -36,6 +163,12 @@ public class DiffActivity extends Activity implements ViewPager.OnPageChangeList
         public int getCount() {
             return patchSet.files().size();
         }
+
+        @Override
+        public int getItemPosition(Object object) {
+            // Pages are recreated when the comparison mode changes.
+            return PagerAdapter.POSITION_NONE;
+        }
     };
 
     @Override
@@ -44,8 +177,13 @@ public class DiffActivity extends Activity implements ViewPager.OnPageChangeList
         requestWindowFeature(Window.FEATURE_PROGRESS);
         patchSet = getIntent().getParcelableExtra(PATCHSET_EXTRA);
         issueId = getIntent().getIntExtra(ISSUE_ID_EXTRA, -1);
+        patchSetIds = getIntent().getIntegerArrayListExtra(PATCH_SET_IDS_EXTRA);
+        if (savedInstanceState != null) {
+            basePatchSetId = savedInstanceState.getInt(BASE_PATCH_SET_ID_KEY, DiffFragment.NO_PATCH_SET);
+        }
+        updateSubtitle();
         setContentView(R.layout.activity_phone_diff);
-        ViewPager pager = (ViewPager) findViewById(R.id.pager);
+        pager = (ViewPager) findViewById(R.id.pager);
         pager.setAdapter(fragmentStatePagerAdapter);
         pager.setOnPageChangeListener(this);
         onPageSelected(0);
@@ -60,14 +198,142 @@ public class DiffActivity extends Activity implements ViewPager.OnPageChangeList
         }
     }
 
-    public static void startDiffActivity(Fragment fragment, int requestCode, int issueId, PatchSet patchSet, int patchId) {
+    public static void startDiffActivity(Fragment fragment, int requestCode, int issueId, PatchSet patchSet, int patchId, ArrayList<Integer> patchSetIds) {
         Intent intent = new Intent(fragment.getActivity(), DiffActivity.class);
         intent.putExtra(PATCHSET_EXTRA, patchSet);
         intent.putExtra(ISSUE_ID_EXTRA, issueId);
         intent.putExtra(PATCH_ID_EXTRA, patchId);
+        intent.putIntegerArrayListExtra(PATCH_SET_IDS_EXTRA, patchSetIds);
         fragment.getActivity().startActivityFromFragment(fragment, intent, requestCode);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(BASE_PATCH_SET_ID_KEY, basePatchSetId);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.diff_activity, menu);
+        menu.findItem(R.id.action_compare_patch_sets).setVisible(patchSetIds != null && patchSetIds.size() > 1);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_compare_patch_sets) {
+            showComparePatchSetsDialog();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_find_in_patch_set) {
+            showFindDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showComparePatchSetsDialog() {
+        final ArrayList<Integer> bases = new ArrayList<Integer>();
+        ArrayList<String> titles = new ArrayList<String>();
+        bases.add(DiffFragment.NO_PATCH_SET);
+        titles.add(getString(R.string.compare_with_base));
+        for (int id : patchSetIds) {
+            if (id != patchSet.id()) {
+                bases.add(id);
+                titles.add(getString(R.string.compare_with_patch_set, id));
+            }
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.compare_patch_sets);
+        builder.setSingleChoiceItems(titles.toArray(new String[titles.size()]), bases.indexOf(basePatchSetId), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+                if (bases.get(which) == basePatchSetId) {
+                    return;
+                }
+                basePatchSetId = bases.get(which);
+                updateSubtitle();
+                fragmentStatePagerAdapter.notifyDataSetChanged();
+            }
+        });
+        builder.create().show();
+    }
+
+    private void showFindDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.find_in_patch_set);
+        final EditText editText = new EditText(this);
+        editText.setSingleLine();
+        builder.setView(editText);
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                String query = editText.getText().toString();
+                if (!TextUtils.isEmpty(query)) {
+                    find(query);
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Lists the results as they are found, picking one shows its line.
+     */
+    private void find(String query) {
+        searchResults.clear();
+        searchResultsAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getString(R.string.find_searching, query));
+        builder.setAdapter(searchResultsAdapter, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                showSearchResult(searchResults.get(which));
+            }
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        searchDialog = builder.create();
+        searchDialog.show();
+        Bundle args = new Bundle();
+        args.putString(KEY_QUERY, query);
+        // A running loader isn't canceled by a restart on every API level, and the new one would wait for it to finish.
+        Loader<List<PatchSetSearch.Result>> previous = getLoaderManager().getLoader(SEARCH_LOADER_ID);
+        if (previous != null) {
+            ((SearchLoader) previous).cancelLoad();
+        }
+        getLoaderManager().restartLoader(SEARCH_LOADER_ID, args, searchLoaderCallback);
+    }
+
+    private void showSearchResults(List<PatchSetSearch.Result> results) {
+        searchResults.clear();
+        searchResults.addAll(results);
+        searchResultsAdapter.setNotifyOnChange(false);
+        searchResultsAdapter.clear();
+        for (PatchSetSearch.Result result : results) {
+            String fileName = Uri.parse(result.path()).getLastPathSegment();
+            searchResultsAdapter.add(getString(R.string.find_result, fileName, result.lineNumber(), result.text()));
+        }
+        searchResultsAdapter.notifyDataSetChanged();
+    }
+
+    private void showSearchResult(PatchSetSearch.Result result) {
+        pager.setCurrentItem(result.filePosition());
+        // The pager returns the page it already has, or creates the page that is going to be shown.
+        DiffFragment fragment = (DiffFragment) fragmentStatePagerAdapter.instantiateItem(pager, result.filePosition());
+        fragment.showLine(result.lineNumber(), result.left());
+    }
+
+    private void updateSubtitle() {
+        if (basePatchSetId == DiffFragment.NO_PATCH_SET) {
+            getActionBar().setSubtitle(null);
+        } else {
+            getActionBar().setSubtitle(getString(R.string.interdiff_subtitle, basePatchSetId, patchSet.id()));
+        }
+    }
+
     @Override
     public void onPageScrolled(int i, float v, int i2) {
 
@@ -1,20 +1,22 @@
 package com.chrome.codereview;
 
 import android.content.Context;
-import android.util.Pair;
+import android.content.res.Resources;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ImageButton;
+import android.widget.TextView;
 
 import com.chrome.codereview.model.Comment;
 import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.LineSpans;
+import com.chrome.codereview.model.SyntaxHighlighter;
 import com.chrome.codereview.utils.DateUtils;
 import com.chrome.codereview.utils.ViewUtils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -35,38 +37,201 @@ public abstract class DiffAdapter extends BaseAdapter implements AdapterView.OnI
         void writeComment(int line, boolean left);
     }
 
-    protected final List<FileDiff.DiffLine> diffLines;
-    protected final List<Object> linesWithComments = new ArrayList<Object>();
+    public interface SkippedLinesListener {
+
+        /**
+         * Called when a row of skipped lines is tapped.
+         */
+        void showSkippedLines(int row);
+    }
+
+    protected FileDiff fileDiff;
+    protected DiffRows rows;
     protected final LayoutInflater inflater;
     protected final Context context;
     protected CommentActionListener commentActionListener;
+    protected SkippedLinesListener skippedLinesListener;
+    private final int removedWordColor;
+    private final int addedWordColor;
+    private final int[] syntaxColors = new int[SyntaxHighlighter.KIND_COUNT];
+    // Lines highlighted so far, until the diff keeps its complete highlighting.
+    private LineSpans partialSyntaxSpans;
+    // Null when lines are shown in text views.
+    protected final DiffLineView.Style lineStyle;
 
-    public DiffAdapter(Context context, FileDiff fileDiff, List<Comment> comments) {
+    public DiffAdapter(Context context, DiffRows rows) {
         this.context = context;
+        Resources resources = context.getResources();
+        removedWordColor = resources.getColor(R.color.diff_remove_word);
+        addedWordColor = resources.getColor(R.color.diff_add_word);
+        syntaxColors[SyntaxHighlighter.KIND_KEYWORD] = resources.getColor(R.color.syntax_keyword);
+        syntaxColors[SyntaxHighlighter.KIND_STRING] = resources.getColor(R.color.syntax_string);
+        syntaxColors[SyntaxHighlighter.KIND_COMMENT] = resources.getColor(R.color.syntax_comment);
+        syntaxColors[SyntaxHighlighter.KIND_NUMBER] = resources.getColor(R.color.syntax_number);
+        syntaxColors[SyntaxHighlighter.KIND_PREPROCESSOR] = resources.getColor(R.color.syntax_preprocessor);
+        lineStyle = resources.getBoolean(R.bool.draw_diff_lines) ? new DiffLineView.Style(context, syntaxColors) : null;
         inflater = LayoutInflater.from(context);
-        diffLines = fileDiff.content();
+        this.fileDiff = rows.fileDiff();
+        this.rows = rows;
+    }
+
+    /**
+     * Replaces the rows, e.g. when more of a partially downloaded diff arrives or comments are reloaded.
+     */
+    public void setRows(DiffRows rows) {
+        if (rows.fileDiff() != fileDiff) {
+            partialSyntaxSpans = null;
+        }
+        fileDiff = rows.fileDiff();
+        this.rows = rows;
+        notifyDataSetChanged();
+    }
+
+    public FileDiff fileDiff() {
+        return fileDiff;
+    }
+
+    public DiffRows rows() {
+        return rows;
+    }
+
+    /**
+     * Splices the rows of the comments that were added, changed or removed since the rows were laid out,
+     * comments are matched by their message ids. Returns false without changing anything if more than
+     * maxChanges comments changed, in which case laying out all the rows again is cheaper.
+     */
+    public boolean updateComments(List<Comment> comments, int maxChanges) {
+        CommentIndex index = rows.comments();
+        if (countChanges(index, comments) > maxChanges) {
+            return false;
+        }
+        int slotCount = index.slotCount();
+        boolean[] kept = new boolean[slotCount];
+        for (Comment comment : comments) {
+            int slot = index.find(comment.messageId());
+            if (slot == CommentIndex.NO_SLOT) {
+                rows.insertComment(comment);
+                continue;
+            }
+            kept[slot] = true;
+            if (isChanged(index.get(slot), comment)) {
+                rows.updateComment(slot, comment);
+            }
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!kept[slot] && index.get(slot) != null) {
+                rows.removeComment(slot);
+            }
+        }
+        notifyDataSetChanged();
+        return true;
+    }
+
+    public int insertComment(Comment comment) {
+        int slot = rows.insertComment(comment);
+        notifyDataSetChanged();
+        return slot;
+    }
+
+    public int updateComment(int slot, Comment comment) {
+        int newSlot = rows.updateComment(slot, comment);
+        notifyDataSetChanged();
+        return newSlot;
     }
 
-    protected abstract void rebuildWithComments(HashMap<Pair<Integer, Boolean>, List<Comment>> lineToComments);
+    public void removeComment(int slot) {
+        rows.removeComment(slot);
+        notifyDataSetChanged();
+    }
 
-    public void resetComments(List<Comment> comments) {
-        HashMap<Pair<Integer, Boolean>, List<Comment>> lineToComment = new HashMap<Pair<Integer, Boolean>, List<Comment>>();
+    private static int countChanges(CommentIndex index, List<Comment> comments) {
+        int changes = 0;
+        int kept = 0;
         for (Comment comment : comments) {
-            Pair<Integer, Boolean> key = new Pair<Integer, Boolean>(comment.line(), comment.left());
-            if (!lineToComment.containsKey(key)) {
-                lineToComment.put(key, new ArrayList<Comment>());
+            int slot = index.find(comment.messageId());
+            if (slot == CommentIndex.NO_SLOT) {
+                changes++;
+                continue;
+            }
+            kept++;
+            if (isChanged(index.get(slot), comment)) {
+                changes++;
             }
-            lineToComment.get(key).add(comment);
         }
-        linesWithComments.clear();
-        rebuildWithComments(lineToComment);
+        return changes + index.commentCount() - kept;
+    }
+
+    private static boolean isChanged(Comment old, Comment comment) {
+        return old.isDraft() != comment.isDraft() || old.line() != comment.line() || old.left() != comment.left()
+                || !TextUtils.equals(old.text(), comment.text());
+    }
+
+    public void expandSkippedLines(int row, FileDiff context) {
+        rows.expandSkippedLines(row, context);
         notifyDataSetChanged();
     }
 
+    /**
+     * Shows the lines highlighted so far while the diff is highlighted in the background.
+     */
+    public void setSyntaxSpans(LineSpans syntaxSpans) {
+        partialSyntaxSpans = syntaxSpans;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Shows the diff line with its changed words and its syntax highlighted.
+     */
+    protected void bindLineText(TextView textView, int diffLine, boolean withPrefix) {
+        LineSpans syntax = fileDiff.syntaxSpans();
+        int color = fileDiff.type(diffLine) == FileDiff.LineType.LEFT ? removedWordColor : addedWordColor;
+        LineTextBinder.of(textView).bind(fileDiff, diffLine, withPrefix, rows.intraLineChanges(), color,
+                syntax != null ? syntax : partialSyntaxSpans, syntaxColors);
+    }
+
+    /**
+     * Shows a line of expanded context, which is shown without highlighting.
+     */
+    protected void bindContextLineText(TextView textView, FileDiff context, int line, boolean withPrefix) {
+        LineTextBinder.of(textView).bind(context, line, withPrefix, null, 0, null, syntaxColors);
+    }
+
+    protected void bindContextLine(DiffLineView view, int column, FileDiff context, int line, int lineNumber) {
+        view.bindColumn(column, context, line, false, lineNumber, DiffLineView.BACKGROUND_DEFAULT, null, 0, null);
+    }
+
+    /**
+     * Returns the recycled line view, or a new one.
+     */
+    protected DiffLineView lineView(View convertView, int columnCount, boolean lineNumbers) {
+        if (convertView instanceof DiffLineView) {
+            return (DiffLineView) convertView;
+        }
+        return new DiffLineView(context, lineStyle, columnCount, lineNumbers);
+    }
+
+    /**
+     * Draws the diff line in a column of the view, like {@link #bindLineText} shows it in a text view.
+     */
+    protected void bindLine(DiffLineView view, int column, int diffLine, boolean withPrefix, int lineNumber, int background) {
+        LineSpans syntax = fileDiff.syntaxSpans();
+        int color = fileDiff.type(diffLine) == FileDiff.LineType.LEFT ? removedWordColor : addedWordColor;
+        view.bindColumn(column, fileDiff, diffLine, withPrefix, lineNumber, background, rows.intraLineChanges(), color,
+                syntax != null ? syntax : partialSyntaxSpans);
+    }
+
+    protected void clearLineText(TextView textView) {
+        LineTextBinder.of(textView).clear();
+    }
+
     public void setCommentActionListener(CommentActionListener commentActionListener) {
         this.commentActionListener = commentActionListener;
     }
 
+    public void setSkippedLinesListener(SkippedLinesListener skippedLinesListener) {
+        this.skippedLinesListener = skippedLinesListener;
+    }
+
     public void fillCommentView(Comment comment, View commentView) {
         if (comment.isDraft()) {
             ViewUtils.setText(commentView, R.id.author, context.getString(R.string.draft_author));
@@ -118,12 +283,19 @@ public abstract class DiffAdapter extends BaseAdapter implements AdapterView.OnI
 
     @Override
     public int getCount() {
-        return linesWithComments.size();
+        return rows.size();
     }
 
+    /**
+     * Rows aren't objects, a comment row returns its first comment and other rows return their position.
+     */
     @Override
     public Object getItem(int position) {
-        return linesWithComments.get(position);
+        if (rows.type(position) == DiffRows.TYPE_COMMENTS) {
+            Comment comment = rows.comment(rows.firstIndex(position));
+            return comment != null ? comment : rows.comment(rows.secondIndex(position));
+        }
+        return position;
     }
 
 }
@@ -6,48 +6,220 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Loader;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
+import android.text.InputType;
+import android.text.TextUtils;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import com.chrome.codereview.model.Comment;
 import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.LineSpans;
 import com.chrome.codereview.model.PatchSet;
 import com.chrome.codereview.model.PatchSetFile;
+import com.chrome.codereview.model.SyntaxHighlighter;
 import com.chrome.codereview.phone.UnifiedDiffAdapter;
+import com.chrome.codereview.requests.RequestScheduler;
+import com.chrome.codereview.requests.ServerCaller;
 import com.chrome.codereview.tablet.SideBySideDiffAdapter;
 import com.chrome.codereview.utils.BaseListFragment;
 import com.chrome.codereview.utils.CachedLoader;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Created by sergeyv on 29/4/14.
  */
-public class DiffFragment extends BaseListFragment implements DiffAdapter.CommentActionListener {
+public class DiffFragment extends BaseListFragment implements DiffAdapter.CommentActionListener, DiffAdapter.SkippedLinesListener {
 
     public static final int RESULT_REFRESH = 10;
     private static final String COMMENTS_ARG = "COMMENTS_ARG";
     private static final String ISSUE_ID_ARG = "ISSUE_ID_ARG";
     private static final String PATCH_SET_ID_ARG = "PATCH_SET_ID_ARG";
     private static final String PATCH_ID_ARG = "PATCH_ID_ARG";
+    private static final String PATH_ARG = "PATH_ARG";
+    private static final String PATCH_SET_DIFF_ARG = "PATCH_SET_DIFF_ARG";
+    private static final String BASE_PATCH_SET_ID_ARG = "BASE_PATCH_SET_ID_ARG";
+    public static final int NO_PATCH_SET = -1;
 
     private static final int DIFF_LOADER_ID = 0;
     private static final int INLINE_DRAFT_LOADER_ID = 1;
-    private static final int PATCH_SET_LOADER_ID = 1;
+    private static final int PATCH_SET_LOADER_ID = 3;
+    private static final int ROWS_LOADER_ID = 2;
+    private static final int HIGHLIGHT_LOADER_ID = 4;
+    private static final int BASE_FILE_LOADER_ID = 5;
     private static final String KEY_COMMENT = "comment";
+    // Rows are rebuilt for every part of a diff shown while it's downloaded, so parts are shown at most this often.
+    private static final long PROGRESS_INTERVAL = 300;
+    // Every changed comment moves the rows after it, beyond that many changes all rows are laid out again in the background.
+    private static final int MAX_SPLICED_COMMENTS = 16;
+    // Skipped lines are shown this many at a time, so that a long gap doesn't flood the list.
+    private static final int SKIPPED_LINES_STEP = 100;
+
+    /**
+     * Delivers the diff parsed so far while it's still being downloaded, then the complete one.
+     */
+    private static class DiffLoader extends CachedLoader<DiffRows> implements ServerCaller.DiffProgressListener {
 
-    private static class DiffLoader extends CachedLoader<FileDiff> {
+        private final int issueId;
+        private final int patchSetId;
+        private final int patchId;
+        private final String path;
+        private final boolean patchSetDiff;
+        private final int basePatchSetId;
+        private final RequestScheduler.Priority priority;
+        private final DiffRows.Layout layout;
+        private final List<Comment> comments;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private long lastProgressTime;
+        private volatile boolean loaded;
+
+        public DiffLoader(Context context, int issueId, int patchSetId, int patchId, String path, boolean patchSetDiff, int basePatchSetId,
+                          RequestScheduler.Priority priority, DiffRows.Layout layout, List<Comment> comments) {
+            super(context);
+            this.layout = layout;
+            this.comments = new ArrayList<Comment>(comments);
+            this.issueId = issueId;
+            this.patchSetId = patchSetId;
+            this.patchId = patchId;
+            this.path = path;
+            this.patchSetDiff = patchSetDiff;
+            this.basePatchSetId = basePatchSetId;
+            this.priority = priority;
+        }
+
+        @Override
+        public DiffRows loadInBackground() {
+            loaded = false;
+            try {
+                FileDiff fileDiff;
+                if (basePatchSetId != NO_PATCH_SET) {
+                    fileDiff = serverCaller().loadInterdiff(issueId, basePatchSetId, patchSetId, patchId, path, patchSetDiff, priority);
+                } else if (patchSetDiff) {
+                    fileDiff = serverCaller().loadFileDiffFromPatchSet(issueId, patchSetId, patchId, path, priority, this);
+                } else {
+                    fileDiff = serverCaller().loadDiff(issueId, patchSetId, patchId, priority, this);
+                }
+                return DiffRows.build(layout, fileDiff, comments);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                loaded = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void onDiffProgress(final FileDiff partialDiff) {
+            long now = SystemClock.uptimeMillis();
+            if (lastProgressTime != 0 && now - lastProgressTime < PROGRESS_INTERVAL) {
+                return;
+            }
+            lastProgressTime = now;
+            final DiffRows partialRows = DiffRows.build(layout, partialDiff, comments);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The complete diff may already be delivered, it must not be replaced by a part of it.
+                    if (!loaded && isStarted()) {
+                        deliverPartialResult(partialRows);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Rebuilds the rows of an already loaded diff, e.g. for reloaded comments.
+     */
+    private static class RowsLoader extends CachedLoader<DiffRows> {
+
+        private final DiffRows.Layout layout;
+        private final FileDiff fileDiff;
+        private final List<Comment> comments;
+
+        public RowsLoader(Context context, DiffRows.Layout layout, FileDiff fileDiff, List<Comment> comments) {
+            super(context);
+            this.layout = layout;
+            this.fileDiff = fileDiff;
+            this.comments = new ArrayList<Comment>(comments);
+        }
+
+        @Override
+        public DiffRows loadInBackground() {
+            return DiffRows.build(layout, fileDiff, comments);
+        }
+    }
+
+    /**
+     * Highlights the syntax of a complete diff, delivering the lines highlighted so far as it goes.
+     * The highlighting is kept with the diff, so a diff served from the cache is highlighted only once.
+     */
+    private static class HighlightLoader extends CachedLoader<LineSpans> implements SyntaxHighlighter.ProgressListener {
+
+        private final FileDiff fileDiff;
+        private final SyntaxHighlighter.Language language;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private volatile boolean loaded;
+
+        public HighlightLoader(Context context, FileDiff fileDiff, SyntaxHighlighter.Language language) {
+            super(context);
+            this.fileDiff = fileDiff;
+            this.language = language;
+        }
+
+        @Override
+        public LineSpans loadInBackground() {
+            loaded = false;
+            try {
+                LineSpans spans = fileDiff.syntaxSpans();
+                if (spans == null) {
+                    spans = SyntaxHighlighter.highlight(fileDiff, language, this);
+                    fileDiff.setSyntaxSpans(spans);
+                }
+                return spans;
+            } finally {
+                loaded = true;
+            }
+        }
+
+        @Override
+        public void onLinesHighlighted(final LineSpans spans) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!loaded && isStarted()) {
+                        deliverPartialResult(spans);
+                    }
+                }
+            });
+        }
+
+        public FileDiff fileDiff() {
+            return fileDiff;
+        }
+    }
+
+    private static class BaseFileLoader extends CachedLoader<List<String>> {
 
         private final int issueId;
         private final int patchSetId;
         private final int patchId;
 
-        public DiffLoader(Context context, int issueId, int patchSetId, int patchId) {
+        public BaseFileLoader(Context context, int issueId, int patchSetId, int patchId) {
             super(context);
             this.issueId = issueId;
             this.patchSetId = patchSetId;
@@ -55,9 +227,9 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         }
 
         @Override
-        public FileDiff loadInBackground() {
+        public List<String> loadInBackground() {
             try {
-                return serverCaller().loadDiff(issueId, patchSetId, patchId);
+                return serverCaller().loadBaseFile(issueId, patchSetId, patchId, RequestScheduler.Priority.INTERACTIVE);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -65,7 +237,10 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         }
     }
 
-    private static class InlineDraftLoader extends CachedLoader<Void> {
+    /**
+     * Saves a draft and loads the message id the server gave it, the result is null if it isn't saved.
+     */
+    private static class InlineDraftLoader extends CachedLoader<String> {
 
         private int issueId;
         private int patchSetId;
@@ -81,14 +256,35 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         }
 
         @Override
-        public Void loadInBackground() {
+        public String loadInBackground() {
             try {
-                serverCaller().inlineDraft(issueId, patchSetId, patchId, comment);
+                return serverCaller().inlineDraft(issueId, patchSetId, patchId, comment);
             } catch (IOException e) {
                 e.printStackTrace();
             }
             return null;
         }
+
+        public Comment comment() {
+            return comment;
+        }
+    }
+
+    /**
+     * A draft that is already shown but not saved on the server yet.
+     */
+    private static class DraftChange {
+
+        private final Comment draft;
+        // Comment the draft replaced, null for a new one.
+        private final Comment previous;
+        // Slot the draft is shown at, CommentIndex.NO_SLOT for a removed one.
+        private int slot = CommentIndex.NO_SLOT;
+
+        private DraftChange(Comment draft, Comment previous) {
+            this.draft = draft;
+            this.previous = previous;
+        }
     }
 
     private static class PatchSetLoader extends CachedLoader<PatchSet> {
@@ -113,26 +309,33 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         private final int line;
         private final boolean left;
         private final EditText text;
-        private final String messageId;
+        private final Comment draft;
 
-        private InlineDraftDialogListener(EditText text, String messageId, int line, boolean left) {
+        private InlineDraftDialogListener(EditText text, Comment draft, int line, boolean left) {
             this.line = line;
             this.left = left;
             this.text = text;
-            this.messageId = messageId;
+            this.draft = draft;
         }
 
         @Override
         public void onClick(DialogInterface dialog, int which) {
-            Comment comment = Comment.createDraft(text.getText().toString(), line, left, messageId);
-            restartInlineDraftLoader(comment);
+            String messageId = draft != null ? draft.messageId() : "";
+            saveDraft(Comment.createDraft(text.getText().toString(), line, left, messageId), draft);
         }
     }
 
     @Override
     public void setUserVisibleHint(boolean isVisibleToUser) {
         super.setUserVisibleHint(isVisibleToUser);
+        if (isVisibleToUser && commentsStale && pendingDrafts.isEmpty() && getActivity() != null) {
+            // Saved drafts are reconciled with the server only when the page is shown again, not after every draft.
+            refresh();
+        }
         if (isVisibleToUser && loadDiffInProgress) {
+            if (getActivity() != null) {
+                ServerCaller.from(getActivity()).prioritizeDiff(issueId, patchSetId, patchId);
+            }
             startProgress();
             return;
         }
@@ -142,7 +345,82 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         }
     }
 
+    /**
+     * Shows the draft at once and saves it in the background, drafts are saved one by one in the order they are written.
+     *
+     * @param previous the draft it replaces, null for a new one
+     */
+    private void saveDraft(Comment draft, Comment previous) {
+        if (diffAdapter == null) {
+            return;
+        }
+        CommentIndex index = diffAdapter.rows().comments();
+        int slot = previous != null ? index.indexOf(previous) : index.findDraft(draft.line(), draft.left());
+        if (previous == null && slot != CommentIndex.NO_SLOT) {
+            previous = index.get(slot);
+        }
+        if (previous != null && TextUtils.isEmpty(draft.messageId()) && !TextUtils.isEmpty(previous.messageId())) {
+            // The draft replaces the one on the server, not just the one shown.
+            draft = Comment.createDraft(draft.text(), draft.line(), draft.left(), previous.messageId());
+        }
+        DraftChange change = new DraftChange(draft, previous);
+        if (TextUtils.isEmpty(draft.text())) {
+            if (slot != CommentIndex.NO_SLOT) {
+                diffAdapter.removeComment(slot);
+            }
+        } else if (slot != CommentIndex.NO_SLOT) {
+            change.slot = diffAdapter.updateComment(slot, draft);
+        } else {
+            change.slot = diffAdapter.insertComment(draft);
+        }
+        comments = index.toList();
+        pendingDrafts.add(change);
+        if (pendingDrafts.size() == 1) {
+            restartInlineDraftLoader(draft);
+        }
+    }
+
+    /**
+     * Undoes a draft change the server didn't accept, unless the draft was changed again since.
+     */
+    private void rollback(DraftChange change) {
+        CommentIndex index = diffAdapter.rows().comments();
+        if (change.slot == CommentIndex.NO_SLOT) {
+            if (change.previous != null && index.indexOf(change.previous) == CommentIndex.NO_SLOT) {
+                diffAdapter.insertComment(change.previous);
+            }
+        } else if (index.get(change.slot) == change.draft) {
+            if (change.previous != null) {
+                diffAdapter.updateComment(change.slot, change.previous);
+            } else {
+                diffAdapter.removeComment(change.slot);
+            }
+        }
+        comments = index.toList();
+        Toast.makeText(getActivity(), R.string.fail_to_save_draft, Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Shows the message id the server gave a new draft, unless the draft was changed again since.
+     */
+    private void showMessageId(DraftChange change, String messageId) {
+        if (change.slot == CommentIndex.NO_SLOT || !TextUtils.isEmpty(change.draft.messageId())) {
+            return;
+        }
+        CommentIndex index = diffAdapter.rows().comments();
+        if (index.get(change.slot) == change.draft) {
+            Comment draft = change.draft;
+            diffAdapter.updateComment(change.slot, Comment.createDraft(draft.text(), draft.line(), draft.left(), messageId));
+            comments = index.toList();
+        }
+    }
+
     private void restartInlineDraftLoader(Comment comment) {
+        // Changes queued before the draft was saved lack the message id it got.
+        String messageId = savedDraftIds.get(CommentIndex.key(comment.line(), comment.left()));
+        if (TextUtils.isEmpty(comment.messageId()) && messageId != null) {
+            comment = Comment.createDraft(comment.text(), comment.line(), comment.left(), messageId);
+        }
         Bundle arg = new Bundle();
         arg.putParcelable(KEY_COMMENT, comment);
         getLoaderManager().restartLoader(INLINE_DRAFT_LOADER_ID, arg, this.inlineDraftCallback);
@@ -151,22 +429,43 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
     private int issueId;
     private int patchSetId;
     private int patchId;
+    private String path;
+    private boolean patchSetDiff;
+    // Patch set the diff is compared with, NO_PATCH_SET for the diff against the base files.
+    private int basePatchSetId;
     private List<Comment> comments;
     private DiffAdapter diffAdapter;
     private boolean loadDiffInProgress;
-    private LoaderManager.LoaderCallbacks<FileDiff> diffLoaderCallback = new LoaderManager.LoaderCallbacks<FileDiff>() {
+    private final LinkedList<DraftChange> pendingDrafts = new LinkedList<DraftChange>();
+    // Message ids of the drafts saved from this page by their line keys, until the comments are loaded with them.
+    private final SparseArray<String> savedDraftIds = new SparseArray<String>();
+    // Drafts were saved since the comments were last loaded, so the local ones may lack message ids.
+    private boolean commentsStale;
+    // Hunk markers of the skip rows tapped while the base file is loaded.
+    private final List<Integer> pendingSkipMarkers = new ArrayList<Integer>();
+    private boolean loadingBaseFile;
+    // Line to show once the diff is loaded, 0 for none.
+    private int pendingLineNumber;
+    private boolean pendingLineLeft;
+    private LoaderManager.LoaderCallbacks<DiffRows> diffLoaderCallback = new LoaderManager.LoaderCallbacks<DiffRows>() {
 
         @Override
-        public Loader<FileDiff> onCreateLoader(int id, Bundle args) {
+        public Loader<DiffRows> onCreateLoader(int id, Bundle args) {
             loadDiffInProgress = true;
             if (getUserVisibleHint()) {
                 startProgress();
             }
-            return new DiffLoader(getActivity(), issueId, patchSetId, patchId);
+            // Neighbour pages of the view pager are created ahead of time, their diffs shouldn't delay the visible one.
+            RequestScheduler.Priority priority = getUserVisibleHint() ? RequestScheduler.Priority.INTERACTIVE : RequestScheduler.Priority.PREFETCH;
+            return new DiffLoader(getActivity(), issueId, patchSetId, patchId, path, patchSetDiff, basePatchSetId, priority, layout(), comments);
         }
 
         @Override
-        public void onLoadFinished(Loader<FileDiff> loader, FileDiff data) {
+        public void onLoadFinished(Loader<DiffRows> loader, DiffRows data) {
+            if (data != null && !data.fileDiff().isComplete()) {
+                showDiff(data);
+                return;
+            }
             loadDiffInProgress = false;
             if (getUserVisibleHint()) {
                 stopProgress();
@@ -174,35 +473,128 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
             if (data == null) {
                 return;
             }
-            boolean useSideBySideDiff = getResources().getBoolean(R.bool.use_side_by_side_diff);
-            diffAdapter = useSideBySideDiff ? new SideBySideDiffAdapter(getActivity(), data, comments) : new UnifiedDiffAdapter(getActivity(), data, comments);
-            diffAdapter.setCommentActionListener(DiffFragment.this);
-            setListAdapter(diffAdapter);
-            getListView().setOnItemClickListener(diffAdapter);
+            showDiff(data);
+            startHighlighting();
+            if (pendingLineNumber != 0) {
+                showLine(pendingLineNumber, pendingLineLeft);
+            }
         }
 
         @Override
-        public void onLoaderReset(Loader<FileDiff> loader) {
+        public void onLoaderReset(Loader<DiffRows> loader) {
         }
 
     };
 
-    private LoaderManager.LoaderCallbacks<Void> inlineDraftCallback = new LoaderManager.LoaderCallbacks<Void>() {
+    private LoaderManager.LoaderCallbacks<DiffRows> rowsLoaderCallback = new LoaderManager.LoaderCallbacks<DiffRows>() {
 
         @Override
-        public Loader<Void> onCreateLoader(int id, Bundle args) {
-            startProgress();
+        public Loader<DiffRows> onCreateLoader(int id, Bundle args) {
+            return new RowsLoader(getActivity(), layout(), diffAdapter.fileDiff(), comments);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<DiffRows> loader, DiffRows data) {
+            showDiff(data);
+        }
+
+        @Override
+        public void onLoaderReset(Loader<DiffRows> loader) {
+        }
+    };
+
+    private LoaderManager.LoaderCallbacks<LineSpans> highlightLoaderCallback = new LoaderManager.LoaderCallbacks<LineSpans>() {
+
+        @Override
+        public Loader<LineSpans> onCreateLoader(int id, Bundle args) {
+            return new HighlightLoader(getActivity(), diffAdapter.fileDiff(), SyntaxHighlighter.Language.forPath(path));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<LineSpans> loader, LineSpans data) {
+            if (diffAdapter != null && ((HighlightLoader) loader).fileDiff() == diffAdapter.fileDiff()) {
+                diffAdapter.setSyntaxSpans(data);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<LineSpans> loader) {
+        }
+    };
+
+    private LoaderManager.LoaderCallbacks<List<String>> baseFileLoaderCallback = new LoaderManager.LoaderCallbacks<List<String>>() {
+
+        @Override
+        public Loader<List<String>> onCreateLoader(int id, Bundle args) {
+            return new BaseFileLoader(getActivity(), issueId, patchSetId, patchId);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<String>> loader, List<String> data) {
+            // A finished loader delivers its result again when the fragment is restarted, the taps are handled by then.
+            if (!loadingBaseFile) {
+                return;
+            }
+            loadingBaseFile = false;
+            if (data == null) {
+                pendingSkipMarkers.clear();
+                Toast.makeText(getActivity(), R.string.fail_to_load_skipped_lines, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            for (int marker : pendingSkipMarkers) {
+                // Rows may have moved while the base file was loaded, so the skip row is looked up by its hunk.
+                int row = diffAdapter != null ? diffAdapter.rows().skipRowBefore(marker) : DiffRows.NO_INDEX;
+                if (row == DiffRows.NO_INDEX) {
+                    continue;
+                }
+                FileDiff context = skippedLines(diffAdapter.rows(), row, data);
+                if (context.size() > 0) {
+                    diffAdapter.expandSkippedLines(row, context);
+                }
+            }
+            pendingSkipMarkers.clear();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<String>> loader) {
+        }
+    };
+
+    private LoaderManager.LoaderCallbacks<String> inlineDraftCallback = new LoaderManager.LoaderCallbacks<String>() {
+
+        @Override
+        public Loader<String> onCreateLoader(int id, Bundle args) {
             return new InlineDraftLoader(getActivity(), issueId, patchSetId, patchId, (Comment) args.getParcelable(KEY_COMMENT));
         }
 
         @Override
-        public void onLoadFinished(Loader<Void> loader, Void data) {
-            refresh();
-            getActivity().setResult(RESULT_REFRESH);
+        public void onLoadFinished(Loader<String> loader, String data) {
+            DraftChange change = pendingDrafts.peek();
+            // A finished loader delivers its result again when the fragment is restarted.
+            if (change == null || !isSameDraft(change.draft, ((InlineDraftLoader) loader).comment())) {
+                return;
+            }
+            pendingDrafts.poll();
+            if (data != null) {
+                int key = CommentIndex.key(change.draft.line(), change.draft.left());
+                if (TextUtils.isEmpty(change.draft.text())) {
+                    savedDraftIds.delete(key);
+                } else if (!TextUtils.isEmpty(data)) {
+                    savedDraftIds.put(key, data);
+                    showMessageId(change, data);
+                }
+                commentsStale = true;
+                getActivity().setResult(RESULT_REFRESH);
+            } else {
+                rollback(change);
+            }
+            if (!pendingDrafts.isEmpty()) {
+                restartInlineDraftLoader(pendingDrafts.peek().draft);
+            }
         }
 
         @Override
-        public void onLoaderReset(Loader<Void> loader) {
+        public void onLoaderReset(Loader<String> loader) {
 
         }
     };
@@ -216,14 +608,19 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         @Override
         public void onLoadFinished(Loader<PatchSet> loader, PatchSet data) {
             stopProgress();
-            if (data == null) {
+            if (data == null || !pendingDrafts.isEmpty() || basePatchSetId != NO_PATCH_SET) {
+                // The server doesn't have all the drafts shown yet, they are reconciled once they are saved.
                 return;
             }
+            commentsStale = false;
+            savedDraftIds.clear();
 
             for (PatchSetFile file : data.files()) {
                 if (file.id() == patchId) {
                     comments = file.comments();
-                    diffAdapter.resetComments(comments);
+                    if (diffAdapter != null && !diffAdapter.updateComments(comments, MAX_SPLICED_COMMENTS)) {
+                        getLoaderManager().restartLoader(ROWS_LOADER_ID, null, rowsLoaderCallback);
+                    }
                     return;
                 }
             }
@@ -235,13 +632,98 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         }
     };
 
-    public void initialize(int issueId, PatchSet patchSet, int position) {
+    private static boolean isSameDraft(Comment draft, Comment comment) {
+        return draft.line() == comment.line() && draft.left() == comment.left() && TextUtils.equals(draft.text(), comment.text());
+    }
+
+    private DiffRows.Layout layout() {
+        boolean useSideBySideDiff = getResources().getBoolean(R.bool.use_side_by_side_diff);
+        return useSideBySideDiff ? SideBySideDiffAdapter.LAYOUT : UnifiedDiffAdapter.LAYOUT;
+    }
+
+    private void showDiff(DiffRows rows) {
+        boolean reused = diffAdapter != null && getListAdapter() == diffAdapter;
+        if (!reused) {
+            boolean useSideBySideDiff = getResources().getBoolean(R.bool.use_side_by_side_diff);
+            diffAdapter = useSideBySideDiff ? new SideBySideDiffAdapter(getActivity(), rows) : new UnifiedDiffAdapter(getActivity(), rows);
+        }
+        if (basePatchSetId == NO_PATCH_SET) {
+            // Comments belong to the diff of a single patch set, so they can't be written on an interdiff.
+            // Rows of a partly downloaded diff are replaced by ones built with the comments the download started with,
+            // so drafts can only be written once the diff is complete.
+            diffAdapter.setCommentActionListener(rows.fileDiff().isComplete() ? this : null);
+            // Skipped lines are numbered as the base file, which only the diff against it shares.
+            diffAdapter.setSkippedLinesListener(this);
+        }
+        if (reused) {
+            // Rows of a diff that is still downloaded are only appended to, so the list keeps its position.
+            diffAdapter.setRows(rows);
+            return;
+        }
+        setListAdapter(diffAdapter);
+        getListView().setOnItemClickListener(diffAdapter);
+    }
+
+    @Override
+    public void showSkippedLines(int row) {
+        int marker = diffAdapter.rows().secondIndex(row);
+        if (!pendingSkipMarkers.contains(marker)) {
+            pendingSkipMarkers.add(marker);
+        }
+        // Taps during the download wait for the same base file.
+        if (!loadingBaseFile) {
+            loadingBaseFile = true;
+            getLoaderManager().restartLoader(BASE_FILE_LOADER_ID, null, baseFileLoaderCallback);
+        }
+    }
+
+    /**
+     * Returns the first lines skipped by the row, as unchanged lines taken from the base file.
+     */
+    private static FileDiff skippedLines(DiffRows rows, int row, List<String> baseFile) {
+        int leftStart = rows.skippedLeftStart(row);
+        int rightStart = rows.skippedRightStart(row);
+        int count = Math.min(rows.firstIndex(row), SKIPPED_LINES_STEP);
+        FileDiff.Builder builder = new FileDiff.Builder();
+        char[] chars = new char[0];
+        // Base file lines are numbered from 1, a file that doesn't have the lines leaves them skipped.
+        for (int i = 0; i < count && leftStart > 0 && leftStart + i - 1 < baseFile.size(); i++) {
+            String text = baseFile.get(leftStart + i - 1);
+            if (chars.length < text.length() + 1) {
+                chars = new char[text.length() + 1];
+            }
+            chars[0] = ' ';
+            text.getChars(0, text.length(), chars, 1);
+            builder.addLine(FileDiff.LineType.BOTH_SIDE, leftStart + i, rightStart + i, chars, 0, text.length() + 1);
+        }
+        return builder.create();
+    }
+
+    /**
+     * Highlights the syntax of the shown diff in the background, once it's completely downloaded and shown as is.
+     */
+    private void startHighlighting() {
+        if (diffAdapter == null || diffAdapter.fileDiff().syntaxSpans() != null || SyntaxHighlighter.Language.forPath(path) == null) {
+            return;
+        }
+        getLoaderManager().restartLoader(HIGHLIGHT_LOADER_ID, null, highlightLoaderCallback);
+    }
+
+    /**
+     * @param basePatchSetId patch set to compare the patch set with, or NO_PATCH_SET to show its diff with comments
+     */
+    public void initialize(int issueId, PatchSet patchSet, int position, int basePatchSetId) {
         Bundle args = new Bundle();
         args.putInt(ISSUE_ID_ARG, issueId);
         args.putInt(PATCH_SET_ID_ARG, patchSet.id());
         PatchSetFile patchSetFile = patchSet.files().get(position);
         args.putInt(PATCH_ID_ARG, patchSetFile.id());
-        args.putParcelableArrayList(COMMENTS_ARG, new ArrayList<Parcelable>(patchSetFile.comments()));
+        args.putString(PATH_ARG, patchSetFile.path());
+        // Pages of a multi-file patch set are all served from a single download of the patch set diff.
+        args.putBoolean(PATCH_SET_DIFF_ARG, patchSet.files().size() > 1);
+        List<Comment> comments = basePatchSetId == NO_PATCH_SET ? patchSetFile.comments() : new ArrayList<Comment>();
+        args.putParcelableArrayList(COMMENTS_ARG, new ArrayList<Parcelable>(comments));
+        args.putInt(BASE_PATCH_SET_ID_ARG, basePatchSetId);
         this.setArguments(args);
     }
 
@@ -252,6 +734,9 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         issueId = args.getInt(ISSUE_ID_ARG, -1);
         patchSetId = args.getInt(PATCH_SET_ID_ARG, -1);
         patchId = args.getInt(PATCH_ID_ARG, -1);
+        path = args.getString(PATH_ARG);
+        patchSetDiff = args.getBoolean(PATCH_SET_DIFF_ARG, false);
+        basePatchSetId = args.getInt(BASE_PATCH_SET_ID_ARG, NO_PATCH_SET);
     }
 
     @Override
@@ -267,6 +752,7 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        setHasOptionsMenu(true);
         View layout = super.onCreateView(inflater, container, savedInstanceState, false);
         List<Comment> savedComments = null;
         if (savedInstanceState != null) {
@@ -284,40 +770,105 @@ public class DiffFragment extends BaseListFragment implements DiffAdapter.Commen
         getLoaderManager().restartLoader(PATCH_SET_LOADER_ID, new Bundle(), DiffFragment.this.patchSetLoaderCallback);
     }
 
-    private void showWriteCommentDialog(String text, String messageId, int line, boolean left) {
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.diff, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (diffAdapter == null) {
+            return super.onOptionsItemSelected(item);
+        }
+        switch (item.getItemId()) {
+            case R.id.action_next_comment:
+                jumpTo(diffAdapter.rows().nextCommentRow(getListView().getFirstVisiblePosition()));
+                return true;
+            case R.id.action_go_to_line:
+                showGoToLineDialog();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showGoToLineDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(R.string.go_to_line);
+        final EditText editText = new EditText(getActivity());
+        editText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        builder.setView(editText);
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (diffAdapter == null || TextUtils.isEmpty(editText.getText())) {
+                    return;
+                }
+                try {
+                    jumpTo(diffAdapter.rows().rowForLine(Integer.parseInt(editText.getText().toString()), false));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Scrolls to the line of the old or the new file, or to it once the diff is loaded.
+     */
+    public void showLine(int lineNumber, boolean left) {
+        if (diffAdapter == null || loadDiffInProgress) {
+            pendingLineNumber = lineNumber;
+            pendingLineLeft = left;
+            return;
+        }
+        pendingLineNumber = 0;
+        jumpTo(diffAdapter.rows().rowForLine(lineNumber, left));
+    }
+
+    private void jumpTo(int row) {
+        if (row == DiffRows.NO_INDEX) {
+            Toast.makeText(getActivity(), R.string.no_such_row, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        getListView().setSelection(row);
+    }
+
+    private void showWriteCommentDialog(String text, Comment draft, int line, boolean left) {
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setTitle(getString(R.string.new_comment, line));
         EditText editText = new EditText(getActivity());
         editText.setText(text);
         builder.setView(editText);
         builder.setNegativeButton(android.R.string.cancel, null);
-        builder.setPositiveButton(android.R.string.ok, new InlineDraftDialogListener(editText, messageId, line, left));
+        builder.setPositiveButton(android.R.string.ok, new InlineDraftDialogListener(editText, draft, line, left));
         builder.create().show();
     }
 
     @Override
     public void removeDraft(Comment comment) {
-        restartInlineDraftLoader(Comment.createDraft("", comment.line(), comment.left(), comment.messageId()));
+        saveDraft(Comment.createDraft("", comment.line(), comment.left(), comment.messageId()), comment);
     }
 
     @Override
     public void editDraft(Comment comment) {
-        showWriteCommentDialog(comment.text(), comment.messageId(), comment.line(), comment.left());
+        showWriteCommentDialog(comment.text(), comment, comment.line(), comment.left());
     }
 
     @Override
     public void doneComment(Comment comment) {
-        restartInlineDraftLoader(Comment.createDraft(Comment.quote(comment) + "\nDone.", comment.line(), comment.left(), ""));
+        saveDraft(Comment.createDraft(Comment.quote(comment) + "\nDone.", comment.line(), comment.left(), ""), null);
     }
 
     @Override
     public void replyComment(Comment comment) {
-        showWriteCommentDialog(Comment.quote(comment), "", comment.line(), comment.left());
+        showWriteCommentDialog(Comment.quote(comment), null, comment.line(), comment.left());
     }
 
     @Override
     public void writeComment(int line, boolean left) {
-        showWriteCommentDialog("", "", line, left);
+        showWriteCommentDialog("", null, line, left);
     }
 
 }
@@ -0,0 +1,355 @@
+package com.chrome.codereview;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.LineSpans;
+
+import java.util.Arrays;
+
+/**
+ * Draws a line row of a diff on its canvas instead of binding text views, with a column for each side of a side by side
+ * diff. Text is monospace, so it's laid out from a single measured char width and long lines are wrapped at a fixed
+ * number of chars. The chars and the color runs of a line are prepared when it's bound, drawing only draws them.
+ */
+public class DiffLineView extends View {
+
+    public static final int NO_LINE_NUMBER = -1;
+
+    public static final int BACKGROUND_DEFAULT = 0;
+    public static final int BACKGROUND_ADDED = 1;
+    public static final int BACKGROUND_REMOVED = 2;
+    public static final int BACKGROUND_MARKER = 3;
+    public static final int BACKGROUND_NO_LINE = 4;
+
+    // Tab stops are every that many chars.
+    private static final int TAB_WIDTH = 8;
+
+    /**
+     * Paints and metrics shared by all the rows of a list, the char width is measured once here.
+     */
+    public static class Style {
+
+        private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private final Paint backgroundPaint = new Paint();
+        private final float charWidth;
+        private final int lineHeight;
+        private final int baseline;
+        private final int textColor;
+        private final int[] syntaxColors;
+        private final int[] backgrounds;
+        private final int[] pressedBackgrounds;
+        private final int numberWidth;
+        private final int numberMargin;
+        private final int paddingLeft;
+        private final int paddingRight;
+        private final int paddingVertical;
+
+        /**
+         * @param syntaxColors text colors by syntax kind
+         */
+        public Style(Context context, int[] syntaxColors) {
+            Resources resources = context.getResources();
+            textPaint.setTypeface(Typeface.MONOSPACE);
+            textPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 12, resources.getDisplayMetrics()));
+            charWidth = textPaint.measureText("M");
+            Paint.FontMetricsInt metrics = textPaint.getFontMetricsInt();
+            lineHeight = metrics.descent - metrics.ascent;
+            baseline = -metrics.ascent;
+            textColor = resources.getColor(R.color.text);
+            this.syntaxColors = syntaxColors;
+            backgrounds = new int[]{resources.getColor(R.color.diff_default_bg), resources.getColor(R.color.diff_add),
+                    resources.getColor(R.color.diff_remove), resources.getColor(R.color.diff_marker_bg), resources.getColor(R.color.diff_no_line)};
+            pressedBackgrounds = new int[]{resources.getColor(R.color.diff_default_bg_pressed), resources.getColor(R.color.diff_add_pressed),
+                    resources.getColor(R.color.diff_remove_pressed), backgrounds[BACKGROUND_MARKER], backgrounds[BACKGROUND_NO_LINE]};
+            // The same geometry as the text view rows.
+            numberWidth = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 28, resources.getDisplayMetrics());
+            numberMargin = resources.getDimensionPixelSize(R.dimen.half_pace);
+            paddingLeft = resources.getDimensionPixelSize(R.dimen.pace);
+            paddingRight = resources.getDimensionPixelSize(R.dimen.half_pace);
+            paddingVertical = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, resources.getDisplayMetrics());
+        }
+    }
+
+    /**
+     * A bound line: its chars, runs of chars of the same color, and the highlighted ranges of changed words.
+     */
+    private static class Column {
+
+        char[] chars = new char[128];
+        int length;
+        int[] runEnds = new int[16];
+        int[] runColors = new int[16];
+        int runCount;
+        int[] highlightStarts = new int[8];
+        int[] highlightEnds = new int[8];
+        int highlightCount;
+        int highlightColor;
+        int lineNumber = NO_LINE_NUMBER;
+        final char[] number = new char[11];
+        int numberLength;
+        int background;
+        // Chars per row and rows of the wrapped line, set when measured.
+        int charsPerRow = 1;
+        int rows = 1;
+    }
+
+    private final Style style;
+    private final Column[] columns;
+    private final boolean lineNumbers;
+    // Per char text colors of the line being bound.
+    private int[] charColors = new int[128];
+    // Chars of the line being bound before its tabs are expanded, and the expanded position of each of them.
+    private char[] sourceChars = new char[128];
+    private int[] positions = new int[129];
+    private int touchedColumn;
+
+    public DiffLineView(Context context, Style style, int columnCount, boolean lineNumbers) {
+        super(context);
+        this.style = style;
+        this.lineNumbers = lineNumbers;
+        columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = new Column();
+        }
+    }
+
+    /**
+     * Shows the line in the given column, either spans may be null and the syntax spans may cover only some first lines.
+     */
+    public void bindColumn(int index, FileDiff fileDiff, int line, boolean withPrefix, int lineNumber, int background,
+                           LineSpans changes, int changeColor, LineSpans syntax) {
+        Column column = columns[index];
+        int sourceLength = fileDiff.displayLength(line, withPrefix);
+        if (sourceLength > sourceChars.length) {
+            sourceChars = new char[Math.max(sourceLength, sourceChars.length * 2)];
+            positions = new int[sourceChars.length + 1];
+        }
+        fileDiff.getDisplayChars(line, withPrefix, sourceChars);
+        int offset = withPrefix && fileDiff.type(line) != FileDiff.LineType.MARKER ? 1 : 0;
+        expandTabs(column, sourceLength, offset);
+
+        if (column.length > charColors.length) {
+            charColors = new int[Math.max(column.length, charColors.length * 2)];
+        }
+        Arrays.fill(charColors, 0, column.length, style.textColor);
+        if (syntax != null && line < syntax.lineCount()) {
+            for (int span = syntax.firstSpan(line); span < syntax.endSpan(line); span++) {
+                int end = position(syntax.end(span) + offset, sourceLength);
+                Arrays.fill(charColors, Math.min(position(syntax.start(span) + offset, sourceLength), end), end, style.syntaxColors[syntax.kind(span)]);
+            }
+        }
+        column.runCount = 0;
+        for (int i = 0; i < column.length; i++) {
+            if (i + 1 == column.length || charColors[i + 1] != charColors[i]) {
+                addRun(column, i + 1, charColors[i]);
+            }
+        }
+
+        column.highlightCount = 0;
+        column.highlightColor = changeColor;
+        if (changes != null && line < changes.lineCount()) {
+            for (int span = changes.firstSpan(line); span < changes.endSpan(line); span++) {
+                addHighlight(column, position(changes.start(span) + offset, sourceLength), position(changes.end(span) + offset, sourceLength));
+            }
+        }
+        setNumber(column, lineNumber);
+        column.background = background;
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Shows an empty column, for a side without a line.
+     */
+    public void clearColumn(int index, int background) {
+        Column column = columns[index];
+        column.length = 0;
+        column.runCount = 0;
+        column.highlightCount = 0;
+        column.lineNumber = NO_LINE_NUMBER;
+        column.numberLength = 0;
+        column.background = background;
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Column that was last touched, e.g. to tell which side of a row was clicked.
+     */
+    public int touchedColumn() {
+        return touchedColumn;
+    }
+
+    public int lineNumber(int index) {
+        return columns[index].lineNumber;
+    }
+
+    public boolean isEmpty(int index) {
+        return columns[index].length == 0;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN && getWidth() > 0) {
+            touchedColumn = Math.min(columns.length - 1, (int) (event.getX() * columns.length / getWidth()));
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int columnWidth = width / columns.length;
+        int textWidth = columnWidth - style.paddingLeft - style.paddingRight - (lineNumbers ? style.numberWidth + style.numberMargin : 0);
+        int charsPerRow = Math.max(1, (int) (textWidth / style.charWidth));
+        if (MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            charsPerRow = Integer.MAX_VALUE;
+        }
+        int rows = 1;
+        for (Column column : columns) {
+            column.charsPerRow = charsPerRow;
+            column.rows = column.length > 0 ? (column.length - 1) / charsPerRow + 1 : 1;
+            rows = Math.max(rows, column.rows);
+        }
+        setMeasuredDimension(width, rows * style.lineHeight + 2 * style.paddingVertical);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int columnWidth = getWidth() / columns.length;
+        for (int index = 0; index < columns.length; index++) {
+            Column column = columns[index];
+            int left = index * columnWidth;
+            boolean pressed = isPressed() && index == touchedColumn;
+            style.backgroundPaint.setColor(pressed ? style.pressedBackgrounds[column.background] : style.backgrounds[column.background]);
+            canvas.drawRect(left, 0, left + columnWidth, getHeight(), style.backgroundPaint);
+
+            float textLeft = left + style.paddingLeft;
+            int top = style.paddingVertical;
+            if (lineNumbers) {
+                style.textPaint.setColor(style.textColor);
+                float numberLeft = textLeft + style.numberWidth - column.numberLength * style.charWidth;
+                canvas.drawText(column.number, 0, column.numberLength, numberLeft, top + style.baseline, style.textPaint);
+                textLeft += style.numberWidth + style.numberMargin;
+            }
+            drawHighlights(canvas, column, textLeft, top);
+            drawRuns(canvas, column, textLeft, top);
+        }
+    }
+
+    private void drawHighlights(Canvas canvas, Column column, float textLeft, int top) {
+        style.backgroundPaint.setColor(column.highlightColor);
+        for (int i = 0; i < column.highlightCount; i++) {
+            int start = column.highlightStarts[i];
+            int end = column.highlightEnds[i];
+            // A wrapped range is drawn row by row.
+            while (start < end) {
+                int row = start / column.charsPerRow;
+                int rowEnd = Math.min(end, (row + 1) * column.charsPerRow);
+                float x = textLeft + (start - row * column.charsPerRow) * style.charWidth;
+                int y = top + row * style.lineHeight;
+                canvas.drawRect(x, y, x + (rowEnd - start) * style.charWidth, y + style.lineHeight, style.backgroundPaint);
+                start = rowEnd;
+            }
+        }
+    }
+
+    private void drawRuns(Canvas canvas, Column column, float textLeft, int top) {
+        int start = 0;
+        for (int i = 0; i < column.runCount; i++) {
+            int end = column.runEnds[i];
+            style.textPaint.setColor(column.runColors[i]);
+            while (start < end) {
+                int row = start / column.charsPerRow;
+                int rowEnd = Math.min(end, (row + 1) * column.charsPerRow);
+                float x = textLeft + (start - row * column.charsPerRow) * style.charWidth;
+                canvas.drawText(column.chars, start, rowEnd - start, x, top + row * style.lineHeight + style.baseline, style.textPaint);
+                start = rowEnd;
+            }
+        }
+    }
+
+    /**
+     * Copies the chars of the line into the column with tabs expanded to the next tab stop, counted from the start of the
+     * text after the diff prefix, and records where each char of the line went.
+     */
+    private void expandTabs(Column column, int sourceLength, int offset) {
+        int length = 0;
+        for (int i = 0; i < sourceLength; i++) {
+            positions[i] = length;
+            length += sourceChars[i] == '\t' && i >= offset ? TAB_WIDTH - (length - offset) % TAB_WIDTH : 1;
+        }
+        positions[sourceLength] = length;
+        if (length > column.chars.length) {
+            column.chars = new char[Math.max(length, column.chars.length * 2)];
+        }
+        for (int i = 0; i < sourceLength; i++) {
+            char c = sourceChars[i];
+            if (c == '\t') {
+                // Spaces of the line are non-breaking ones too.
+                Arrays.fill(column.chars, positions[i], positions[i + 1], '\u00A0');
+            } else {
+                column.chars[positions[i]] = c;
+            }
+        }
+        column.length = length;
+    }
+
+    /**
+     * Position in the expanded line of a char offset of the line, which may be past its end.
+     */
+    private int position(int offset, int sourceLength) {
+        return positions[Math.min(offset, sourceLength)];
+    }
+
+    private static void addRun(Column column, int end, int color) {
+        if (column.runCount == column.runEnds.length) {
+            column.runEnds = Arrays.copyOf(column.runEnds, column.runCount * 2);
+            column.runColors = Arrays.copyOf(column.runColors, column.runCount * 2);
+        }
+        column.runEnds[column.runCount] = end;
+        column.runColors[column.runCount] = color;
+        column.runCount++;
+    }
+
+    private static void addHighlight(Column column, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if (column.highlightCount == column.highlightStarts.length) {
+            column.highlightStarts = Arrays.copyOf(column.highlightStarts, column.highlightCount * 2);
+            column.highlightEnds = Arrays.copyOf(column.highlightEnds, column.highlightCount * 2);
+        }
+        column.highlightStarts[column.highlightCount] = start;
+        column.highlightEnds[column.highlightCount] = end;
+        column.highlightCount++;
+    }
+
+    /**
+     * Writes the digits of the line number without making a string of it.
+     */
+    private static void setNumber(Column column, int lineNumber) {
+        column.lineNumber = lineNumber;
+        column.numberLength = 0;
+        if (lineNumber == NO_LINE_NUMBER) {
+            return;
+        }
+        int length = 1;
+        for (int value = lineNumber / 10; value > 0; value /= 10) {
+            length++;
+        }
+        for (int i = length - 1, value = lineNumber; i >= 0; i--, value /= 10) {
+            column.number[i] = (char) ('0' + value % 10);
+        }
+        column.numberLength = length;
+    }
+
+}
@@ -0,0 +1,413 @@
+package com.chrome.codereview;
+
+import com.chrome.codereview.model.Comment;
+import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.LineSpans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows of a diff list, built off the UI thread, so that a {@link DiffAdapter} only binds them.
+ * A row is three primitive columns: its type and two indices into the file diff or the comment slots,
+ * so rows of a big file take a few bytes each and views are bound straight from them.
+ * When a comment changes only the comment rows of its line are laid out again and spliced in.
+ */
+public class DiffRows {
+
+    /**
+     * A line of the diff: the first and the second index are the diff lines shown on the left and on the right side,
+     * {@link #NO_INDEX} for a side without a line. A unified line has the same diff line on its both sides.
+     */
+    public static final int TYPE_LINE = 0;
+    /**
+     * A hunk marker, the first index is its diff line.
+     */
+    public static final int TYPE_MARKER = 1;
+    /**
+     * Lines that aren't in the diff, the first index is the number of skipped lines and the second one is the diff line
+     * of the hunk marker right after them.
+     */
+    public static final int TYPE_SKIP = 2;
+    /**
+     * Comments, the first and the second index are the slots of the left and the right comment, {@link #NO_INDEX} for none.
+     */
+    public static final int TYPE_COMMENTS = 3;
+    /**
+     * A skipped line that was expanded, the first index is the expanded context it's in and the second one is its line
+     * there, see {@link #context(int)}.
+     */
+    public static final int TYPE_CONTEXT = 4;
+
+    public static final int NO_INDEX = -1;
+
+    public interface Layout {
+
+        /**
+         * Lays out the rows of the diff with its comments, it's called on a background thread.
+         */
+        void addRows(Builder builder);
+
+        /**
+         * Adds the comment rows that follow the line row with the given line numbers, {@link #NO_INDEX} for a side without a line.
+         */
+        void addComments(Builder builder, int leftLineNumber, int rightLineNumber);
+    }
+
+    public static class Builder {
+
+        private final Layout layout;
+        private final FileDiff fileDiff;
+        private final CommentIndex comments;
+        private int size;
+        private byte[] types;
+        private int[] firstIndices;
+        private int[] secondIndices;
+
+        private Builder(Layout layout, FileDiff fileDiff, CommentIndex comments, int capacity) {
+            this.layout = layout;
+            this.fileDiff = fileDiff;
+            this.comments = comments;
+            types = new byte[capacity];
+            firstIndices = new int[capacity];
+            secondIndices = new int[capacity];
+        }
+
+        public FileDiff fileDiff() {
+            return fileDiff;
+        }
+
+        public CommentIndex comments() {
+            return comments;
+        }
+
+        public Builder addRow(int type, int firstIndex, int secondIndex) {
+            if (size == types.length) {
+                int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                firstIndices = Arrays.copyOf(firstIndices, capacity);
+                secondIndices = Arrays.copyOf(secondIndices, capacity);
+            }
+            types[size] = (byte) type;
+            firstIndices[size] = firstIndex;
+            secondIndices[size] = secondIndex;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public DiffRows create() {
+            return new DiffRows(this);
+        }
+    }
+
+    private final Layout layout;
+    private final FileDiff fileDiff;
+    private final CommentIndex comments;
+    private final LineSpans intraLineChanges;
+    private int size;
+    private byte[] types;
+    private int[] firstIndices;
+    private int[] secondIndices;
+
+    // Jump index: line numbers of each side in ascending order with the rows they are on, and the rows with comments.
+    private final LineIndex leftLines;
+    private final LineIndex rightLines;
+    private int commentRowCount;
+    private int[] commentRows = new int[16];
+    // Expanded skipped lines, as diffs of unchanged lines.
+    private final List<FileDiff> contexts = new ArrayList<FileDiff>();
+
+    private DiffRows(Builder builder) {
+        layout = builder.layout;
+        fileDiff = builder.fileDiff;
+        comments = builder.comments;
+        // Rows of a diff that is still downloaded are replaced soon, they are shown without intra-line changes.
+        intraLineChanges = fileDiff.isComplete() ? fileDiff.intraLineChanges() : null;
+        size = builder.size;
+        types = Arrays.copyOf(builder.types, size);
+        firstIndices = Arrays.copyOf(builder.firstIndices, size);
+        secondIndices = Arrays.copyOf(builder.secondIndices, size);
+        leftLines = new LineIndex(size);
+        rightLines = new LineIndex(size);
+        for (int row = 0; row < size; row++) {
+            if (types[row] == TYPE_COMMENTS) {
+                if (commentRowCount == commentRows.length) {
+                    commentRows = Arrays.copyOf(commentRows, commentRowCount * 2);
+                }
+                commentRows[commentRowCount++] = row;
+            } else if (types[row] == TYPE_LINE) {
+                if (firstIndices[row] != NO_INDEX) {
+                    leftLines.add(fileDiff.leftLineNumber(firstIndices[row]), row);
+                }
+                if (secondIndices[row] != NO_INDEX) {
+                    rightLines.add(fileDiff.rightLineNumber(secondIndices[row]), row);
+                }
+            }
+        }
+        leftLines.trim();
+        rightLines.trim();
+    }
+
+    public static DiffRows build(Layout layout, FileDiff fileDiff, List<Comment> comments) {
+        Builder builder = new Builder(layout, fileDiff, new CommentIndex(comments), Math.max(16, fileDiff.size() + comments.size()));
+        layout.addRows(builder);
+        return builder.create();
+    }
+
+    public FileDiff fileDiff() {
+        return fileDiff;
+    }
+
+    public CommentIndex comments() {
+        return comments;
+    }
+
+    /**
+     * Changed words of the lines of the diff, null if the diff isn't complete yet.
+     */
+    public LineSpans intraLineChanges() {
+        return intraLineChanges;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int type(int row) {
+        return types[row];
+    }
+
+    public int firstIndex(int row) {
+        return firstIndices[row];
+    }
+
+    public int secondIndex(int row) {
+        return secondIndices[row];
+    }
+
+    /**
+     * Returns the comment of the given slot of a {@link #TYPE_COMMENTS} row, or null for {@link #NO_INDEX}.
+     */
+    public Comment comment(int slot) {
+        return slot != NO_INDEX ? comments.get(slot) : null;
+    }
+
+    /**
+     * Returns the row showing the given line of the old or the new file, or the row of the closest line after it
+     * that is in the diff, or {@link #NO_INDEX} if there is no such line.
+     */
+    public int rowForLine(int lineNumber, boolean left) {
+        return (left ? leftLines : rightLines).rowFor(lineNumber);
+    }
+
+    /**
+     * Returns the first row with comments after the given one, wrapping around to the first such row of the file,
+     * or {@link #NO_INDEX} if the diff has no comments.
+     */
+    public int nextCommentRow(int row) {
+        if (commentRowCount == 0) {
+            return NO_INDEX;
+        }
+        int position = lowerBound(commentRows, commentRowCount, row + 1);
+        return position < commentRowCount ? commentRows[position] : commentRows[0];
+    }
+
+    public int previousCommentRow(int row) {
+        if (commentRowCount == 0) {
+            return NO_INDEX;
+        }
+        int position = lowerBound(commentRows, commentRowCount, row) - 1;
+        return position >= 0 ? commentRows[position] : commentRows[commentRowCount - 1];
+    }
+
+    /**
+     * First line of the old file that the given {@link #TYPE_SKIP} row skips.
+     */
+    public int skippedLeftStart(int row) {
+        return fileDiff.leftLineNumber(secondIndices[row]) - firstIndices[row];
+    }
+
+    /**
+     * First line of the new file that the given {@link #TYPE_SKIP} row skips.
+     */
+    public int skippedRightStart(int row) {
+        return fileDiff.rightLineNumber(secondIndices[row]) - firstIndices[row];
+    }
+
+    /**
+     * Returns the {@link #TYPE_SKIP} row before the hunk of the given marker line, or {@link #NO_INDEX} if there is none.
+     * Rows move as comments are spliced in and lines are expanded, but the marker a skip row leads to stays the same.
+     */
+    public int skipRowBefore(int marker) {
+        for (int row = 0; row < size; row++) {
+            if (types[row] == TYPE_SKIP && secondIndices[row] == marker) {
+                return row;
+            }
+        }
+        return NO_INDEX;
+    }
+
+    public FileDiff context(int index) {
+        return contexts.get(index);
+    }
+
+    /**
+     * Shows the given lines, which are the first lines skipped by a {@link #TYPE_SKIP} row, in place of the row.
+     * The rest of the skipped lines stay skipped. It's called on the UI thread, like the comment changes below.
+     */
+    public void expandSkippedLines(int row, FileDiff context) {
+        int remaining = firstIndices[row] - context.size();
+        Builder replacement = new Builder(layout, fileDiff, comments, context.size() + 1);
+        for (int line = 0; line < context.size(); line++) {
+            replacement.addRow(TYPE_CONTEXT, contexts.size(), line);
+        }
+        if (remaining > 0) {
+            replacement.addRow(TYPE_SKIP, remaining, secondIndices[row]);
+        }
+        contexts.add(context);
+        replaceRows(row, row + 1, replacement);
+    }
+
+    // Comments are changed in place on the UI thread, where the rows are bound; the adapter is notified by the caller.
+
+    public int insertComment(Comment comment) {
+        int slot = comments.add(comment);
+        spliceComments(comment.line(), comment.left());
+        return slot;
+    }
+
+    public int updateComment(int slot, Comment comment) {
+        Comment old = comments.get(slot);
+        int newSlot = comments.update(slot, comment);
+        spliceComments(old.line(), old.left());
+        if (newSlot != slot) {
+            spliceComments(comment.line(), comment.left());
+        }
+        return newSlot;
+    }
+
+    public void removeComment(int slot) {
+        Comment comment = comments.get(slot);
+        comments.remove(slot);
+        spliceComments(comment.line(), comment.left());
+    }
+
+    /**
+     * Lays out again only the comment rows that follow the row of the given line.
+     */
+    private void spliceComments(int lineNumber, boolean left) {
+        int row = (left ? leftLines : rightLines).exactRowFor(lineNumber);
+        if (row == NO_INDEX) {
+            // The line isn't in the diff, so its comments aren't shown.
+            return;
+        }
+        int end = row + 1;
+        while (end < size && types[end] == TYPE_COMMENTS) {
+            end++;
+        }
+        Builder replacement = new Builder(layout, fileDiff, comments, 4);
+        layout.addComments(replacement, lineNumber(row, true), lineNumber(row, false));
+        replaceRows(row + 1, end, replacement);
+    }
+
+    private int lineNumber(int row, boolean left) {
+        int diffLine = left ? firstIndices[row] : secondIndices[row];
+        if (diffLine == NO_INDEX) {
+            return NO_INDEX;
+        }
+        return left ? fileDiff.leftLineNumber(diffLine) : fileDiff.rightLineNumber(diffLine);
+    }
+
+    private void replaceRows(int start, int end, Builder replacement) {
+        int delta = replacement.size - (end - start);
+        if (size + delta > types.length) {
+            int capacity = Math.max(size + delta, types.length + types.length / 2);
+            types = Arrays.copyOf(types, capacity);
+            firstIndices = Arrays.copyOf(firstIndices, capacity);
+            secondIndices = Arrays.copyOf(secondIndices, capacity);
+        }
+        System.arraycopy(types, end, types, end + delta, size - end);
+        System.arraycopy(firstIndices, end, firstIndices, end + delta, size - end);
+        System.arraycopy(secondIndices, end, secondIndices, end + delta, size - end);
+        System.arraycopy(replacement.types, 0, types, start, replacement.size);
+        System.arraycopy(replacement.firstIndices, 0, firstIndices, start, replacement.size);
+        System.arraycopy(replacement.secondIndices, 0, secondIndices, start, replacement.size);
+        size += delta;
+
+        leftLines.shift(end, delta);
+        rightLines.shift(end, delta);
+        int added = 0;
+        for (int i = 0; i < replacement.size; i++) {
+            if (replacement.types[i] == TYPE_COMMENTS) {
+                added++;
+            }
+        }
+        int from = lowerBound(commentRows, commentRowCount, start);
+        int to = lowerBound(commentRows, commentRowCount, end);
+        int count = commentRowCount - (to - from) + added;
+        if (count > commentRows.length) {
+            commentRows = Arrays.copyOf(commentRows, Math.max(count, commentRows.length * 2));
+        }
+        System.arraycopy(commentRows, to, commentRows, from + added, commentRowCount - to);
+        for (int i = from + added; i < count; i++) {
+            commentRows[i] += delta;
+        }
+        for (int i = 0, position = from; i < replacement.size; i++) {
+            if (replacement.types[i] == TYPE_COMMENTS) {
+                commentRows[position++] = start + i;
+            }
+        }
+        commentRowCount = count;
+    }
+
+    private static int lowerBound(int[] values, int size, int value) {
+        int position = Arrays.binarySearch(values, 0, size, value);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private static class LineIndex {
+
+        private int size;
+        private int[] lineNumbers;
+        private int[] rows;
+
+        LineIndex(int capacity) {
+            lineNumbers = new int[Math.max(16, capacity)];
+            rows = new int[lineNumbers.length];
+        }
+
+        void add(int lineNumber, int row) {
+            // Lines of one side grow in the order of rows, so the index stays sorted.
+            lineNumbers[size] = lineNumber;
+            rows[size] = row;
+            size++;
+        }
+
+        void trim() {
+            lineNumbers = Arrays.copyOf(lineNumbers, size);
+            rows = Arrays.copyOf(rows, size);
+        }
+
+        int rowFor(int lineNumber) {
+            int position = lowerBound(lineNumbers, size, lineNumber);
+            return position < size ? rows[position] : NO_INDEX;
+        }
+
+        int exactRowFor(int lineNumber) {
+            int position = Arrays.binarySearch(lineNumbers, 0, size, lineNumber);
+            return position >= 0 ? rows[position] : NO_INDEX;
+        }
+
+        void shift(int fromRow, int delta) {
+            for (int i = lowerBound(rows, size, fromRow); i < size; i++) {
+                rows[i] += delta;
+            }
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ import com.chrome.codereview.utils.LinearExpandableAdapter;
 import com.chrome.codereview.utils.MergeExpandableListAdapter;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 /**
  * Created by sergeyv on 22/4/14.
@@ -102,6 +103,14 @@ class IssueDetailsAdapter extends MergeExpandableListAdapter {
         add(new HeadedExpandableListAdapter(messagesAdapter, R.layout.list_group_header, R.string.messages));
     }
 
+    void setDiffLinkListener(MessagesAdapter.DiffLinkListener diffLinkListener) {
+        messagesAdapter.setDiffLinkListener(diffLinkListener);
+    }
+
+    void setFailedPatchSets(Set<Integer> failedPatchSetIds) {
+        patchSetsAdapter.setFailedPatchSets(failedPatchSetIds);
+    }
+
     void setIssue(Issue issue) {
         descriptionAdapter.setDescription(issue != null ? issue.description() : "");
         messagesAdapter.setIssue(issue);
@@ -35,21 +35,27 @@ import org.apache.http.auth.AuthenticationException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 /**
  * Created by sergeyv on 18/4/14.
  */
-public class IssueDetailsFragment extends BaseFragment implements DialogInterface.OnClickListener, ExpandableListView.OnChildClickListener {
+public class IssueDetailsFragment extends BaseFragment implements DialogInterface.OnClickListener, ExpandableListView.OnChildClickListener,
+        ExpandableListView.OnGroupExpandListener, MessagesAdapter.DiffLinkListener {
 
     public static final String EXTRA_ISSUE_ID = "EXTRA_ISSUE_ID";
     public static final int REQUEST_CODE_DIFF = 1;
 
     private static final int ISSUE_LOADER_ID = 0;
+    private static final int PATCH_SETS_LOADER_ID = 1;
     private static final int COMMIT_LOADER_ID = 2;
     private static final String PUBLISH_DATA_ARG = "publishData";
+    private static final String PATCH_SET_IDS_ARG = "patchSetIds";
+    private static final int EAGER_PATCH_SETS = 2;
 
     private static class IssueLoader extends CachedLoader<Issue> {
 
@@ -78,6 +84,23 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
         }
     }
 
+    private static class PatchSetsLoader extends CachedLoader<List<PatchSet>> {
+
+        private final int issueId;
+        private final List<Integer> patchSetIds;
+
+        public PatchSetsLoader(Context context, int issueId, List<Integer> patchSetIds) {
+            super(context);
+            this.issueId = issueId;
+            this.patchSetIds = patchSetIds;
+        }
+
+        @Override
+        public List<PatchSet> loadInBackground() {
+            return serverCaller().loadPatchSets(issueId, patchSetIds);
+        }
+    }
+
     private static class CommitLoader extends CachedLoader<Boolean> {
 
         private final int issuedId;
@@ -123,10 +146,20 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
             IssueDetailsFragment.this.issue = issue;
             issueDetailsAdapter.setIssue(issue);
             stopProgress();
+            requestedPatchSets.clear();
+            failedPatchSets.clear();
+            pendingPatchSets.clear();
+            loadingPatchSets = false;
+            pendingDiffLinkUrl = null;
             if (issue == null) {
                 return;
             }
 
+            List<PatchSet> patchSets = issue.patchSets();
+            for (int i = patchSets.size() - 1; i >= Math.max(0, patchSets.size() - EAGER_PATCH_SETS); i--) {
+                requestPatchSet(patchSets.get(i));
+            }
+
             getActivity().getActionBar().setTitle(issue.subject());
             commitItem.setIcon(issue.isInCQ() ? R.drawable.ic_action_stop : R.drawable.ic_action_play);
         }
@@ -138,6 +171,38 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
         }
     };
 
+    private LoaderManager.LoaderCallbacks<List<PatchSet>> patchSetsLoaderCallback = new LoaderManager.LoaderCallbacks<List<PatchSet>>() {
+
+        @Override
+        public Loader<List<PatchSet>> onCreateLoader(int id, Bundle args) {
+            return new PatchSetsLoader(getActivity(), issueId, args.getIntegerArrayList(PATCH_SET_IDS_ARG));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<List<PatchSet>> loader, List<PatchSet> patchSets) {
+            if (!loadingPatchSets) {
+                return;
+            }
+            loadingPatchSets = false;
+            List<Integer> requestedIds = ((PatchSetsLoader) loader).patchSetIds;
+            requestedPatchSets.removeAll(requestedIds);
+            failedPatchSets.addAll(requestedIds);
+            for (PatchSet patchSet : patchSets) {
+                issue.updatePatchSet(patchSet);
+                failedPatchSets.remove(patchSet.id());
+            }
+            issueDetailsAdapter.notifyDataSetChanged();
+            if (pendingDiffLinkUrl != null && requestedIds.contains(pendingDiffLinkPatchSetId)) {
+                openPendingDiffLink();
+            }
+            loadPendingPatchSets();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<List<PatchSet>> loader) {
+        }
+    };
+
     private LoaderManager.LoaderCallbacks<Boolean> commitLoaderCallback = new LoaderManager.LoaderCallbacks<Boolean>() {
         @Override
         public Loader<Boolean> onCreateLoader(int id, Bundle args) {
@@ -165,6 +230,15 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
     private MenuItem commitItem;
     private MenuItem publishItem;
     private boolean menuItemState;
+    private Set<Integer> requestedPatchSets = new HashSet<Integer>();
+    // Patch sets whose last load failed, they are loaded again when tapped.
+    private Set<Integer> failedPatchSets = new HashSet<Integer>();
+    private ArrayList<Integer> pendingPatchSets = new ArrayList<Integer>();
+    private boolean loadingPatchSets;
+    // Diff link waiting for its patch set to be loaded, null for none.
+    private String pendingDiffLinkUrl;
+    private String pendingDiffLinkRest;
+    private int pendingDiffLinkPatchSetId;
 
     @Override
     protected int getLayoutRes() {
@@ -176,9 +250,12 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
         setHasOptionsMenu(true);
         issueId = getActivity().getIntent().getIntExtra(EXTRA_ISSUE_ID, -1);
         issueDetailsAdapter = new IssueDetailsAdapter(this);
+        issueDetailsAdapter.setDiffLinkListener(this);
+        issueDetailsAdapter.setFailedPatchSets(failedPatchSets);
         View layout = super.onCreateView(inflater, container, savedInstanceState);
         ExpandableListView listView = (ExpandableListView) layout.findViewById(android.R.id.list);
         listView.setOnChildClickListener(this);
+        listView.setOnGroupExpandListener(this);
         listView.setAdapter(issueDetailsAdapter);
         if (issueId != -1) {
             getActivity().getActionBar().setTitle(getString(R.string.issue) + " " + issueId);
@@ -252,15 +329,83 @@ public class IssueDetailsFragment extends BaseFragment implements DialogInterfac
             return false;
         }
         PatchSet patchSet = (PatchSet) patchSetObject;
+        if (!patchSet.isLoaded()) {
+            requestPatchSet(patchSet);
+            return true;
+        }
         PatchSetFile file = (PatchSetFile) issueDetailsAdapter.getChild(groupPosition, childPosition);
         if (file != null) {
-            DiffActivity.startDiffActivity(this, REQUEST_CODE_DIFF, issueId, patchSet, file.id());
+            DiffActivity.startDiffActivity(this, REQUEST_CODE_DIFF, issueId, patchSet, file.id(), issue != null ? issue.patchSetIds() : null);
         } else {
             showTryBotResultsDialog(patchSet);
         }
         return true;
     }
 
+    @Override
+    public void onGroupExpand(int groupPosition) {
+        Object patchSetObject = issueDetailsAdapter.getGroup(groupPosition);
+        if (patchSetObject instanceof PatchSet) {
+            requestPatchSet((PatchSet) patchSetObject);
+        }
+    }
+
+    @Override
+    public void openDiffLink(PatchSet patchSet, String rest, String url) {
+        pendingDiffLinkUrl = url;
+        pendingDiffLinkRest = rest;
+        pendingDiffLinkPatchSetId = patchSet.id();
+        startProgress();
+        // A patch set that is being loaded already resolves the link once it arrives.
+        requestPatchSet(patchSet);
+    }
+
+    /**
+     * Opens the diff of the linked file, or the link itself if the patch set failed to load or doesn't have the file.
+     */
+    private void openPendingDiffLink() {
+        stopProgress();
+        String url = pendingDiffLinkUrl;
+        pendingDiffLinkUrl = null;
+        for (PatchSet patchSet : issue.patchSets()) {
+            if (patchSet.id() != pendingDiffLinkPatchSetId || !patchSet.isLoaded()) {
+                continue;
+            }
+            PatchSetFile file = MessagesAdapter.findFile(patchSet, pendingDiffLinkRest);
+            if (file != null) {
+                DiffActivity.startDiffActivity(this, REQUEST_CODE_DIFF, issueId, patchSet, file.id(), issue.patchSetIds());
+                return;
+            }
+        }
+        try {
+            startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void requestPatchSet(PatchSet patchSet) {
+        if (patchSet.isLoaded() || !requestedPatchSets.add(patchSet.id())) {
+            return;
+        }
+        if (failedPatchSets.remove(patchSet.id())) {
+            issueDetailsAdapter.notifyDataSetChanged();
+        }
+        pendingPatchSets.add(patchSet.id());
+        loadPendingPatchSets();
+    }
+
+    private void loadPendingPatchSets() {
+        if (loadingPatchSets || pendingPatchSets.isEmpty()) {
+            return;
+        }
+        loadingPatchSets = true;
+        Bundle args = new Bundle();
+        args.putIntegerArrayList(PATCH_SET_IDS_ARG, pendingPatchSets);
+        pendingPatchSets = new ArrayList<Integer>();
+        getLoaderManager().restartLoader(PATCH_SETS_LOADER_ID, args, patchSetsLoaderCallback);
+    }
+
     public void showPublishDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setTitle(R.string.publish_action);
@@ -0,0 +1,158 @@
+package com.chrome.codereview;
+
+import android.text.GetChars;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.widget.TextView;
+
+import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.LineSpans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Shows diff lines in a recycled text view without allocating: the text is copied into a buffer the view keeps,
+ * and the spans are reused from pools that grow to the most spans a line has needed so far.
+ * The view is given the same spannable for every line, its factory returns it as is instead of copying it.
+ */
+class LineTextBinder {
+
+    private static final Spannable.Factory SAME_SPANNABLE_FACTORY = new Spannable.Factory() {
+        @Override
+        public Spannable newSpannable(CharSequence source) {
+            return source instanceof Spannable ? (Spannable) source : super.newSpannable(source);
+        }
+    };
+
+    /**
+     * Chars of the bound line, they are read by the spannable builder without being copied into a string.
+     */
+    private static class CharBuffer implements CharSequence, GetChars {
+
+        private char[] chars = new char[128];
+        private int length;
+
+        void fill(FileDiff fileDiff, int line, boolean withPrefix) {
+            length = fileDiff.displayLength(line, withPrefix);
+            if (length > chars.length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            fileDiff.getDisplayChars(line, withPrefix, chars);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dest, int destoff) {
+            System.arraycopy(chars, start, dest, destoff, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    private final TextView textView;
+    private final SpannableStringBuilder text = new SpannableStringBuilder();
+    private final CharBuffer buffer = new CharBuffer();
+    // Spans of every color in use, each pool is filled from its start again for every line.
+    private final ArrayList<ArrayList<CharacterStyle>> pools = new ArrayList<ArrayList<CharacterStyle>>();
+    private int[] poolKeys = new int[4];
+    private int[] poolUsage = new int[4];
+
+    private LineTextBinder(TextView textView) {
+        this.textView = textView;
+        textView.setSpannableFactory(SAME_SPANNABLE_FACTORY);
+    }
+
+    static LineTextBinder of(TextView textView) {
+        LineTextBinder binder = (LineTextBinder) textView.getTag(R.id.line_text_binder);
+        if (binder == null) {
+            binder = new LineTextBinder(textView);
+            textView.setTag(R.id.line_text_binder, binder);
+        }
+        return binder;
+    }
+
+    /**
+     * Shows the line with the background of its changed words and the colors of its syntax, either spans may be null.
+     * Syntax spans may cover only the lines highlighted so far.
+     *
+     * @param syntaxColors text colors by syntax kind
+     */
+    void bind(FileDiff fileDiff, int line, boolean withPrefix, LineSpans changes, int changeColor, LineSpans syntax, int[] syntaxColors) {
+        buffer.fill(fileDiff, line, withPrefix);
+        text.clearSpans();
+        text.replace(0, text.length(), buffer);
+        Arrays.fill(poolUsage, 0);
+        int offset = withPrefix && fileDiff.type(line) != FileDiff.LineType.MARKER ? 1 : 0;
+        if (syntax != null && line < syntax.lineCount()) {
+            for (int span = syntax.firstSpan(line); span < syntax.endSpan(line); span++) {
+                setSpan(syntaxColors[syntax.kind(span)], false, syntax.start(span) + offset, syntax.end(span) + offset);
+            }
+        }
+        if (changes != null && line < changes.lineCount()) {
+            for (int span = changes.firstSpan(line); span < changes.endSpan(line); span++) {
+                setSpan(changeColor, true, changes.start(span) + offset, changes.end(span) + offset);
+            }
+        }
+        textView.setText(text, TextView.BufferType.SPANNABLE);
+    }
+
+    void clear() {
+        text.clearSpans();
+        text.clear();
+        textView.setText(text, TextView.BufferType.SPANNABLE);
+    }
+
+    private void setSpan(int color, boolean background, int start, int end) {
+        end = Math.min(end, text.length());
+        if (start >= end) {
+            return;
+        }
+        text.setSpan(obtainSpan(color, background), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private CharacterStyle obtainSpan(int color, boolean background) {
+        // Background pools are told apart from the text color ones by a flipped color.
+        int key = background ? ~color : color;
+        int pool = 0;
+        while (pool < pools.size() && poolKeys[pool] != key) {
+            pool++;
+        }
+        if (pool == pools.size()) {
+            if (pool == poolKeys.length) {
+                poolKeys = Arrays.copyOf(poolKeys, pool * 2);
+                poolUsage = Arrays.copyOf(poolUsage, pool * 2);
+            }
+            pools.add(new ArrayList<CharacterStyle>());
+            poolKeys[pool] = key;
+        }
+        ArrayList<CharacterStyle> spans = pools.get(pool);
+        int index = poolUsage[pool]++;
+        if (index == spans.size()) {
+            spans.add(background ? new BackgroundColorSpan(color) : new ForegroundColorSpan(color));
+        }
+        return spans.get(index);
+    }
+
+}
@@ -30,6 +30,16 @@ import java.util.regex.Matcher;
  */
 public class MessagesAdapter extends LinearExpandableAdapter {
 
+    public interface DiffLinkListener {
+
+        /**
+         * Called for a link to a file of a patch set that isn't loaded yet, the link is resolved once it is.
+         *
+         * @param rest the link after the patch set id, see {@link #findFile(PatchSet, String)}
+         */
+        void openDiffLink(PatchSet patchSet, String rest, String url);
+    }
+
     private class DiffUrlSpan extends URLSpan {
 
         public DiffUrlSpan(String url) {
@@ -66,11 +76,15 @@ public class MessagesAdapter extends LinearExpandableAdapter {
                 return;
             }
             rest = rest.substring((foundPatchSet.id() + "").length() + 1);
-            for (PatchSetFile file : foundPatchSet.files()) {
-                if (rest.startsWith(file.path())) {
-                    DiffActivity.startDiffActivity(fragment, IssueDetailsFragment.REQUEST_CODE_DIFF, issue.id(), foundPatchSet, file.id());
-                    return;
-                }
+            if (!foundPatchSet.isLoaded() && diffLinkListener != null) {
+                // Older patch sets are loaded on demand, so their files aren't known yet.
+                diffLinkListener.openDiffLink(foundPatchSet, rest, url);
+                return;
+            }
+            PatchSetFile file = findFile(foundPatchSet, rest);
+            if (file != null) {
+                DiffActivity.startDiffActivity(fragment, IssueDetailsFragment.REQUEST_CODE_DIFF, issue.id(), foundPatchSet, file.id(), issue.patchSetIds());
+                return;
             }
             safeSuperOnClick(widget);
         }
@@ -86,6 +100,7 @@ public class MessagesAdapter extends LinearExpandableAdapter {
 
     private LayoutInflater inflater;
     private Fragment fragment;
+    private DiffLinkListener diffLinkListener;
     private Issue issue;
     private Activity activity;
     private List<Message> messages = new ArrayList<Message>();
@@ -96,6 +111,22 @@ public class MessagesAdapter extends LinearExpandableAdapter {
         inflater = LayoutInflater.from(activity);
     }
 
+    public void setDiffLinkListener(DiffLinkListener diffLinkListener) {
+        this.diffLinkListener = diffLinkListener;
+    }
+
+    /**
+     * Returns the file a diff link points to, given the link after the patch set id, or null.
+     */
+    public static PatchSetFile findFile(PatchSet patchSet, String rest) {
+        for (PatchSetFile file : patchSet.files()) {
+            if (rest.startsWith(file.path())) {
+                return file;
+            }
+        }
+        return null;
+    }
+
     public void setIssue(Issue issue) {
         this.issue = issue;
         messages = issue != null ? issue.messages() : new ArrayList<Message>();
@@ -0,0 +1,66 @@
+package com.chrome.codereview;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.chrome.codereview.requests.PoolStats;
+import com.chrome.codereview.requests.ServerCaller;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Debug screen with the request histograms collected by {@link ServerCaller}.
+ */
+public class NetworkMetricsActivity extends Activity {
+
+    private ServerCaller serverCaller;
+    private TextView metricsView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_network_metrics);
+        serverCaller = ServerCaller.from(this);
+        metricsView = (TextView) findViewById(R.id.metrics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        PoolStats stats = serverCaller.poolStats();
+        String poolSummary = "requests: " + stats.executedRequests() + ", opened connections: " + stats.openedConnections()
+                + ", reused connections: " + stats.reusedConnections() + ", pooled connections: " + stats.pooledConnections() + "\n\n";
+        metricsView.setText(poolSummary + serverCaller.metrics().dump());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.network_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() != R.id.action_dump_metrics) {
+            return super.onOptionsItemSelected(item);
+        }
+        File directory = getExternalFilesDir(null);
+        try {
+            if (directory == null) {
+                throw new IOException("External storage isn't available");
+            }
+            File file = serverCaller.metrics().dumpTo(directory);
+            Toast.makeText(this, getString(R.string.network_metrics_dumped, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this, getString(R.string.fail_to_dump_network_metrics), Toast.LENGTH_LONG).show();
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.chrome.codereview;
+
+import android.util.SparseArray;
+
+import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.PatchSet;
+import com.chrome.codereview.model.PatchSetFile;
+import com.chrome.codereview.requests.RequestScheduler;
+import com.chrome.codereview.requests.ServerCaller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds text in the diffs of all the files of a patch set, as the diff pages show them. Diffs that are already downloaded
+ * are searched first, the rest are downloaded in the background. Searched diffs are kept with their search indices,
+ * so searching the patch set again doesn't load or index anything.
+ */
+public class PatchSetSearch {
+
+    public static class Result {
+
+        private final int filePosition;
+        private final String path;
+        private final int lineNumber;
+        private final boolean left;
+        private final String text;
+
+        private Result(int filePosition, String path, int lineNumber, boolean left, String text) {
+            this.filePosition = filePosition;
+            this.path = path;
+            this.lineNumber = lineNumber;
+            this.left = left;
+            this.text = text;
+        }
+
+        public int filePosition() {
+            return filePosition;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        /**
+         * Line number of the old file for a removed line, of the new file otherwise.
+         */
+        public int lineNumber() {
+            return lineNumber;
+        }
+
+        public boolean left() {
+            return left;
+        }
+
+        public String text() {
+            return text;
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * Called from the searching thread with all the results found so far, whenever a file adds some.
+         */
+        void onResultsFound(List<Result> results);
+
+        /**
+         * Checked between files, a canceled search returns the results found so far.
+         */
+        boolean isCanceled();
+    }
+
+    // Beyond that many matches the query is too common to be worth listing them all.
+    private static final int MAX_RESULTS = 500;
+
+    private final int issueId;
+    private final PatchSet patchSet;
+    private final int basePatchSetId;
+    private final SparseArray<FileDiff> diffs = new SparseArray<FileDiff>();
+
+    /**
+     * @param basePatchSetId patch set the diffs are compared with, DiffFragment.NO_PATCH_SET for the diffs against the base files
+     */
+    public PatchSetSearch(int issueId, PatchSet patchSet, int basePatchSetId) {
+        this.issueId = issueId;
+        this.patchSet = patchSet;
+        this.basePatchSetId = basePatchSetId;
+    }
+
+    public int basePatchSetId() {
+        return basePatchSetId;
+    }
+
+    /**
+     * Searches the files starting with the given one, it's called on a background thread.
+     */
+    public List<Result> find(ServerCaller serverCaller, String query, int firstPosition, Listener listener) {
+        List<Result> results = new ArrayList<Result>();
+        List<Integer> missing = new ArrayList<Integer>();
+        int count = patchSet.files().size();
+        for (int i = 0; i < count && results.size() < MAX_RESULTS && !listener.isCanceled(); i++) {
+            int position = (firstPosition + i) % count;
+            if (isLoaded(serverCaller, position)) {
+                search(serverCaller, position, query, results, listener);
+            } else {
+                missing.add(position);
+            }
+        }
+        for (int i = 0; i < missing.size() && results.size() < MAX_RESULTS && !listener.isCanceled(); i++) {
+            search(serverCaller, missing.get(i), query, results, listener);
+        }
+        return results.size() > MAX_RESULTS ? results.subList(0, MAX_RESULTS) : results;
+    }
+
+    private void search(ServerCaller serverCaller, int position, String query, List<Result> results, Listener listener) {
+        FileDiff fileDiff = diff(serverCaller, position);
+        if (fileDiff == null) {
+            return;
+        }
+        String path = patchSet.files().get(position).path();
+        int[] lines = fileDiff.searchIndex().find(query);
+        for (int line : lines) {
+            boolean left = fileDiff.type(line) == FileDiff.LineType.LEFT;
+            int lineNumber = left ? fileDiff.leftLineNumber(line) : fileDiff.rightLineNumber(line);
+            results.add(new Result(position, path, lineNumber, left, fileDiff.text(line).substring(1).trim()));
+        }
+        if (lines.length > 0) {
+            listener.onResultsFound(new ArrayList<Result>(results));
+        }
+    }
+
+    private boolean isLoaded(ServerCaller serverCaller, int position) {
+        synchronized (diffs) {
+            if (diffs.get(position) != null) {
+                return true;
+            }
+        }
+        PatchSetFile file = patchSet.files().get(position);
+        return basePatchSetId == DiffFragment.NO_PATCH_SET && serverCaller.isDiffCached(issueId, patchSet.id(), file.id());
+    }
+
+    private FileDiff diff(ServerCaller serverCaller, int position) {
+        synchronized (diffs) {
+            FileDiff fileDiff = diffs.get(position);
+            if (fileDiff != null) {
+                return fileDiff;
+            }
+        }
+        PatchSetFile file = patchSet.files().get(position);
+        boolean patchSetDiff = patchSet.files().size() > 1;
+        // The visible page is loaded interactively, searching shouldn't delay it.
+        RequestScheduler.Priority priority = RequestScheduler.Priority.BACKGROUND;
+        try {
+            FileDiff fileDiff;
+            if (basePatchSetId != DiffFragment.NO_PATCH_SET) {
+                fileDiff = serverCaller.loadInterdiff(issueId, basePatchSetId, patchSet.id(), file.id(), file.path(), patchSetDiff, priority);
+            } else if (patchSetDiff) {
+                fileDiff = serverCaller.loadFileDiffFromPatchSet(issueId, patchSet.id(), file.id(), file.path(), priority);
+            } else {
+                fileDiff = serverCaller.loadDiff(issueId, patchSet.id(), file.id(), priority);
+            }
+            synchronized (diffs) {
+                diffs.put(position, fileDiff);
+            }
+            return fileDiff;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+}
@@ -17,8 +17,10 @@ import com.chrome.codereview.utils.BaseIDExpandableAdapter;
 import com.chrome.codereview.utils.ViewUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by sergeyv on 29/5/14.
@@ -27,8 +29,11 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
 
     private static final int TYPE_PATCH_SET = 0;
     private static final int TYPE_BOT_RESULTS = 1;
+    private static final int TYPE_LOADING = 2;
+    private static final int TYPE_FAILED = 3;
 
     private List<PatchSet> patchsets = new ArrayList<PatchSet>();
+    private Set<Integer> failedPatchSetIds = Collections.emptySet();
     private LayoutInflater inflater;
     private Context context;
 
@@ -41,6 +46,17 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
         this.patchsets = patchsets;
     }
 
+    /**
+     * Patch sets that failed to load show a retry row instead of the loading one.
+     */
+    public void setFailedPatchSets(Set<Integer> failedPatchSetIds) {
+        this.failedPatchSetIds = failedPatchSetIds;
+    }
+
+    public boolean isFailed(PatchSet patchSet) {
+        return !patchSet.isLoaded() && failedPatchSetIds.contains(patchSet.id());
+    }
+
     @Override
     public int getGroupCount() {
         return patchsets.size();
@@ -49,6 +65,9 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
     @Override
     public int getChildrenCount(int groupPosition) {
         PatchSet patchSet = getGroup(groupPosition);
+        if (!patchSet.isLoaded()) {
+            return 1;
+        }
         return patchSet.files().size() + (patchSet.hasTryBotsResults() ? 1 : 0);
     }
 
@@ -59,12 +78,15 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
 
     @Override
     public int getChildTypeCount() {
-        return 2;
+        return 4;
     }
 
     @Override
     public int getChildType(int groupPosition, int childPosition) {
         PatchSet patchSet = getGroup(groupPosition);
+        if (!patchSet.isLoaded()) {
+            return isFailed(patchSet) ? TYPE_FAILED : TYPE_LOADING;
+        }
         return patchSet.files().size() == childPosition ? TYPE_BOT_RESULTS : TYPE_PATCH_SET;
     }
 
@@ -80,7 +102,8 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.patchset_item, parent, false);
         }
-        String message = patchSet.message();
+        String message = patchSet.isLoaded() ? patchSet.message()
+                : context.getString(isFailed(patchSet) ? R.string.fail_to_load_patchset : R.string.loading_patchset);
         String patchSetText = position + ": " + (TextUtils.isEmpty(message) ? context.getString(R.string.empty_message) : message);
         ViewUtils.setText(convertView, R.id.patchset_message, patchSetText);
         fillStatsView(convertView, patchSet.linesAdded(), patchSet.linesRemoved(), patchSet.numComments(), patchSet.numDrafts());
@@ -136,10 +159,23 @@ public class PatchSetsAdapter extends BaseIDExpandableAdapter {
         return convertView;
     }
 
+    private View getLoadingView(View convertView, ViewGroup parent, int textRes) {
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.try_bot_results_summary_item, parent, false);
+            ViewUtils.setText(convertView, R.id.try_bot_results, textRes);
+        }
+        return convertView;
+    }
+
     @Override
     public View getChildView(int groupPosition, int childPosition, boolean isLastChild, View convertView, ViewGroup parent) {
-        if (getChildType(groupPosition, childPosition) == TYPE_PATCH_SET) {
+        int childType = getChildType(groupPosition, childPosition);
+        if (childType == TYPE_PATCH_SET) {
             convertView = getPatchSetFileView(groupPosition, childPosition, convertView, parent);
+        } else if (childType == TYPE_LOADING) {
+            convertView = getLoadingView(convertView, parent, R.string.loading_patchset);
+        } else if (childType == TYPE_FAILED) {
+            convertView = getLoadingView(convertView, parent, R.string.retry_patchset);
         } else {
             convertView = getTryBotResultsView(groupPosition, convertView, parent);
         }
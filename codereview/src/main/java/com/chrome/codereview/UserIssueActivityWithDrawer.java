@@ -5,10 +5,12 @@ import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
 import android.support.v4.widget.DrawerLayout;
 import android.util.SparseArray;
 import android.view.Menu;
+import android.view.MenuItem;
 
 import com.chrome.codereview.issuelists.BaseIssueListFragment;
 import com.chrome.codereview.issuelists.CCIssuesFragment;
@@ -91,11 +93,23 @@ public class UserIssueActivityWithDrawer extends Activity implements NavigationD
             // if the drawer is not showing. Otherwise, let the drawer
             // decide what to show in the action bar.
             restoreActionBar();
+            getMenuInflater().inflate(R.menu.user_issues, menu);
+            boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            menu.findItem(R.id.action_network_metrics).setVisible(debuggable);
             return true;
         }
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_network_metrics) {
+            startActivity(new Intent(this, NetworkMetricsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
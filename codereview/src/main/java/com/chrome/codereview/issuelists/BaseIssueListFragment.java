@@ -6,6 +6,7 @@ import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -32,6 +33,7 @@ public abstract class BaseIssueListFragment extends BaseListFragment implements
 
     private static final int ISSUES_LOADER = 0;
     private static final int CURSOR_LOADER = 1;
+    private static final long PARTIAL_DELIVERY_DELAY = 200;
 
     public interface IssueSelectionListener {
         void onIssueSelected(int issueId, boolean force);
@@ -60,6 +62,41 @@ public abstract class BaseIssueListFragment extends BaseListFragment implements
 
     }
 
+    private class PartialIssuesListener implements ServerCaller.SearchListener, Runnable {
+
+        private final List<Issue> pending = new ArrayList<Issue>();
+        private final List<Issue> delivered = new ArrayList<Issue>();
+        private boolean scheduled;
+
+        @Override
+        public void onIssueLoaded(Issue issue) {
+            synchronized (pending) {
+                pending.add(issue);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            handler.postDelayed(this, PARTIAL_DELIVERY_DELAY);
+        }
+
+        @Override
+        public void run() {
+            synchronized (pending) {
+                delivered.addAll(pending);
+                pending.clear();
+                scheduled = false;
+            }
+            if (partialIssuesListener != this) {
+                return;
+            }
+            issues = delivered;
+            resetAdapter();
+        }
+    }
+
+    private final Handler handler = new Handler();
+    private PartialIssuesListener partialIssuesListener;
     private IssuesAdapter issuesAdapter;
     private IssueSelectionListener selectionListener;
     private boolean selectFirstIssue = false;
@@ -94,7 +131,8 @@ public abstract class BaseIssueListFragment extends BaseListFragment implements
         @Override
         public Loader<List<Issue>> onCreateLoader(int i, Bundle bundle) {
             startProgress();
-            return new IssuesLoader(getActivity(), getLoadAction());
+            partialIssuesListener = new PartialIssuesListener();
+            return new IssuesLoader(getActivity(), getLoadAction(partialIssuesListener));
         }
 
         @Override
@@ -104,6 +142,10 @@ public abstract class BaseIssueListFragment extends BaseListFragment implements
         @Override
         public void onLoadFinished(Loader<List<Issue>> listLoader, List<Issue> issues) {
             stopProgress();
+            if (partialIssuesListener != null) {
+                handler.removeCallbacks(partialIssuesListener);
+                partialIssuesListener = null;
+            }
             wasInited = true;
             BaseIssueListFragment.this.issues = issues;
             resetAdapter();
@@ -116,7 +158,7 @@ public abstract class BaseIssueListFragment extends BaseListFragment implements
         selectIssue(position, true);
     }
 
-    public abstract Callable<List<Issue>> getLoadAction();
+    public abstract Callable<List<Issue>> getLoadAction(ServerCaller.SearchListener listener);
 
     public IssuesAdapter getIssuesAdapter() {
         return new IssuesAdapter(getActivity());
@@ -17,7 +17,7 @@ import java.util.concurrent.Callable;
 public class HiddenIssuesFragment extends BaseIssueListFragment {
 
     @Override
-    public Callable<List<Issue>> getLoadAction() {
+    public Callable<List<Issue>> getLoadAction(ServerCaller.SearchListener listener) {
         final ServerCaller serverCaller = ServerCaller.from(getActivity());
         final String accountName = serverCaller.getAccountName();
         final Callable<List<Issue>> callable = new Callable<List<Issue>>() {
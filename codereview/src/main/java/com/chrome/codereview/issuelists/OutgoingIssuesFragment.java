@@ -13,11 +13,11 @@ import java.util.concurrent.Callable;
 public class OutgoingIssuesFragment extends BaseIssueListFragment{
 
     @Override
-    public Callable<List<Issue>> getLoadAction() {
+    public Callable<List<Issue>> getLoadAction(ServerCaller.SearchListener listener) {
         ServerCaller serverCaller = ServerCaller.from(getActivity());
         String accountName = serverCaller.getAccountName();
         SearchOptions searchOptions = new SearchOptions.Builder().owner(accountName).closeState(SearchOptions.CloseState.OPEN).withMessages().create();
-        return serverCaller.createSearchCallable(searchOptions);
+        return serverCaller.createDeltaSearchCallable(searchOptions, listener);
     }
 
 }
@@ -17,11 +17,11 @@ public class RecentlyClosedIssuesFragment extends BaseIssueListFragment{
     private static final int LIMIT = 15;
 
     @Override
-    public Callable<List<Issue>> getLoadAction() {
+    public Callable<List<Issue>> getLoadAction(ServerCaller.SearchListener listener) {
         ServerCaller serverCaller = ServerCaller.from(getActivity());
         String accountName = serverCaller.getAccountName();
         SearchOptions searchOptions = new SearchOptions.Builder().owner(accountName).closeState(SearchOptions.CloseState.CLOSED).withMessages().limit(LIMIT).create();
-        return serverCaller.createSearchCallable(searchOptions);
+        return serverCaller.createSearchCallable(searchOptions, listener);
     }
 
     private static class ClosedAdapter extends IssuesAdapter {
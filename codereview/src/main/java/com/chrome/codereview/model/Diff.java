@@ -1,54 +1,28 @@
 package com.chrome.codereview.model;
 
-import android.content.Context;
-import android.text.TextPaint;
-import android.widget.TextView;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 /**
  * Created by sergeyv on 29/4/14.
  */
 public class Diff {
 
-    private static final String INDEX = "Index: ";
-    private Map<String, List<String>> fileDiffs = new HashMap<String, List<String>>();
+    private final Map<String, FileDiff> fileDiffs;
     private final int patchSetId;
 
-    public Diff(int patchSetId, String diffString) {
-        parse(diffString);
+    public Diff(int patchSetId, Map<String, FileDiff> fileDiffs) {
+        this.fileDiffs = fileDiffs;
         this.patchSetId = patchSetId;
     }
 
-    public void parse(String s) {
-        Scanner scanner = new Scanner(s);
-        List<String> diffs = new ArrayList<String>();
-        while (scanner.hasNext()) {
-            String line = scanner.nextLine();
-            if (line.startsWith(INDEX)) {
-                String fileName = line.substring(INDEX.length());
-                diffs = new ArrayList<String>();
-                fileDiffs.put(fileName, diffs);
-                scanner.nextLine(); //diff --git
-                scanner.nextLine(); //index
-                scanner.nextLine(); //--- a/
-                scanner.nextLine(); //+++ b/
-                continue;
-            }
-            diffs.add(line.replace(" ", "\u00A0"));
-        }
-
+    public boolean containsFile(String fileName) {
+        return fileDiffs.containsKey(fileName);
     }
 
-    public List<String> diffForFile(String fileName) {
-        if (!fileDiffs.containsKey(fileName)) {
-            return Collections.emptyList();
-        }
+    /**
+     * Returns the diff of the given file, or null if the patch set diff doesn't have it (e.g. binary files).
+     */
+    public FileDiff diffForFile(String fileName) {
         return fileDiffs.get(fileName);
     }
 
@@ -0,0 +1,240 @@
+package com.chrome.codereview.model;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses unified diffs straight from a stream, line by line, into {@link FileDiff}s.
+ * Lines are never turned into strings, so memory is bounded by the longest line besides the result itself.
+ */
+public class DiffParser {
+
+    public interface HunkListener {
+
+        /**
+         * Called from the parsing thread when all the lines before the next hunk are added to the builder.
+         *
+         * @param fileName name of the file in a patch set diff, null when a single file diff is parsed
+         */
+        void onHunkParsed(String fileName, FileDiff.Builder builder);
+    }
+
+    private static final char[] INDEX = "Index: ".toCharArray();
+    private static final char[] HUNK_START = "@@ -".toCharArray();
+    private static final char[] HUNK_END = " @@".toCharArray();
+
+    private final Reader reader;
+    private final HunkListener listener;
+    private char[] buffer = new char[8192];
+    private int bufferStart;
+    private int bufferEnd;
+    private int lineStart;
+    private int lineLength;
+
+    // Start lines of the last parsed hunk header.
+    private int hunkLeftLine;
+    private int hunkRightLine;
+
+    private DiffParser(Reader reader, HunkListener listener) {
+        this.reader = reader;
+        this.listener = listener;
+    }
+
+    /**
+     * Parses the diff of a single file, "Index: " headers are skipped.
+     */
+    public static FileDiff parseFile(Reader reader) throws IOException {
+        return parseFile(reader, null);
+    }
+
+    public static FileDiff parseFile(Reader reader, HunkListener listener) throws IOException {
+        FileDiff.Builder builder = new FileDiff.Builder();
+        new DiffParser(reader, listener).parse(builder, null);
+        return builder.create();
+    }
+
+    /**
+     * Parses the diff of a whole patch set, which has an "Index: " header before every file.
+     */
+    public static Map<String, FileDiff> parseFiles(Reader reader) throws IOException {
+        return parseFiles(reader, null);
+    }
+
+    public static Map<String, FileDiff> parseFiles(Reader reader, HunkListener listener) throws IOException {
+        Map<String, FileDiff.Builder> builders = new HashMap<String, FileDiff.Builder>();
+        new DiffParser(reader, listener).parse(null, builders);
+        Map<String, FileDiff> fileDiffs = new HashMap<String, FileDiff>(builders.size());
+        for (Map.Entry<String, FileDiff.Builder> entry : builders.entrySet()) {
+            fileDiffs.put(entry.getKey(), entry.getValue().create());
+        }
+        return fileDiffs;
+    }
+
+    private void parse(FileDiff.Builder builder, Map<String, FileDiff.Builder> fileBuilders) throws IOException {
+        int leftLines = -1;
+        int rightLines = -1;
+        boolean chunkInitialised = false;
+        String fileName = null;
+        while (nextLine()) {
+            if (startsWith(INDEX)) {
+                chunkInitialised = false;
+                if (fileBuilders != null) {
+                    fileName = new String(buffer, lineStart + INDEX.length, lineLength - INDEX.length).trim();
+                    builder = new FileDiff.Builder();
+                    fileBuilders.put(fileName, builder);
+                }
+                continue;
+            }
+            if (builder == null) {
+                continue;
+            }
+            if (parseHunkHeader()) {
+                if (listener != null && builder.size() > 0) {
+                    listener.onHunkParsed(fileName, builder);
+                }
+                chunkInitialised = true;
+                leftLines = hunkLeftLine;
+                rightLines = hunkRightLine;
+                builder.addLine(FileDiff.LineType.MARKER, leftLines, rightLines, buffer, lineStart, lineLength);
+                continue;
+            }
+            if (!chunkInitialised) {
+                continue;
+            }
+            char first = lineLength > 0 ? buffer[lineStart] : ' ';
+            switch (first) {
+                case '-':
+                    builder.addLine(FileDiff.LineType.LEFT, leftLines, 0, buffer, lineStart, lineLength);
+                    leftLines++;
+                    break;
+                case '+':
+                    builder.addLine(FileDiff.LineType.RIGHT, 0, rightLines, buffer, lineStart, lineLength);
+                    rightLines++;
+                    break;
+                case '\\':
+                    // "\ No newline at end of file" isn't a line of either file.
+                    break;
+                default:
+                    builder.addLine(FileDiff.LineType.BOTH_SIDE, leftLines, rightLines, buffer, lineStart, lineLength);
+                    leftLines++;
+                    rightLines++;
+            }
+        }
+    }
+
+    /**
+     * Reads "@@ -left[,count] +right[,count] @@", anything may follow the closing "@@".
+     */
+    private boolean parseHunkHeader() {
+        if (!startsWith(HUNK_START)) {
+            return false;
+        }
+        int end = lineStart + lineLength;
+        int position = lineStart + HUNK_START.length;
+        int leftLine = 0;
+        int digits = 0;
+        for (; position < end && isDigit(buffer[position]); position++, digits++) {
+            leftLine = leftLine * 10 + buffer[position] - '0';
+        }
+        if (digits == 0) {
+            return false;
+        }
+        position = skipCount(position, end);
+        if (position + 1 >= end || buffer[position] != ' ' || buffer[position + 1] != '+') {
+            return false;
+        }
+        position += 2;
+        int rightLine = 0;
+        digits = 0;
+        for (; position < end && isDigit(buffer[position]); position++, digits++) {
+            rightLine = rightLine * 10 + buffer[position] - '0';
+        }
+        if (digits == 0) {
+            return false;
+        }
+        position = skipCount(position, end);
+        if (!regionMatches(position, end, HUNK_END)) {
+            return false;
+        }
+        hunkLeftLine = leftLine;
+        hunkRightLine = rightLine;
+        return true;
+    }
+
+    private int skipCount(int position, int end) {
+        if (position < end && buffer[position] == ',') {
+            position++;
+            while (position < end && isDigit(buffer[position])) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private boolean startsWith(char[] prefix) {
+        return regionMatches(lineStart, lineStart + lineLength, prefix);
+    }
+
+    private boolean regionMatches(int position, int end, char[] prefix) {
+        if (end - position < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[position + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next line of the stream, its text is then in the buffer at [lineStart, lineStart + lineLength).
+     */
+    private boolean nextLine() throws IOException {
+        int scan = bufferStart;
+        while (true) {
+            for (; scan < bufferEnd; scan++) {
+                if (buffer[scan] == '\n') {
+                    setLine(bufferStart, scan);
+                    bufferStart = scan + 1;
+                    return true;
+                }
+            }
+            if (bufferStart > 0) {
+                System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+                scan -= bufferStart;
+                bufferEnd -= bufferStart;
+                bufferStart = 0;
+            }
+            if (bufferEnd == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = reader.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (read == -1) {
+                if (bufferStart == bufferEnd) {
+                    return false;
+                }
+                setLine(bufferStart, bufferEnd);
+                bufferStart = bufferEnd;
+                return true;
+            }
+            bufferEnd += read;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineLength = end - start;
+    }
+
+}
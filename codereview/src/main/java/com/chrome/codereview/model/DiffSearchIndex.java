@@ -0,0 +1,137 @@
+package com.chrome.codereview.model;
+
+import java.util.Arrays;
+
+/**
+ * Trigram index of the lines of a diff for case insensitive search. Trigrams are hashed into a fixed number of buckets,
+ * each bucket lists the diff lines with any of its trigrams, so a query is only checked against the lines of its
+ * rarest trigram. Buckets are stored in two int arrays, like the rows of a sparse matrix.
+ */
+public class DiffSearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+    private static final int MIN_BUCKETS = 16;
+    private static final int MAX_BUCKETS = 1 << 16;
+
+    private final FileDiff fileDiff;
+    private final int mask;
+    // Lines of bucket b are lines[bucketStarts[b]] to lines[bucketStarts[b + 1] - 1], in ascending order.
+    private final int[] bucketStarts;
+    private final int[] lines;
+
+    DiffSearchIndex(FileDiff fileDiff) {
+        this.fileDiff = fileDiff;
+        int length = fileDiff.size() > 0 ? fileDiff.textEnd(fileDiff.size() - 1) : 0;
+        int buckets = Math.min(MAX_BUCKETS, Integer.highestOneBit(Math.max(MIN_BUCKETS, length / 2)));
+        mask = buckets - 1;
+        bucketStarts = new int[buckets + 1];
+        int[] lastLines = new int[buckets];
+        Arrays.fill(lastLines, -1);
+        for (int line = 0; line < fileDiff.size(); line++) {
+            if (!isSearched(line)) {
+                continue;
+            }
+            int end = fileDiff.textEnd(line);
+            for (int i = fileDiff.textStart(line) + 1; i + GRAM_LENGTH <= end; i++) {
+                int bucket = bucket(fileDiff.charAt(i), fileDiff.charAt(i + 1), fileDiff.charAt(i + 2));
+                if (lastLines[bucket] != line) {
+                    lastLines[bucket] = line;
+                    bucketStarts[bucket + 1]++;
+                }
+            }
+        }
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            bucketStarts[bucket + 1] += bucketStarts[bucket];
+        }
+        lines = new int[bucketStarts[buckets]];
+        int[] positions = Arrays.copyOf(bucketStarts, buckets);
+        Arrays.fill(lastLines, -1);
+        for (int line = 0; line < fileDiff.size(); line++) {
+            if (!isSearched(line)) {
+                continue;
+            }
+            int end = fileDiff.textEnd(line);
+            for (int i = fileDiff.textStart(line) + 1; i + GRAM_LENGTH <= end; i++) {
+                int bucket = bucket(fileDiff.charAt(i), fileDiff.charAt(i + 1), fileDiff.charAt(i + 2));
+                if (lastLines[bucket] != line) {
+                    lastLines[bucket] = line;
+                    lines[positions[bucket]++] = line;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the diff lines that contain the query, ignoring case. Hunk markers aren't searched.
+     */
+    public int[] find(String query) {
+        char[] chars = new char[query.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(query.charAt(i));
+        }
+        int[] found = new int[16];
+        int count = 0;
+        if (chars.length < GRAM_LENGTH) {
+            for (int line = 0; line < fileDiff.size(); line++) {
+                if (isSearched(line) && contains(line, chars)) {
+                    found = add(found, count++, line);
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+        int rarest = -1;
+        for (int i = 0; i + GRAM_LENGTH <= chars.length; i++) {
+            int bucket = bucket(chars[i], chars[i + 1], chars[i + 2]);
+            if (rarest == -1 || size(bucket) < size(rarest)) {
+                rarest = bucket;
+            }
+        }
+        for (int i = bucketStarts[rarest]; i < bucketStarts[rarest + 1]; i++) {
+            if (contains(lines[i], chars)) {
+                found = add(found, count++, lines[i]);
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private boolean isSearched(int line) {
+        return fileDiff.type(line) != FileDiff.LineType.MARKER;
+    }
+
+    private int size(int bucket) {
+        return bucketStarts[bucket + 1] - bucketStarts[bucket];
+    }
+
+    /**
+     * Checks the text of the line without its leading diff character.
+     */
+    private boolean contains(int line, char[] query) {
+        int start = fileDiff.textStart(line) + 1;
+        int end = fileDiff.textEnd(line) - query.length;
+        for (int i = start; i <= end; i++) {
+            int j = 0;
+            while (j < query.length && Character.toLowerCase(fileDiff.charAt(i + j)) == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int bucket(char first, char second, char third) {
+        int hash = (Character.toLowerCase(first) * 31 + Character.toLowerCase(second)) * 31 + Character.toLowerCase(third);
+        hash ^= hash >>> 16;
+        return hash * 0x9E3779B1 >>> 16 & mask;
+    }
+
+    private static int[] add(int[] values, int size, int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        return values;
+    }
+
+}
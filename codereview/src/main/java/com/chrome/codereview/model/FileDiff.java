@@ -1,13 +1,11 @@
 package com.chrome.codereview.model;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 /**
  * Created by sergeyv on 12/5/14.
+ *
+ * Lines are stored by column: primitive arrays of line numbers and types, and offsets into one char buffer with the text of all lines.
  */
 public class FileDiff {
 
@@ -18,102 +16,188 @@ public class FileDiff {
         RIGHT
     }
 
-    public static class DiffLine {
-
-        private final int leftLineNumber;
-        private final int rightLineNumber;
-        private final LineType type;
-        private final String text;
-
-        private DiffLine(LineType type, int leftLineNumber, int rightLineNumber, String text) {
-            this.leftLineNumber = leftLineNumber;
-            this.rightLineNumber = rightLineNumber;
-            this.type = type;
-            this.text = text.replace(" ", "\u00A0");
+    private static final LineType[] LINE_TYPES = LineType.values();
+
+    public static class Builder {
+
+        private int size;
+        private int[] leftLineNumbers = new int[16];
+        private int[] rightLineNumbers = new int[16];
+        private byte[] types = new byte[16];
+        private int[] textEnds = new int[16];
+        private char[] text = new char[1024];
+        private int textLength;
+
+        public Builder addLine(LineType type, int leftLineNumber, int rightLineNumber, char[] chars, int offset, int length) {
+            if (size == types.length) {
+                int capacity = size * 2;
+                leftLineNumbers = Arrays.copyOf(leftLineNumbers, capacity);
+                rightLineNumbers = Arrays.copyOf(rightLineNumbers, capacity);
+                types = Arrays.copyOf(types, capacity);
+                textEnds = Arrays.copyOf(textEnds, capacity);
+            }
+            if (textLength + length > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+            }
+            System.arraycopy(chars, offset, text, textLength, length);
+            textLength += length;
+            leftLineNumbers[size] = leftLineNumber;
+            rightLineNumbers[size] = rightLineNumber;
+            types[size] = (byte) type.ordinal();
+            textEnds[size] = textLength;
+            size++;
+            return this;
         }
 
-        public int leftLineNumber() {
-            return leftLineNumber;
+        public FileDiff create() {
+            return new FileDiff(size, Arrays.copyOf(leftLineNumbers, size), Arrays.copyOf(rightLineNumbers, size), Arrays.copyOf(types, size),
+                    Arrays.copyOf(textEnds, size), Arrays.copyOf(text, textLength), true);
         }
 
-        public int rightLineNumber() {
-            return rightLineNumber;
+        /**
+         * Returns an incomplete diff with the lines added so far. It shares the arrays of the builder without copying them,
+         * which is safe since the builder only writes past the lines it has already handed out.
+         */
+        public FileDiff snapshot() {
+            return new FileDiff(size, leftLineNumbers, rightLineNumbers, types, textEnds, text, false);
         }
 
-        public LineType type() {
-            return type;
+        public int size() {
+            return size;
         }
+    }
 
-        public String text() {
-            return text;
-        }
+    private final int size;
+    private final int[] leftLineNumbers;
+    private final int[] rightLineNumbers;
+    private final byte[] types;
+    private final int[] textEnds;
+    private final char[] text;
+    private final boolean complete;
+    private LineSpans intraLineChanges;
+    private DiffSearchIndex searchIndex;
+    private volatile LineSpans syntaxSpans;
+
+    private FileDiff(int size, int[] leftLineNumbers, int[] rightLineNumbers, byte[] types, int[] textEnds, char[] text, boolean complete) {
+        this.size = size;
+        this.leftLineNumbers = leftLineNumbers;
+        this.rightLineNumbers = rightLineNumbers;
+        this.types = types;
+        this.textEnds = textEnds;
+        this.text = text;
+        this.complete = complete;
+    }
 
-        private static DiffLine markerLine(int leftLineNumber, int rightLineNumber ,String text) {
-            return new DiffLine(LineType.MARKER, leftLineNumber, rightLineNumber, text);
-        }
+    public int size() {
+        return size;
+    }
 
-        private static DiffLine leftSideLine(int lineNumber, String text) {
-            return new DiffLine(LineType.LEFT, lineNumber, 0, text);
-        }
+    /**
+     * False for a diff that is still being downloaded.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
 
-        private static DiffLine rightSideLine(int lineNumber, String text) {
-            return new DiffLine(LineType.RIGHT, 0, lineNumber, text);
+    /**
+     * Changed words of the paired removed and added lines. They are computed on the first call and kept with the diff,
+     * so it's meant to be called off the UI thread.
+     */
+    public synchronized LineSpans intraLineChanges() {
+        if (intraLineChanges == null) {
+            intraLineChanges = IntraLineDiff.compute(this);
         }
+        return intraLineChanges;
+    }
 
-        private static DiffLine bothSideLine(int leftLineNumber, int rightLineNumber, String text) {
-            return new DiffLine(LineType.BOTH_SIDE, leftLineNumber, rightLineNumber, text);
+    /**
+     * Index to find text in the diff, built on the first call and kept with the diff like the intra-line changes.
+     */
+    public synchronized DiffSearchIndex searchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new DiffSearchIndex(this);
         }
+        return searchIndex;
     }
 
-    private static final Pattern MARKER_PATTERN = Pattern.compile("^@@\\s+\\-(?:(\\d+)(?:,(\\d+))?)\\s+\\+(?:(\\d+)(?:,(\\d+))?)\\s+@@.*");
+    /**
+     * Syntax highlighting of the diff, null until it's highlighted.
+     */
+    public LineSpans syntaxSpans() {
+        return syntaxSpans;
+    }
 
-    private final List<DiffLine> diffLines;
+    public void setSyntaxSpans(LineSpans syntaxSpans) {
+        this.syntaxSpans = syntaxSpans;
+    }
 
+    public LineType type(int line) {
+        return LINE_TYPES[types[line]];
+    }
 
-    public FileDiff(List<DiffLine> diffLines) {
-        this.diffLines = diffLines;
+    /**
+     * Line number of the old file, 0 for lines that are only in the new one.
+     */
+    public int leftLineNumber(int line) {
+        return leftLineNumbers[line];
     }
 
-    public List<DiffLine> content() {
-        return diffLines;
+    /**
+     * Line number of the new file, 0 for lines that are only in the old one.
+     */
+    public int rightLineNumber(int line) {
+        return rightLineNumbers[line];
     }
 
-    public static FileDiff from(String fileDiff) {
-        Scanner scanner = new Scanner(fileDiff);
-        int leftLines = -1;
-        int rightLines = -1;
-        boolean chunkInitialised = false;
-        List<DiffLine> diffs = new ArrayList<DiffLine>();
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            Matcher matcher = MARKER_PATTERN.matcher(line);
+    /**
+     * Raw text of the line, with the leading '+', '-' or ' ' of the diff.
+     */
+    public String text(int line) {
+        int start = textStart(line);
+        return new String(text, start, textEnds[line] - start);
+    }
 
-            if (matcher.matches()) {
-                chunkInitialised = true;
-                leftLines = Integer.parseInt(matcher.group(1));
-                rightLines = Integer.parseInt(matcher.group(3));
-                diffs.add(DiffLine.markerLine(leftLines, rightLines, line));
-                continue;
-            }
-            if (!chunkInitialised) {
-                continue;
-            }
-            if (line.startsWith("-")) {
-                diffs.add(DiffLine.leftSideLine(leftLines, line));
-                leftLines++;
-                continue;
-            }
-            if (line.startsWith("+")) {
-                diffs.add(DiffLine.rightSideLine(rightLines, line));
-                rightLines++;
-                continue;
-            }
-            diffs.add(DiffLine.bothSideLine(leftLines, rightLines, line));
-            leftLines++;
-            rightLines++;
+    /**
+     * Length of the text to show for the line.
+     */
+    public int displayLength(int line, boolean withPrefix) {
+        return textEnds[line] - displayStart(line, withPrefix);
+    }
+
+    /**
+     * Copies the text to show for the line into the given buffer, which has to fit displayLength chars. Spaces are replaced
+     * by non-breaking ones, so that the indentation isn't wrapped or collapsed. Views reuse their buffer, so binding a line
+     * doesn't copy it into a new string.
+     */
+    public void getDisplayChars(int line, boolean withPrefix, char[] chars) {
+        int start = displayStart(line, withPrefix);
+        int length = textEnds[line] - start;
+        for (int i = 0; i < length; i++) {
+            char c = text[start + i];
+            chars[i] = c == ' ' ? '\u00A0' : c;
         }
+    }
+
+    private int displayStart(int line, boolean withPrefix) {
+        int start = textStart(line);
+        if (!withPrefix && type(line) != LineType.MARKER && start < textEnds[line]) {
+            start++;
+        }
+        return start;
+    }
+
+    // Offsets of the text of a line in the text of all lines, for the search index.
+
+    int textStart(int line) {
+        return line > 0 ? textEnds[line - 1] : 0;
+    }
+
+    int textEnd(int line) {
+        return textEnds[line];
+    }
 
-        return new FileDiff(diffs);
+    char charAt(int index) {
+        return text[index];
     }
 
 }
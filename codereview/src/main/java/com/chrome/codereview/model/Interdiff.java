@@ -0,0 +1,283 @@
+package com.chrome.codereview.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Diff between the new files of two patch sets, computed from their diffs and their base files.
+ * When both patch sets have the same base file, lines outside the hunks of both diffs are the base lines in both
+ * patch sets, so only the regions covered by the hunks of either diff are compared. A patch set rebased onto
+ * another base file may differ anywhere, so its whole new file is compared instead. A comparison that would take too
+ * long shows its lines as replaced whole.
+ * The left side of the result is the older patch set, the right side is the newer one.
+ */
+public class Interdiff {
+
+    private static class Hunk {
+        // Start lines and counts of the hunk in the base file and in the new file.
+        int leftStart;
+        int leftCount;
+        int rightStart;
+        int rightCount;
+
+        int leftEnd() {
+            return leftStart + leftCount;
+        }
+
+        int rightEnd() {
+            return rightStart + rightCount;
+        }
+
+        // Difference of new and base line numbers after the hunk.
+        int delta() {
+            return rightEnd() - leftEnd();
+        }
+    }
+
+    // Unchanged lines shown around the changes of a whole file comparison.
+    private static final int CONTEXT_LINES = 3;
+    // Cost of a line comparison after which its two sides are shown as replaced whole, see MyersDiff. It lets about two
+    // thousand differing lines be compared, which takes some 40 ms on a desktop JVM, see InterdiffBenchmark.
+    static final long MAX_DIFF_COST = 4000000;
+
+    private static final Comparator<Hunk> BY_LEFT_START = new Comparator<Hunk>() {
+        @Override
+        public int compare(Hunk lhs, Hunk rhs) {
+            return lhs.leftStart - rhs.leftStart;
+        }
+    };
+
+    /**
+     * New file of a patch set as far as its diff shows it.
+     */
+    private static class Side {
+
+        final List<Hunk> hunks = new ArrayList<Hunk>();
+        final HashMap<Integer, String> newLines = new HashMap<Integer, String>();
+        final List<String> baseLines;
+
+        Side(FileDiff diff, List<String> baseLines) {
+            this.baseLines = baseLines;
+            Hunk hunk = null;
+            for (int line = 0; line < diff.size(); line++) {
+                FileDiff.LineType type = diff.type(line);
+                if (type == FileDiff.LineType.MARKER) {
+                    hunk = new Hunk();
+                    hunk.leftStart = diff.leftLineNumber(line);
+                    hunk.rightStart = diff.rightLineNumber(line);
+                    hunks.add(hunk);
+                    continue;
+                }
+                if (hunk == null) {
+                    continue;
+                }
+                String text = diff.text(line).substring(1);
+                if (type != FileDiff.LineType.RIGHT) {
+                    hunk.leftCount++;
+                }
+                if (type != FileDiff.LineType.LEFT) {
+                    hunk.rightCount++;
+                    newLines.put(diff.rightLineNumber(line), text);
+                }
+            }
+            for (Hunk each : hunks) {
+                // An empty range of a unified diff starts at the line before it.
+                if (each.leftCount == 0) {
+                    each.leftStart++;
+                }
+                if (each.rightCount == 0) {
+                    each.rightStart++;
+                }
+            }
+        }
+
+        /**
+         * Maps a base line to the new file, using the hunks that start before it, or at it too if inclusive is set.
+         */
+        int toNewLine(int baseLine, boolean inclusive) {
+            // Hunks are searched by halves, as every line of a whole file comparison is looked up.
+            int low = 0;
+            int high = hunks.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int start = hunks.get(middle).leftStart;
+                if (start > baseLine || (!inclusive && start == baseLine)) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return baseLine + (low > 0 ? hunks.get(low - 1).delta() : 0);
+        }
+
+        String text(int newLine) {
+            // First hunk that ends after the line.
+            int low = 0;
+            int high = hunks.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (hunks.get(middle).rightEnd() > newLine) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            if (low < hunks.size() && hunks.get(low).rightStart <= newLine) {
+                return newLines.get(newLine);
+            }
+            // Base lines are numbered from 1.
+            int baseLine = newLine - (low > 0 ? hunks.get(low - 1).delta() : 0);
+            return baseLine >= 1 && baseLine <= baseLines.size() ? baseLines.get(baseLine - 1) : "";
+        }
+
+        int newLineCount() {
+            return baseLines.size() + (hunks.isEmpty() ? 0 : hunks.get(hunks.size() - 1).delta());
+        }
+    }
+
+    private Interdiff() {
+    }
+
+    /**
+     * @param fromBase base file lines of the older diff
+     * @param toBase base file lines of the newer diff
+     */
+    public static FileDiff compute(FileDiff from, List<String> fromBase, FileDiff to, List<String> toBase) {
+        Side left = new Side(from, fromBase);
+        Side right = new Side(to, toBase);
+        FileDiff.Builder builder = new FileDiff.Builder();
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        if (!fromBase.equals(toBase)) {
+            addHunks(builder, ids, lines(left, 1, left.newLineCount() + 1), lines(right, 1, right.newLineCount() + 1), 1, 1, CONTEXT_LINES);
+            return builder.create();
+        }
+
+        List<Hunk> all = new ArrayList<Hunk>(left.hunks.size() + right.hunks.size());
+        all.addAll(left.hunks);
+        all.addAll(right.hunks);
+        Collections.sort(all, BY_LEFT_START);
+        int i = 0;
+        while (i < all.size()) {
+            // Regions are the base ranges of overlapping or adjacent hunks of both diffs.
+            int regionStart = all.get(i).leftStart;
+            int regionEnd = all.get(i).leftEnd();
+            for (i++; i < all.size() && all.get(i).leftStart <= regionEnd; i++) {
+                regionEnd = Math.max(regionEnd, all.get(i).leftEnd());
+            }
+            int leftStart = left.toNewLine(regionStart, false);
+            int rightStart = right.toNewLine(regionStart, false);
+            String[] leftLines = lines(left, leftStart, left.toNewLine(regionEnd, true));
+            String[] rightLines = lines(right, rightStart, right.toNewLine(regionEnd, true));
+            // A region with any change is shown whole.
+            addHunks(builder, ids, leftLines, rightLines, leftStart, rightStart, Integer.MAX_VALUE);
+        }
+        return builder.create();
+    }
+
+    /**
+     * Adds a hunk for every group of changes between the lines, with up to the given number of unchanged lines around them.
+     */
+    private static void addHunks(FileDiff.Builder builder, HashMap<String, Integer> ids, String[] leftLines, String[] rightLines,
+                                 int leftStart, int rightStart, int context) {
+        boolean[] removed = new boolean[leftLines.length];
+        boolean[] added = new boolean[rightLines.length];
+        MyersDiff.diff(intern(leftLines, ids), intern(rightLines, ids), removed, added, MAX_DIFF_COST);
+        // Steps of the edit script: indices of the left and the right line before each step.
+        int stepCount = 0;
+        int[] stepLeft = new int[leftLines.length + rightLines.length + 1];
+        int[] stepRight = new int[stepLeft.length];
+        boolean[] changed = new boolean[stepLeft.length];
+        int l = 0;
+        int r = 0;
+        while (l < leftLines.length || r < rightLines.length) {
+            stepLeft[stepCount] = l;
+            stepRight[stepCount] = r;
+            if (l < leftLines.length && removed[l]) {
+                changed[stepCount] = true;
+                l++;
+            } else if (r < rightLines.length && added[r]) {
+                changed[stepCount] = true;
+                r++;
+            } else {
+                l++;
+                r++;
+            }
+            stepCount++;
+        }
+        stepLeft[stepCount] = l;
+        stepRight[stepCount] = r;
+
+        int step = 0;
+        while (step < stepCount) {
+            if (!changed[step]) {
+                step++;
+                continue;
+            }
+            int start = step - Math.min(context, step);
+            // The hunk goes on while the next change is close enough to share the unchanged lines between them.
+            int lastChange = step;
+            for (step++; step < stepCount; step++) {
+                if (changed[step]) {
+                    lastChange = step;
+                } else if (step - lastChange > 2L * context) {
+                    break;
+                }
+            }
+            int end = (int) Math.min(stepCount, lastChange + 1 + (long) context);
+            addHunk(builder, leftLines, rightLines, removed, added, leftStart, rightStart, stepLeft[start], stepRight[start],
+                    stepLeft[end], stepRight[end]);
+            step = end;
+        }
+    }
+
+    private static void addHunk(FileDiff.Builder builder, String[] leftLines, String[] rightLines, boolean[] removed, boolean[] added,
+                                int leftStart, int rightStart, int l, int r, int leftEnd, int rightEnd) {
+        String marker = "@@ -" + (leftStart + l) + "," + (leftEnd - l) + " +" + (rightStart + r) + "," + (rightEnd - r) + " @@";
+        builder.addLine(FileDiff.LineType.MARKER, leftStart + l, rightStart + r, marker.toCharArray(), 0, marker.length());
+        while (l < leftEnd || r < rightEnd) {
+            if (l < leftEnd && removed[l]) {
+                addLine(builder, FileDiff.LineType.LEFT, '-', leftStart + l, 0, leftLines[l]);
+                l++;
+            } else if (r < rightEnd && added[r]) {
+                addLine(builder, FileDiff.LineType.RIGHT, '+', 0, rightStart + r, rightLines[r]);
+                r++;
+            } else {
+                addLine(builder, FileDiff.LineType.BOTH_SIDE, ' ', leftStart + l, rightStart + r, rightLines[r]);
+                l++;
+                r++;
+            }
+        }
+    }
+
+    private static String[] lines(Side side, int start, int end) {
+        String[] lines = new String[Math.max(0, end - start)];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = side.text(start + i);
+        }
+        return lines;
+    }
+
+    private static int[] intern(String[] lines, HashMap<String, Integer> ids) {
+        int[] result = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            Integer id = ids.get(lines[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines[i], id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    private static void addLine(FileDiff.Builder builder, FileDiff.LineType type, char prefix, int leftLine, int rightLine, String text) {
+        char[] chars = new char[text.length() + 1];
+        chars[0] = prefix;
+        text.getChars(0, text.length(), chars, 1);
+        builder.addLine(type, leftLine, rightLine, chars, 0, chars.length);
+    }
+
+}
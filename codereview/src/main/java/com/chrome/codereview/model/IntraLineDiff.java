@@ -0,0 +1,251 @@
+package com.chrome.codereview.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the changed words of removed lines and the added lines they are paired with, as the side by side diff pairs them:
+ * the n-th removed line of a change with its n-th added line. A changed word that replaces a single word is narrowed
+ * down to the changed characters.
+ */
+public class IntraLineDiff {
+
+    public static final int KIND_CHANGED = 0;
+
+    // Cost of a hunk in compared token pairs, line pairs that don't fit in what is left of it get no intra-line changes.
+    private static final long HUNK_BUDGET = 200000;
+    // Lines that have less in common than that are changed as a whole, highlighting their words would only add noise.
+    private static final float MIN_COMMON_FRACTION = 0.4f;
+
+    private final FileDiff fileDiff;
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    // Changed ranges of the lines of the current change, as [start, end) pairs.
+    private final HashMap<Integer, int[]> lineRanges = new HashMap<Integer, int[]>();
+    private long budget = HUNK_BUDGET;
+
+    private IntraLineDiff(FileDiff fileDiff) {
+        this.fileDiff = fileDiff;
+    }
+
+    public static LineSpans compute(FileDiff fileDiff) {
+        return new IntraLineDiff(fileDiff).compute();
+    }
+
+    private LineSpans compute() {
+        LineSpans.Builder builder = new LineSpans.Builder();
+        List<Integer> removed = new ArrayList<Integer>();
+        List<Integer> added = new ArrayList<Integer>();
+        int changeStart = 0;
+        // The end of the diff ends the last change like a hunk marker would.
+        for (int line = 0; line <= fileDiff.size(); line++) {
+            FileDiff.LineType type = line < fileDiff.size() ? fileDiff.type(line) : FileDiff.LineType.MARKER;
+            if (type == FileDiff.LineType.LEFT) {
+                removed.add(line);
+                continue;
+            }
+            if (type == FileDiff.LineType.RIGHT) {
+                added.add(line);
+                continue;
+            }
+            for (int i = 0; i < Math.min(removed.size(), added.size()); i++) {
+                compare(removed.get(i), added.get(i));
+            }
+            for (; changeStart < line; changeStart++) {
+                int[] ranges = lineRanges.get(changeStart);
+                for (int i = 0; ranges != null && i < ranges.length; i += 2) {
+                    builder.addSpan(ranges[i], ranges[i + 1], KIND_CHANGED);
+                }
+                builder.endLine();
+            }
+            if (line < fileDiff.size()) {
+                builder.endLine();
+                changeStart++;
+            }
+            if (type == FileDiff.LineType.MARKER) {
+                budget = HUNK_BUDGET;
+            }
+            removed.clear();
+            added.clear();
+            lineRanges.clear();
+        }
+        return builder.create();
+    }
+
+    private void compare(int leftLine, int rightLine) {
+        String left = fileDiff.text(leftLine).substring(1);
+        String right = fileDiff.text(rightLine).substring(1);
+        int[] leftTokens = tokenize(left);
+        int[] rightTokens = tokenize(right);
+        int leftCount = leftTokens.length / 2;
+        int rightCount = rightTokens.length / 2;
+        // A line too long for what is left of the budget is skipped, the shorter lines after it may still fit.
+        long cost = (long) leftCount * rightCount;
+        if (cost > budget) {
+            return;
+        }
+        budget -= cost;
+        int[] leftIds = ids(left, leftTokens);
+        int[] rightIds = ids(right, rightTokens);
+        boolean[] removed = new boolean[leftCount];
+        boolean[] added = new boolean[rightCount];
+        MyersDiff.diff(leftIds, rightIds, removed, added);
+
+        RangeList leftRanges = new RangeList();
+        RangeList rightRanges = new RangeList();
+        int l = 0;
+        int r = 0;
+        int common = 0;
+        while (l < leftCount || r < rightCount) {
+            if ((l >= leftCount || !removed[l]) && (r >= rightCount || !added[r])) {
+                common += leftTokens[2 * l + 1] - leftTokens[2 * l];
+                l++;
+                r++;
+                continue;
+            }
+            int leftStart = l;
+            int rightStart = r;
+            while (l < leftCount && removed[l]) {
+                l++;
+            }
+            while (r < rightCount && added[r]) {
+                r++;
+            }
+            if (l - leftStart == 1 && r - rightStart == 1) {
+                common += compareChars(left, leftTokens[2 * leftStart], leftTokens[2 * leftStart + 1],
+                        right, rightTokens[2 * rightStart], rightTokens[2 * rightStart + 1], leftRanges, rightRanges);
+                continue;
+            }
+            if (l > leftStart) {
+                leftRanges.merge(leftTokens[2 * leftStart], leftTokens[2 * l - 1]);
+            }
+            if (r > rightStart) {
+                rightRanges.merge(rightTokens[2 * rightStart], rightTokens[2 * r - 1]);
+            }
+        }
+        if (common < MIN_COMMON_FRACTION * Math.max(left.length(), right.length())) {
+            return;
+        }
+        lineRanges.put(leftLine, leftRanges.toArray());
+        lineRanges.put(rightLine, rightRanges.toArray());
+    }
+
+    /**
+     * Marks the changed characters of a word replaced by another one, returns the number of common characters.
+     */
+    private int compareChars(String left, int leftStart, int leftEnd, String right, int rightStart, int rightEnd,
+                             RangeList leftRanges, RangeList rightRanges) {
+        int[] leftChars = new int[leftEnd - leftStart];
+        int[] rightChars = new int[rightEnd - rightStart];
+        for (int i = 0; i < leftChars.length; i++) {
+            leftChars[i] = left.charAt(leftStart + i);
+        }
+        for (int i = 0; i < rightChars.length; i++) {
+            rightChars[i] = right.charAt(rightStart + i);
+        }
+        boolean[] removed = new boolean[leftChars.length];
+        boolean[] added = new boolean[rightChars.length];
+        MyersDiff.diff(leftChars, rightChars, removed, added);
+        int common = 0;
+        for (boolean isRemoved : removed) {
+            if (!isRemoved) {
+                common++;
+            }
+        }
+        if (common == 0) {
+            leftRanges.merge(leftStart, leftEnd);
+            rightRanges.merge(rightStart, rightEnd);
+            return 0;
+        }
+        addRuns(removed, leftStart, leftRanges);
+        addRuns(added, rightStart, rightRanges);
+        return common;
+    }
+
+    private static void addRuns(boolean[] changed, int offset, RangeList ranges) {
+        for (int i = 0; i < changed.length; i++) {
+            if (!changed[i]) {
+                continue;
+            }
+            int start = i;
+            while (i < changed.length && changed[i]) {
+                i++;
+            }
+            ranges.merge(offset + start, offset + i);
+        }
+    }
+
+    /**
+     * Splits the text into words, runs of whitespace and single other characters, returned as [start, end) pairs.
+     */
+    private static int[] tokenize(String text) {
+        RangeList tokens = new RangeList();
+        int i = 0;
+        while (i < text.length()) {
+            int start = i;
+            char c = text.charAt(i);
+            if (isWordChar(c)) {
+                while (i < text.length() && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+            } else if (Character.isWhitespace(c)) {
+                while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+            tokens.add(start, i);
+        }
+        return tokens.toArray();
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private int[] ids(String text, int[] tokens) {
+        int[] result = new int[tokens.length / 2];
+        for (int i = 0; i < result.length; i++) {
+            String token = text.substring(tokens[2 * i], tokens[2 * i + 1]);
+            Integer id = ids.get(token);
+            if (id == null) {
+                id = ids.size();
+                ids.put(token, id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    private static class RangeList {
+
+        private int[] values = new int[8];
+        private int size;
+
+        /**
+         * Adds a range, it's merged with the last one if they are adjacent.
+         */
+        void merge(int start, int end) {
+            if (size > 0 && values[size - 1] == start) {
+                values[size - 1] = end;
+                return;
+            }
+            add(start, end);
+        }
+
+        void add(int start, int end) {
+            if (size + 2 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = start;
+            values[size++] = end;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
@@ -1,13 +1,17 @@
 package com.chrome.codereview.model;
 
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import com.chrome.codereview.utils.DateUtils;
+import com.chrome.codereview.utils.JsonReaderUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,6 +23,10 @@ import java.util.List;
  */
 public class Issue {
 
+    public interface MessagesFilter {
+        boolean needsMessages(int issueId);
+    }
+
     private final String owner;
     private final String subject;
     private final String description;
@@ -30,6 +38,7 @@ public class Issue {
     private final String ccd;
     private final int id;
     private final boolean isInCQ;
+    private boolean messagesSkipped;
 
     public Issue(String owner, String subject, String description, boolean closed, List<Message> messages, List<Reviewer> reviewers, Date lastModified, List<PatchSet> patchSets, String ccd, int id, boolean isInCQ) {
         this.owner = owner;
@@ -74,6 +83,59 @@ public class Issue {
         return fromJSONObject(jsonObject, Collections.<PatchSet>emptyList());
     }
 
+    public static Issue from(JsonReader reader) throws IOException, ParseException {
+        return from(reader, null);
+    }
+
+    public static Issue from(JsonReader reader, MessagesFilter filter) throws IOException, ParseException {
+        String owner = "";
+        String subject = "";
+        String description = "";
+        boolean isClosed = false;
+        int issue = -1;
+        List<Message> messages = Collections.emptyList();
+        List<String> reviewerEmails = Collections.emptyList();
+        Date lastModified = null;
+        List<String> ccList = Collections.emptyList();
+        boolean isInCQ = false;
+        boolean messagesSkipped = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("owner")) {
+                owner = JsonReaderUtils.nextString(reader, "");
+            } else if (name.equals("subject")) {
+                subject = JsonReaderUtils.nextString(reader, "");
+            } else if (name.equals("description")) {
+                description = JsonReaderUtils.nextString(reader, "");
+            } else if (name.equals("closed")) {
+                isClosed = JsonReaderUtils.nextBoolean(reader, false);
+            } else if (name.equals("issue")) {
+                issue = reader.nextInt();
+            } else if (name.equals("messages") && issue != -1 && filter != null && !filter.needsMessages(issue)) {
+                reader.skipValue();
+                messagesSkipped = true;
+            } else if (name.equals("messages")) {
+                messages = Message.fromArray(reader);
+            } else if (name.equals("reviewers")) {
+                reviewerEmails = JsonReaderUtils.nextStringList(reader);
+            } else if (name.equals("modified")) {
+                lastModified = DateUtils.getDate(reader.nextString());
+            } else if (name.equals("cc")) {
+                ccList = JsonReaderUtils.nextStringList(reader);
+            } else if (name.equals("commit")) {
+                isInCQ = JsonReaderUtils.nextBoolean(reader, false);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        List<Reviewer> reviewers = Reviewer.from(reviewerEmails, messages);
+        Issue result = new Issue(owner, subject, description, isClosed, messages, reviewers, lastModified, Collections.<PatchSet>emptyList(), TextUtils.join(", ", ccList), issue, isInCQ);
+        result.messagesSkipped = messagesSkipped;
+        return result;
+    }
+
     public static List<Issue> fromJSONArray(JSONArray jsonArray) {
         int length = jsonArray.length();
         ArrayList<Issue> result = new ArrayList<Issue>(length);
@@ -87,6 +149,38 @@ public class Issue {
         return result;
     }
 
+    /**
+     * Writes the issue in the format of the server search results, see {@link #from(JsonReader)}.
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("owner").value(owner);
+        writer.name("subject").value(subject);
+        writer.name("description").value(description);
+        writer.name("closed").value(closed);
+        writer.name("issue").value(id);
+        writer.name("messages").beginArray();
+        for (Message message : messages) {
+            message.write(writer);
+        }
+        writer.endArray();
+        writer.name("reviewers").beginArray();
+        for (Reviewer reviewer : reviewers) {
+            writer.value(reviewer.email());
+        }
+        writer.endArray();
+        if (lastModified != null) {
+            writer.name("modified").value(DateUtils.formatServerDate(lastModified));
+        }
+        writer.name("cc").beginArray();
+        for (String cc : TextUtils.split(ccd, ", ")) {
+            writer.value(cc);
+        }
+        writer.endArray();
+        writer.name("commit").value(isInCQ);
+        writer.endObject();
+    }
+
     public void setLastModified(long time) {
         this.lastModified = new Date(time);
     }
@@ -131,8 +225,29 @@ public class Issue {
         return patchSets;
     }
 
+    public ArrayList<Integer> patchSetIds() {
+        ArrayList<Integer> ids = new ArrayList<Integer>(patchSets.size());
+        for (PatchSet patchSet : patchSets) {
+            ids.add(patchSet.id());
+        }
+        return ids;
+    }
+
+    public void updatePatchSet(PatchSet patchSet) {
+        for (int i = 0; i < patchSets.size(); i++) {
+            if (patchSets.get(i).id() == patchSet.id()) {
+                patchSets.set(i, patchSet);
+                return;
+            }
+        }
+    }
+
     public boolean isInCQ() {
         return isInCQ;
     }
+
+    public boolean messagesSkipped() {
+        return messagesSkipped;
+    }
 }
 
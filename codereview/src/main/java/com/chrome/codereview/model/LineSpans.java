@@ -0,0 +1,99 @@
+package com.chrome.codereview.model;
+
+import java.util.Arrays;
+
+/**
+ * Ranges of text of every line of a diff, e.g. the changed words, in primitive arrays.
+ * Offsets are relative to the line text without the leading character of the diff.
+ */
+public class LineSpans {
+
+    public static class Builder {
+
+        private int lineCount;
+        private int[] lineEnds = new int[16];
+        private int size;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private byte[] kinds = new byte[16];
+
+        /**
+         * Adds a span to the current line, spans of a line are added in the order of their starts.
+         */
+        public Builder addSpan(int start, int end, int kind) {
+            if (size == starts.length) {
+                int capacity = size * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            kinds[size] = (byte) kind;
+            size++;
+            return this;
+        }
+
+        /**
+         * Ends the current line, it has to be called for every line of the diff.
+         */
+        public Builder endLine() {
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+            }
+            lineEnds[lineCount++] = size;
+            return this;
+        }
+
+        public int lineCount() {
+            return lineCount;
+        }
+
+        public LineSpans create() {
+            return new LineSpans(lineCount, Arrays.copyOf(lineEnds, lineCount), Arrays.copyOf(starts, size), Arrays.copyOf(ends, size),
+                    Arrays.copyOf(kinds, size));
+        }
+    }
+
+    private final int lineCount;
+    private final int[] lineEnds;
+    private final int[] starts;
+    private final int[] ends;
+    private final byte[] kinds;
+
+    private LineSpans(int lineCount, int[] lineEnds, int[] starts, int[] ends, byte[] kinds) {
+        this.lineCount = lineCount;
+        this.lineEnds = lineEnds;
+        this.starts = starts;
+        this.ends = ends;
+        this.kinds = kinds;
+    }
+
+    public int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Index of the first span of the line, spans of the line are [firstSpan(line), endSpan(line)).
+     */
+    public int firstSpan(int line) {
+        return line > 0 ? lineEnds[line - 1] : 0;
+    }
+
+    public int endSpan(int line) {
+        return lineEnds[line];
+    }
+
+    public int start(int span) {
+        return starts[span];
+    }
+
+    public int end(int span) {
+        return ends[span];
+    }
+
+    public int kind(int span) {
+        return kinds[span];
+    }
+
+}
@@ -1,15 +1,19 @@
 package com.chrome.codereview.model;
 
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
 import com.chrome.codereview.R;
 import com.chrome.codereview.utils.DateUtils;
 import com.chrome.codereview.utils.EmailUtils;
+import com.chrome.codereview.utils.JsonReaderUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
@@ -115,6 +119,58 @@ public class Message {
         return new Message(text, sender, date, approval, disapproval);
     }
 
+    public static Message from(JsonReader reader) throws IOException, ParseException {
+        String sender = "";
+        String text = "";
+        Date date = null;
+        boolean approval = false;
+        boolean disapproval = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("sender")) {
+                sender = JsonReaderUtils.nextString(reader, "");
+            } else if (name.equals("text")) {
+                text = JsonReaderUtils.nextString(reader, "");
+            } else if (name.equals("date")) {
+                date = DateUtils.getDate(reader.nextString());
+            } else if (name.equals("approval")) {
+                approval = JsonReaderUtils.nextBoolean(reader, false);
+            } else if (name.equals("disapproval")) {
+                disapproval = JsonReaderUtils.nextBoolean(reader, false);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Message(text, sender, date, approval, disapproval);
+    }
+
+    /**
+     * Writes the message in the format of the server, see {@link #from(JsonReader)}.
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("sender").value(senderEmail);
+        writer.name("text").value(text);
+        if (date != null) {
+            writer.name("date").value(DateUtils.formatServerDate(date));
+        }
+        writer.name("approval").value(approval);
+        writer.name("disapproval").value(disapproval);
+        writer.endObject();
+    }
+
+    public static List<Message> fromArray(JsonReader reader) throws IOException, ParseException {
+        ArrayList<Message> result = new ArrayList<Message>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(from(reader));
+        }
+        reader.endArray();
+        return result;
+    }
+
     public static List<Message> from(JSONArray jsonArray) {
         ArrayList<Message> result = new ArrayList<Message>(jsonArray.length());
         for (int i = 0; i < jsonArray.length(); i++) {
@@ -0,0 +1,183 @@
+package com.chrome.codereview.model;
+
+import java.util.Arrays;
+
+/**
+ * Myers' O(ND) difference algorithm in its linear space variant: the middle snake of the edit graph is found
+ * by searching from both ends at once, and both halves are then diffed recursively.
+ * Elements are ints, so that lines are compared as interned ids rather than strings.
+ */
+public class MyersDiff {
+
+    // Returned by the middle snake search when the budget ran out, it can't be a packed point as y is never negative.
+    private static final long OVER_BUDGET = -2;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] removed;
+    private final boolean[] added;
+    // Furthest reaching paths of the forward and the backward search, shared by all the recursive calls.
+    private final int[] forward;
+    private final int[] backward;
+    // Diagonal moves and matched elements the search may still take before it gives up.
+    private long budget;
+
+    private MyersDiff(int[] a, int[] b, boolean[] removed, boolean[] added, long budget) {
+        this.a = a;
+        this.b = b;
+        this.removed = removed;
+        this.added = added;
+        this.budget = budget;
+        int size = a.length + b.length + 2;
+        forward = new int[size];
+        backward = new int[size];
+    }
+
+    /**
+     * Marks the elements of a that aren't in the longest common subsequence as removed, and such elements of b as added.
+     */
+    public static void diff(int[] a, int[] b, boolean[] removed, boolean[] added) {
+        diff(a, b, removed, added, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #diff(int[], int[], boolean[], boolean[])}, but gives up once the search has cost more than the budget,
+     * which bounds the time spent on large and mostly different sequences.
+     *
+     * @param budget max number of diagonal moves and matched elements of the search, d differences take about d * d moves
+     * @return false if the budget ran out, then all of a is marked removed and all of b added
+     */
+    public static boolean diff(int[] a, int[] b, boolean[] removed, boolean[] added, long budget) {
+        if (new MyersDiff(a, b, removed, added, budget).compare(0, a.length, 0, b.length)) {
+            return true;
+        }
+        Arrays.fill(removed, 0, a.length, true);
+        Arrays.fill(added, 0, b.length, true);
+        return false;
+    }
+
+    /**
+     * Returns false if the budget ran out.
+     */
+    private boolean compare(int aStart, int aEnd, int bStart, int bEnd) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        if (aStart == aEnd) {
+            Arrays.fill(added, bStart, bEnd, true);
+            return true;
+        }
+        if (bStart == bEnd) {
+            Arrays.fill(removed, aStart, aEnd, true);
+            return true;
+        }
+        long split = middleSnake(aStart, aEnd, bStart, bEnd);
+        if (split == OVER_BUDGET) {
+            return false;
+        }
+        if (split == -1) {
+            Arrays.fill(removed, aStart, aEnd, true);
+            Arrays.fill(added, bStart, bEnd, true);
+            return true;
+        }
+        int x = aStart + (int) (split >>> 32);
+        int y = bStart + (int) split;
+        return compare(aStart, x, bStart, y) && compare(x, aEnd, y, bEnd);
+    }
+
+    /**
+     * Returns the point where the forward and the backward paths meet, relative to the starts and packed as x << 32 | y,
+     * -1 if the sequences have nothing in common, or {@link #OVER_BUDGET}.
+     */
+    private long middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD;
+        Arrays.fill(forward, 0, length, -1);
+        Arrays.fill(backward, 0, length, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // With an odd delta the paths can only meet on the forward search, otherwise on the backward one.
+        boolean front = (delta & 1) != 0;
+        // Diagonals that run off the edit graph are not searched anymore.
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        for (int d = 0; d < maxD; d++) {
+            // Each round moves along up to 2 * (d + 1) diagonals, the matched elements are counted by the snakes below.
+            budget -= 2 * (d + 1);
+            if (budget < 0) {
+                return OVER_BUDGET;
+            }
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int kOffset = offset + k;
+                int x;
+                if (k == -d || (k != d && forward[kOffset - 1] < forward[kOffset + 1])) {
+                    x = forward[kOffset + 1];
+                } else {
+                    x = forward[kOffset - 1] + 1;
+                }
+                int y = x - k;
+                int snakeStart = x;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                budget -= x - snakeStart;
+                forward[kOffset] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (front) {
+                    int backwardOffset = offset + delta - k;
+                    if (backwardOffset >= 0 && backwardOffset < length && backward[backwardOffset] != -1 && x >= n - backward[backwardOffset]) {
+                        return (long) x << 32 | y;
+                    }
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int kOffset = offset + k;
+                int x;
+                if (k == -d || (k != d && backward[kOffset - 1] < backward[kOffset + 1])) {
+                    x = backward[kOffset + 1];
+                } else {
+                    x = backward[kOffset - 1] + 1;
+                }
+                int y = x - k;
+                int snakeStart = x;
+                while (x < n && y < m && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+                    x++;
+                    y++;
+                }
+                budget -= x - snakeStart;
+                backward[kOffset] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!front) {
+                    int forwardOffset = offset + delta - k;
+                    if (forwardOffset >= 0 && forwardOffset < length && forward[forwardOffset] != -1) {
+                        int forwardX = forward[forwardOffset];
+                        int forwardY = offset + forwardX - forwardOffset;
+                        if (forwardX >= n - x) {
+                            return (long) forwardX << 32 | forwardY;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+}
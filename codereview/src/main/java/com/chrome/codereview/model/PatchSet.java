@@ -44,8 +44,14 @@ public class PatchSet implements Parcelable {
     private final int patchSetId;
     private final List<TryBotResult> tryBotResults;
     private final Map<String, TryBotResult.Result> botToState = new HashMap<String, TryBotResult.Result>();
+    private final boolean loaded;
 
     public PatchSet(String message, List<PatchSetFile> files, int numComments, int patchSetId, List<TryBotResult> tryBotResults) {
+        this(message, files, numComments, patchSetId, tryBotResults, true);
+    }
+
+    private PatchSet(String message, List<PatchSetFile> files, int numComments, int patchSetId, List<TryBotResult> tryBotResults, boolean loaded) {
+        this.loaded = loaded;
         this.numComments = numComments;
         this.patchSetId = patchSetId;
         this.tryBotResults = Collections.unmodifiableList(tryBotResults);
@@ -54,6 +60,13 @@ public class PatchSet implements Parcelable {
         prepareBotToState();
     }
 
+    /**
+     * Placeholder for a patch set whose metadata hasn't been loaded yet.
+     */
+    public static PatchSet stub(int patchSetId) {
+        return new PatchSet(null, new ArrayList<PatchSetFile>(), 0, patchSetId, new ArrayList<TryBotResult>(), false);
+    }
+
     public static PatchSet from(int patchSetId, JSONObject jsonObject) throws JSONException, ParseException {
         JSONObject filesJsonObject = jsonObject.getJSONObject("files");
         List<PatchSetFile> files = new ArrayList<PatchSetFile>();
@@ -108,6 +121,10 @@ public class PatchSet implements Parcelable {
         return patchSetId;
     }
 
+    public boolean isLoaded() {
+        return loaded;
+    }
+
     public List<TryBotResult> tryBotResults() {
         return tryBotResults;
     }
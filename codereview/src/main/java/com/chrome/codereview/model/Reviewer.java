@@ -43,6 +43,14 @@ public class Reviewer {
     }
 
     public static List<Reviewer> from(JSONArray reviewerEmails, List<Message> issuesMessages) throws JSONException {
+        List<String> emails = new ArrayList<String>(reviewerEmails.length());
+        for (int i = 0; i < reviewerEmails.length(); i++) {
+            emails.add(reviewerEmails.getString(i));
+        }
+        return from(emails, issuesMessages);
+    }
+
+    public static List<Reviewer> from(List<String> reviewerEmails, List<Message> issuesMessages) {
         Map<String, Message.Decoration> reviewerOpinion = new HashMap<String, Message.Decoration>();
         for (Message message : issuesMessages) {
             Message.Decoration opinion = message.decoration();
@@ -50,9 +58,8 @@ public class Reviewer {
                 reviewerOpinion.put(message.senderEmail(), opinion);
             }
         }
-        List<Reviewer> reviewers = new ArrayList<Reviewer>(reviewerEmails.length());
-        for (int i = 0; i < reviewerEmails.length(); i++) {
-            String reviewerEmail = reviewerEmails.getString(i);
+        List<Reviewer> reviewers = new ArrayList<Reviewer>(reviewerEmails.size());
+        for (String reviewerEmail : reviewerEmails) {
             Message.Decoration decoration = reviewerOpinion.get(reviewerEmail);
             reviewers.add(new Reviewer(reviewerEmail, decoration));
         }
@@ -0,0 +1,282 @@
+package com.chrome.codereview.model;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lexes the lines of a diff into keyword, string, comment, number and preprocessor spans.
+ * The old and the new file are lexed as two streams that carry the lexer state from line to line, so block comments and
+ * multi-line strings are highlighted within a hunk. Lines skipped between hunks are unknown, so the state is reset at every hunk.
+ */
+public class SyntaxHighlighter {
+
+    public static final int KIND_KEYWORD = 0;
+    public static final int KIND_STRING = 1;
+    public static final int KIND_COMMENT = 2;
+    public static final int KIND_NUMBER = 3;
+    public static final int KIND_PREPROCESSOR = 4;
+    public static final int KIND_COUNT = 5;
+
+    public interface ProgressListener {
+
+        /**
+         * Called from the lexing thread with spans of the lines lexed so far.
+         */
+        void onLinesHighlighted(LineSpans spans);
+    }
+
+    public enum Language {
+        CPP("//", true, true, false, false,
+                "alignas", "alignof", "auto", "bool", "break", "case", "catch", "char", "class", "const", "constexpr", "const_cast",
+                "continue", "decltype", "default", "delete", "do", "double", "dynamic_cast", "else", "enum", "explicit", "extern",
+                "false", "final", "float", "for", "friend", "goto", "if", "inline", "int", "long", "mutable", "namespace", "new",
+                "noexcept", "nullptr", "operator", "override", "private", "protected", "public", "register", "reinterpret_cast",
+                "return", "short", "signed", "sizeof", "static", "static_assert", "static_cast", "struct", "switch", "template",
+                "this", "throw", "true", "try", "typedef", "typename", "union", "unsigned", "using", "virtual", "void", "volatile",
+                "while", "NULL", "@interface", "@implementation", "@end", "@property", "self", "nil", "YES", "NO"),
+        PYTHON("#", false, false, true, false,
+                "and", "as", "assert", "break", "class", "continue", "def", "del", "elif", "else", "except", "exec", "finally",
+                "for", "from", "global", "if", "import", "in", "is", "lambda", "nonlocal", "not", "or", "pass", "print", "raise",
+                "return", "try", "while", "with", "yield", "None", "True", "False", "self"),
+        JAVASCRIPT("//", true, false, false, true,
+                "break", "case", "catch", "class", "const", "continue", "debugger", "default", "delete", "do", "else", "export",
+                "extends", "false", "finally", "for", "function", "if", "import", "in", "instanceof", "let", "new", "null", "return",
+                "super", "switch", "this", "throw", "true", "try", "typeof", "undefined", "var", "void", "while", "with", "yield"),
+        GN("#", false, false, false, false,
+                "if", "else", "true", "false", "import", "template", "foreach", "defined", "assert", "declare_args",
+                "forward_variables_from", "action", "action_foreach", "component", "config", "copy", "executable", "group",
+                "source_set", "static_library", "shared_library", "test", "deps", "public_deps", "data_deps", "sources",
+                "configs", "defines", "include_dirs", "cflags", "ldflags", "visibility", "testonly"),
+        IDL("//", true, true, false, false,
+                "any", "attribute", "boolean", "byte", "callback", "const", "deleter", "dictionary", "DOMString", "double",
+                "enum", "exception", "false", "float", "getter", "implements", "in", "inherit", "interface", "legacycaller",
+                "long", "module", "null", "object", "octet", "optional", "or", "partial", "Promise", "raises", "readonly",
+                "sequence", "setter", "short", "static", "stringifier", "true", "typedef", "unrestricted", "unsigned", "void");
+
+        private final String lineComment;
+        private final boolean blockComments;
+        private final boolean preprocessor;
+        private final boolean tripleQuotes;
+        private final boolean templateStrings;
+        private final Set<String> keywords;
+
+        Language(String lineComment, boolean blockComments, boolean preprocessor, boolean tripleQuotes, boolean templateStrings, String... keywords) {
+            this.lineComment = lineComment;
+            this.blockComments = blockComments;
+            this.preprocessor = preprocessor;
+            this.tripleQuotes = tripleQuotes;
+            this.templateStrings = templateStrings;
+            this.keywords = new HashSet<String>(Arrays.asList(keywords));
+        }
+
+        /**
+         * Returns the language of the file, or null if it isn't highlighted.
+         */
+        public static Language forPath(String path) {
+            if (path == null) {
+                return null;
+            }
+            int dot = path.lastIndexOf('.');
+            String extension = dot != -1 ? path.substring(dot + 1) : "";
+            if (extension.equals("cc") || extension.equals("cpp") || extension.equals("h") || extension.equals("hpp")
+                    || extension.equals("c") || extension.equals("mm") || extension.equals("m")) {
+                return CPP;
+            }
+            if (extension.equals("py")) {
+                return PYTHON;
+            }
+            if (extension.equals("js")) {
+                return JAVASCRIPT;
+            }
+            if (extension.equals("gn") || extension.equals("gni")) {
+                return GN;
+            }
+            if (extension.equals("idl")) {
+                return IDL;
+            }
+            return null;
+        }
+    }
+
+    // Lexer states at the end of a line.
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_BLOCK_COMMENT = 1;
+    private static final int STATE_TRIPLE_DOUBLE_QUOTE = 2;
+    private static final int STATE_TRIPLE_SINGLE_QUOTE = 3;
+    private static final int STATE_TEMPLATE_STRING = 4;
+
+    // Spans are handed out this often while a file is lexed.
+    private static final int PROGRESS_LINES = 2000;
+
+    private final Language language;
+    private final LineSpans.Builder builder = new LineSpans.Builder();
+    private String text;
+    private int position;
+
+    private SyntaxHighlighter(Language language) {
+        this.language = language;
+    }
+
+    public static LineSpans highlight(FileDiff fileDiff, Language language, ProgressListener listener) {
+        return new SyntaxHighlighter(language).highlight(fileDiff, listener);
+    }
+
+    private LineSpans highlight(FileDiff fileDiff, ProgressListener listener) {
+        int leftState = STATE_NORMAL;
+        int rightState = STATE_NORMAL;
+        for (int line = 0; line < fileDiff.size(); line++) {
+            FileDiff.LineType type = fileDiff.type(line);
+            switch (type) {
+                case MARKER:
+                    leftState = STATE_NORMAL;
+                    rightState = STATE_NORMAL;
+                    break;
+                case LEFT:
+                    leftState = lexLine(fileDiff.text(line), leftState);
+                    break;
+                case RIGHT:
+                    rightState = lexLine(fileDiff.text(line), rightState);
+                    break;
+                case BOTH_SIDE:
+                    // Both files have the line, it's lexed as the new file has it.
+                    rightState = lexLine(fileDiff.text(line), rightState);
+                    leftState = rightState;
+                    break;
+            }
+            builder.endLine();
+            if (listener != null && (line + 1) % PROGRESS_LINES == 0) {
+                listener.onLinesHighlighted(builder.create());
+            }
+        }
+        return builder.create();
+    }
+
+    /**
+     * Adds the spans of a line of the diff, skipping its leading diff character, and returns the state at its end.
+     */
+    private int lexLine(String line, int state) {
+        text = line;
+        position = 1;
+        while (position < text.length()) {
+            switch (state) {
+                case STATE_BLOCK_COMMENT:
+                    state = closeSpan("*/", KIND_COMMENT, STATE_BLOCK_COMMENT);
+                    continue;
+                case STATE_TRIPLE_DOUBLE_QUOTE:
+                    state = closeSpan("\"\"\"", KIND_STRING, STATE_TRIPLE_DOUBLE_QUOTE);
+                    continue;
+                case STATE_TRIPLE_SINGLE_QUOTE:
+                    state = closeSpan("'''", KIND_STRING, STATE_TRIPLE_SINGLE_QUOTE);
+                    continue;
+                case STATE_TEMPLATE_STRING:
+                    state = closeQuote('`', STATE_TEMPLATE_STRING);
+                    continue;
+            }
+            char c = text.charAt(position);
+            int start = position;
+            if (Character.isWhitespace(c)) {
+                position++;
+            } else if (language.preprocessor && c == '#' && isFirstOnLine(start)) {
+                position = text.length();
+                addSpan(start, KIND_PREPROCESSOR);
+            } else if (text.startsWith(language.lineComment, position)) {
+                position = text.length();
+                addSpan(start, KIND_COMMENT);
+            } else if (language.blockComments && text.startsWith("/*", position)) {
+                position += 2;
+                state = closeSpan(start, "*/", KIND_COMMENT, STATE_BLOCK_COMMENT);
+            } else if (language.tripleQuotes && (text.startsWith("\"\"\"", position) || text.startsWith("'''", position))) {
+                boolean doubleQuote = c == '"';
+                position += 3;
+                state = closeSpan(start, doubleQuote ? "\"\"\"" : "'''", KIND_STRING,
+                        doubleQuote ? STATE_TRIPLE_DOUBLE_QUOTE : STATE_TRIPLE_SINGLE_QUOTE);
+            } else if (language.templateStrings && c == '`') {
+                position++;
+                state = closeQuote(start, '`', STATE_TEMPLATE_STRING);
+            } else if (c == '"' || c == '\'') {
+                position++;
+                // Other strings can't span lines, an unterminated one ends with the line.
+                closeQuote(start, c, STATE_NORMAL);
+            } else if (Character.isDigit(c)) {
+                while (position < text.length() && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+                    position++;
+                }
+                addSpan(start, KIND_NUMBER);
+            } else if (isWordStart(c)) {
+                position++;
+                while (position < text.length() && isWordPart(text.charAt(position))) {
+                    position++;
+                }
+                if (language.keywords.contains(text.substring(start, position))) {
+                    addSpan(start, KIND_KEYWORD);
+                }
+            } else {
+                position++;
+            }
+        }
+        return state;
+    }
+
+    private int closeSpan(String end, int kind, int openState) {
+        return closeSpan(position, end, kind, openState);
+    }
+
+    /**
+     * Adds a span from start to the end of the given terminator, or to the end of the line if it isn't there.
+     */
+    private int closeSpan(int start, String end, int kind, int openState) {
+        int index = text.indexOf(end, position);
+        if (index == -1) {
+            position = text.length();
+            addSpan(start, kind);
+            return openState;
+        }
+        position = index + end.length();
+        addSpan(start, kind);
+        return STATE_NORMAL;
+    }
+
+    private int closeQuote(char quote, int openState) {
+        return closeQuote(position, quote, openState);
+    }
+
+    private int closeQuote(int start, char quote, int openState) {
+        while (position < text.length()) {
+            char c = text.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == quote) {
+                addSpan(start, KIND_STRING);
+                return STATE_NORMAL;
+            }
+        }
+        position = text.length();
+        addSpan(start, KIND_STRING);
+        return openState;
+    }
+
+    private void addSpan(int start, int kind) {
+        if (position > start) {
+            builder.addSpan(start - 1, position - 1, kind);
+        }
+    }
+
+    private boolean isFirstOnLine(int index) {
+        for (int i = 1; i < index; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@';
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+}
@@ -1,28 +1,68 @@
 package com.chrome.codereview.phone;
 
 import android.content.Context;
-import android.util.Pair;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.TextView;
 
+import com.chrome.codereview.CommentIndex;
 import com.chrome.codereview.DiffAdapter;
+import com.chrome.codereview.DiffLineView;
+import com.chrome.codereview.DiffRows;
 import com.chrome.codereview.R;
 import com.chrome.codereview.model.Comment;
 import com.chrome.codereview.model.FileDiff;
-import com.chrome.codereview.utils.ViewUtils;
 
-import java.util.HashMap;
-import java.util.List;
 
 public class UnifiedDiffAdapter extends DiffAdapter implements AdapterView.OnItemClickListener{
 
     public static final int LINE_TYPE = 0;
     public static final int COMMENT_TYPE = 1;
 
-    public UnifiedDiffAdapter(Context context, FileDiff fileDiff, List<Comment> comments) {
-        super(context, fileDiff, comments);
-        resetComments(comments);
+    public static final DiffRows.Layout LAYOUT = new DiffRows.Layout() {
+        @Override
+        public void addRows(DiffRows.Builder builder) {
+            FileDiff fileDiff = builder.fileDiff();
+            for (int line = 0; line < fileDiff.size(); line++) {
+                switch (fileDiff.type(line)) {
+                    case MARKER:
+                        builder.addRow(DiffRows.TYPE_MARKER, line, DiffRows.NO_INDEX);
+                        break;
+                    case BOTH_SIDE:
+                        builder.addRow(DiffRows.TYPE_LINE, line, line);
+                        addComments(builder, fileDiff.leftLineNumber(line), fileDiff.rightLineNumber(line));
+                        break;
+                    case RIGHT:
+                        builder.addRow(DiffRows.TYPE_LINE, DiffRows.NO_INDEX, line);
+                        addComments(builder, DiffRows.NO_INDEX, fileDiff.rightLineNumber(line));
+                        break;
+                    case LEFT:
+                        builder.addRow(DiffRows.TYPE_LINE, line, DiffRows.NO_INDEX);
+                        addComments(builder, fileDiff.leftLineNumber(line), DiffRows.NO_INDEX);
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void addComments(DiffRows.Builder builder, int leftLineNumber, int rightLineNumber) {
+            CommentIndex comments = builder.comments();
+            if (leftLineNumber != DiffRows.NO_INDEX) {
+                for (int slot = comments.first(leftLineNumber, true); slot != CommentIndex.NO_SLOT; slot = comments.next(slot)) {
+                    builder.addRow(DiffRows.TYPE_COMMENTS, slot, DiffRows.NO_INDEX);
+                }
+            }
+            if (rightLineNumber != DiffRows.NO_INDEX) {
+                for (int slot = comments.first(rightLineNumber, false); slot != CommentIndex.NO_SLOT; slot = comments.next(slot)) {
+                    builder.addRow(DiffRows.TYPE_COMMENTS, DiffRows.NO_INDEX, slot);
+                }
+            }
+        }
+    };
+
+    public UnifiedDiffAdapter(Context context, DiffRows rows) {
+        super(context, rows);
     }
 
     @Override
@@ -32,17 +72,22 @@ public class UnifiedDiffAdapter extends DiffAdapter implements AdapterView.OnIte
 
     @Override
     public int getItemViewType(int position) {
-        return linesWithComments.get(position) instanceof FileDiff.DiffLine ? LINE_TYPE : COMMENT_TYPE;
+        return rows.type(position) == DiffRows.TYPE_COMMENTS ? COMMENT_TYPE : LINE_TYPE;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         if (getItemViewType(position) == LINE_TYPE) {
-            return getDiffLineView((FileDiff.DiffLine) getItem(position), convertView, parent);
+            return getDiffLineView(diffLine(position), convertView, parent);
         }
         return getCommentView((Comment) getItem(position), convertView, parent);
     }
 
+    private int diffLine(int position) {
+        int diffLine = rows.firstIndex(position);
+        return diffLine != DiffRows.NO_INDEX ? diffLine : rows.secondIndex(position);
+    }
+
     public View getCommentView(Comment comment, View convertView, ViewGroup parent) {
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.comment_item, parent, false);
@@ -51,13 +96,16 @@ public class UnifiedDiffAdapter extends DiffAdapter implements AdapterView.OnIte
         return convertView;
     }
 
-    public View getDiffLineView(FileDiff.DiffLine line, View convertView, ViewGroup parent) {
+    public View getDiffLineView(int line, View convertView, ViewGroup parent) {
+        if (lineStyle != null) {
+            return getDrawnLineView(line, convertView);
+        }
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.diff_line, parent, false);
         }
 
         int resource;
-        switch (line.type()) {
+        switch (fileDiff.type(line)) {
             case LEFT:
                 resource = R.drawable.diff_removed_line_bg;
                 break;
@@ -71,29 +119,28 @@ public class UnifiedDiffAdapter extends DiffAdapter implements AdapterView.OnIte
                 resource = R.drawable.diff_default_line_bg;
         }
         convertView.setBackgroundDrawable(context.getResources().getDrawable(resource));
-        ViewUtils.setText(convertView, android.R.id.text1, line.text());
+        bindLineText((TextView) convertView.findViewById(android.R.id.text1), line, true);
         return convertView;
     }
 
-    @Override
-    protected void rebuildWithComments(HashMap<Pair<Integer, Boolean>, List<Comment>> lineToComments) {
-        for (FileDiff.DiffLine diffLine : diffLines) {
-            linesWithComments.add(diffLine);
-            switch (diffLine.type()) {
-                case MARKER:
-                    break;
-                case BOTH_SIDE:
-                    addAll(linesWithComments, lineToComments.get(new Pair<Integer, Boolean>(diffLine.leftLineNumber(), true)));
-                    addAll(linesWithComments, lineToComments.get(new Pair<Integer, Boolean>(diffLine.rightLineNumber(), false)));
-                    break;
-                case RIGHT:
-                    addAll(linesWithComments, lineToComments.get(new Pair<Integer, Boolean>(diffLine.rightLineNumber(), false)));
-                    break;
-                case LEFT:
-                    addAll(linesWithComments, lineToComments.get(new Pair<Integer, Boolean>(diffLine.leftLineNumber(), true)));
-                    break;
-            }
+    private View getDrawnLineView(int line, View convertView) {
+        DiffLineView view = lineView(convertView, 1, false);
+        int background;
+        switch (fileDiff.type(line)) {
+            case LEFT:
+                background = DiffLineView.BACKGROUND_REMOVED;
+                break;
+            case RIGHT:
+                background = DiffLineView.BACKGROUND_ADDED;
+                break;
+            case MARKER:
+                background = DiffLineView.BACKGROUND_MARKER;
+                break;
+            default:
+                background = DiffLineView.BACKGROUND_DEFAULT;
         }
+        bindLine(view, 0, line, true, DiffLineView.NO_LINE_NUMBER, background);
+        return view;
     }
 
     @Override
@@ -102,18 +149,13 @@ public class UnifiedDiffAdapter extends DiffAdapter implements AdapterView.OnIte
             return;
         }
 
-        FileDiff.DiffLine diffLine = (FileDiff.DiffLine) getItem(position);
-        if (diffLine.type() == FileDiff.LineType.MARKER) {
+        int diffLine = diffLine(position);
+        FileDiff.LineType type = fileDiff.type(diffLine);
+        if (type == FileDiff.LineType.MARKER) {
             return;
         }
-        int line = diffLine.type() == FileDiff.LineType.LEFT ? diffLine.leftLineNumber() : diffLine.rightLineNumber();
-        commentActionListener.writeComment(line, diffLine.type() == FileDiff.LineType.LEFT);
-    }
-
-    private static void addAll(List<Object> main, List<Comment> add) {
-        if (add != null) {
-            main.addAll(add);
-        }
+        int line = type == FileDiff.LineType.LEFT ? fileDiff.leftLineNumber(diffLine) : fileDiff.rightLineNumber(diffLine);
+        commentActionListener.writeComment(line, type == FileDiff.LineType.LEFT);
     }
 
 }
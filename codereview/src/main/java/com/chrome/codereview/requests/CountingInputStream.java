@@ -0,0 +1,65 @@
+package com.chrome.codereview.requests;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and the time spent waiting for them.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private long count;
+    private long readNanos;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Time spent in reads, in nanoseconds. A consumer that reads as it goes spent the rest of its time processing.
+     */
+    long readNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int result = super.read();
+        readNanos += System.nanoTime() - start;
+        if (result != -1) {
+            count++;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int result = super.read(buffer, offset, length);
+        readNanos += System.nanoTime() - start;
+        if (result > 0) {
+            count += result;
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = super.skip(n);
+        readNanos += System.nanoTime() - start;
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,204 @@
+package com.chrome.codereview.requests;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.SparseArray;
+
+import com.chrome.codereview.model.Issue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local snapshot of a search, kept up to date with searches for issues modified after the newest known one.
+ * Issues that stop matching without being modified (e.g. a removed reviewer) are only dropped by a full resync.
+ * The snapshot is saved to a file together with its high-water mark, so a delta sync also works after a restart of the app.
+ */
+class DeltaSync {
+
+    private static final String SUFFIX = ".json.gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long FULL_SYNC_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Comparator<Issue> NEWEST_FIRST = new Comparator<Issue>() {
+        @Override
+        public int compare(Issue lhs, Issue rhs) {
+            return rhs.lastModified().compareTo(lhs.lastModified());
+        }
+    };
+
+    private final File file;
+    private final String key;
+    private final SearchOptions.CloseState closeState;
+    // Null until the snapshot is read from the file or synced.
+    private SparseArray<Issue> idToIssue;
+    private long cursor;
+    private long lastFullSync;
+    private boolean fileRead;
+
+    DeltaSync(File directory, String key, SearchOptions.CloseState closeState) {
+        // The key is a search URL, the file keeps it to tell searches with the same hash apart.
+        this.file = new File(directory, Integer.toHexString(key.hashCode()) + SUFFIX);
+        this.key = key;
+        this.closeState = closeState;
+    }
+
+    /**
+     * Returns the high-water mark to query from, or null if a full sync is due.
+     */
+    synchronized Date cursor() {
+        if (!fileRead) {
+            fileRead = true;
+            read();
+        }
+        if (idToIssue == null || System.currentTimeMillis() - lastFullSync > FULL_SYNC_INTERVAL) {
+            return null;
+        }
+        return new Date(cursor);
+    }
+
+    synchronized List<Issue> reset(List<Issue> issues) {
+        idToIssue = new SparseArray<Issue>(issues.size());
+        for (Issue issue : issues) {
+            idToIssue.put(issue.id(), issue);
+        }
+        cursor = newestModification(issues, 0);
+        lastFullSync = System.currentTimeMillis();
+        write();
+        return snapshot();
+    }
+
+    synchronized List<Issue> merge(List<Issue> changedIssues) {
+        for (Issue issue : changedIssues) {
+            if (closeState.matches(issue.isClosed())) {
+                idToIssue.put(issue.id(), issue);
+            } else {
+                idToIssue.remove(issue.id());
+            }
+        }
+        cursor = newestModification(changedIssues, cursor);
+        write();
+        return snapshot();
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        SparseArray<Issue> issues = new SparseArray<Issue>();
+        long fileCursor = -1;
+        long fileFullSync = -1;
+        String fileKey = null;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("key")) {
+                        fileKey = reader.nextString();
+                    } else if (name.equals("cursor")) {
+                        fileCursor = reader.nextLong();
+                    } else if (name.equals("fullSync")) {
+                        fileFullSync = reader.nextLong();
+                    } else if (name.equals("issues")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Issue issue = Issue.from(reader);
+                            issues.put(issue.id(), issue);
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return;
+        } catch (RuntimeException e) {
+            // JsonReader reports some malformed input as IllegalStateException.
+            e.printStackTrace();
+            return;
+        }
+        if (!key.equals(fileKey) || fileCursor == -1 || fileFullSync == -1) {
+            return;
+        }
+        idToIssue = issues;
+        cursor = fileCursor;
+        lastFullSync = fileFullSync;
+    }
+
+    /**
+     * Replaces the file at once, so that a failed write leaves the previous snapshot with its own high-water mark.
+     */
+    private void write() {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8"));
+            try {
+                writer.beginObject();
+                writer.name("key").value(key);
+                writer.name("cursor").value(cursor);
+                writer.name("fullSync").value(lastFullSync);
+                writer.name("issues").beginArray();
+                for (int i = 0; i < idToIssue.size(); i++) {
+                    idToIssue.valueAt(i).write(writer);
+                }
+                writer.endArray();
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't write " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            // A snapshot that couldn't be saved must not be used with the high-water mark of an older one.
+            file.delete();
+        }
+    }
+
+    private List<Issue> snapshot() {
+        List<Issue> issues = new ArrayList<Issue>(idToIssue.size());
+        for (int i = 0; i < idToIssue.size(); i++) {
+            issues.add(idToIssue.valueAt(i));
+        }
+        Collections.sort(issues, NEWEST_FIRST);
+        return issues;
+    }
+
+    // Only server timestamps are used for the cursor, so client clock skew can't hide changes.
+    private static long newestModification(List<Issue> issues, long cursor) {
+        for (Issue issue : issues) {
+            cursor = Math.max(cursor, issue.lastModified().getTime());
+        }
+        return cursor;
+    }
+
+}
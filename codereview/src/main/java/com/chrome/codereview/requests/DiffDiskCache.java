@@ -0,0 +1,243 @@
+package com.chrome.codereview.requests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size-bounded LRU cache of raw diff bodies on disk, stored gzipped.
+ * Diffs of an uploaded patch set never change, so entries are never revalidated, only evicted.
+ */
+class DiffDiskCache {
+
+    private static final String SUFFIX = ".diff.gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * A diff being written, it replaces the cached one only when committed.
+     */
+    class Editor {
+
+        private final String name;
+        private final File temp;
+        private final Writer writer;
+        private boolean failed;
+
+        private Editor(String name, File temp, Writer writer) {
+            this.name = name;
+            this.temp = temp;
+            this.writer = writer;
+        }
+
+        /**
+         * Returns a reader that writes everything read from the given one into the cache.
+         * Failures to write only make the entry fail, the reading goes on.
+         */
+        Reader tee(Reader reader) {
+            return new FilterReader(reader) {
+                @Override
+                public int read() throws IOException {
+                    int c = super.read();
+                    if (c != -1) {
+                        write(new char[]{(char) c}, 0, 1);
+                    }
+                    return c;
+                }
+
+                @Override
+                public int read(char[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private void write(char[] buffer, int offset, int count) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.write(buffer, offset, count);
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+
+        void commit() {
+            File file = new File(directory, name);
+            try {
+                writer.close();
+                if (failed || !temp.renameTo(file)) {
+                    throw new IOException("Can't write " + file);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                temp.delete();
+                return;
+            }
+            committed(name, file.length());
+        }
+
+        void abort() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            temp.delete();
+        }
+    }
+
+    private final File directory;
+    private final long quota;
+    // File name to its size, in access order. Read from the directory on the first use.
+    private LinkedHashMap<String, Long> entries;
+    private long size;
+
+    DiffDiskCache(File directory, long quota) {
+        this.directory = directory;
+        this.quota = quota;
+    }
+
+    static String key(int issueId, int patchSetId) {
+        return issueId + "_" + patchSetId;
+    }
+
+    static String key(int issueId, int patchSetId, int patchId) {
+        return issueId + "_" + patchSetId + "_" + patchId;
+    }
+
+    static String baseFileKey(int issueId, int patchSetId, int patchId) {
+        return key(issueId, patchSetId, patchId) + "_base";
+    }
+
+    synchronized boolean contains(String key) {
+        return index().containsKey(key + SUFFIX);
+    }
+
+    /**
+     * Returns a reader of the cached diff, or null if there is no such diff.
+     */
+    Reader open(String key) {
+        String name = key + SUFFIX;
+        synchronized (this) {
+            if (index().get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(directory, name);
+        try {
+            Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+            // Keeps the access order across restarts of the app.
+            file.setLastModified(System.currentTimeMillis());
+            return reader;
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Starts writing a diff for the given key, or returns null if it can't be written.
+     */
+    Editor edit(String key) {
+        String name = key + SUFFIX;
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        synchronized (this) {
+            // The first indexing deletes unfinished writes, so it must not happen in the middle of this one.
+            index();
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            return new Editor(name, temp, new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return null;
+        }
+    }
+
+    synchronized void remove(String key) {
+        String name = key + SUFFIX;
+        Long previous = index().remove(name);
+        if (previous != null) {
+            size -= previous;
+        }
+        new File(directory, name).delete();
+    }
+
+    private synchronized void committed(String name, long length) {
+        Long previous = index().put(name, length);
+        size += length - (previous != null ? previous : 0);
+        trimToQuota();
+    }
+
+    private void trimToQuota() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > quota && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private LinkedHashMap<String, Long> index() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        List<File> diffs = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                diffs.add(file);
+            } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over from a write that didn't finish.
+                file.delete();
+            }
+        }
+        File[] sorted = diffs.toArray(new File[diffs.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : sorted) {
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+        trimToQuota();
+        return entries;
+    }
+
+}
@@ -0,0 +1,366 @@
+package com.chrome.codereview.requests;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link HttpTransport} that sends a second copy of a slow GET to the other host of the app and uses whichever answers first.
+ * A GET that fails before it's slow is sent to the other host at once. A host that keeps failing is skipped for a while,
+ * with the other host used as the primary one.
+ */
+public class HedgedTransport implements HttpTransport {
+
+    /**
+     * Boolean request parameter, requests with it set to true are only sent to the host they were created for.
+     */
+    public static final String DISABLE_HEDGING = "codereview.hedging.disable";
+
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final long MIN_HEDGE_DELAY = 200;
+    private static final long DEFAULT_HEDGE_DELAY = 1500;
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_FAILURES = 3;
+    private static final long HOST_PENALTY = TimeUnit.SECONDS.toMillis(30);
+    // Every request earns a tenth of a hedge, so hedging adds at most about 10% of traffic.
+    private static final double HEDGE_TOKENS_PER_REQUEST = 0.1;
+    private static final double MAX_HEDGE_TOKENS = 10;
+    private static final long THREAD_KEEP_ALIVE = 30;
+
+    private static class LatencyTracker {
+
+        private final long[] samples = new long[100];
+        private int count;
+
+        synchronized void add(long latency) {
+            samples[count % samples.length] = latency;
+            count++;
+        }
+
+        synchronized long percentile(double percentile, long defaultValue) {
+            int size = Math.min(count, samples.length);
+            if (size < MIN_SAMPLES) {
+                return defaultValue;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[(int) (percentile * (size - 1))];
+        }
+    }
+
+    private static class Host {
+
+        private final HttpHost httpHost;
+        private final LatencyTracker latency = new LatencyTracker();
+        private int consecutiveFailures;
+        private long penalizedUntil;
+
+        private Host(Uri uri) {
+            this.httpHost = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        }
+
+        synchronized void succeeded(long latency) {
+            consecutiveFailures = 0;
+            this.latency.add(latency);
+        }
+
+        synchronized void failed() {
+            consecutiveFailures++;
+            if (consecutiveFailures >= MAX_FAILURES) {
+                penalizedUntil = SystemClock.elapsedRealtime() + HOST_PENALTY;
+            }
+        }
+
+        synchronized boolean isHealthy() {
+            return SystemClock.elapsedRealtime() >= penalizedUntil;
+        }
+    }
+
+    private class Attempt implements Callable<HttpResponse> {
+
+        private final HttpUriRequest original;
+        private final HttpUriRequest request;
+        private final HttpContext context;
+        private final Host host;
+        private final AtomicBoolean decided;
+        // Traces of the request and of this attempt, null if the request isn't traced.
+        private final RequestTrace requestTrace;
+        private final RequestTrace trace;
+
+        private Attempt(HttpUriRequest original, HttpUriRequest request, HttpContext context, Host host, AtomicBoolean decided,
+                        RequestTrace requestTrace) {
+            this.original = original;
+            this.request = request;
+            this.context = context;
+            this.host = host;
+            this.decided = decided;
+            this.requestTrace = requestTrace;
+            trace = requestTrace != null ? requestTrace.attempt() : null;
+            // Attempts would otherwise share the parameters, and the connection timings of the loser would overwrite the winner's.
+            HttpParams params = request.getParams().copy();
+            params.setParameter(RequestTrace.PARAMETER, trace);
+            request.setParams(params);
+        }
+
+        /**
+         * Attributes the connection of this attempt to the request, as its response is the one returned.
+         */
+        HttpResponse answered(HttpResponse response) {
+            if (requestTrace != null) {
+                requestTrace.attemptAnswered(trace);
+            }
+            return response;
+        }
+
+        @Override
+        public HttpResponse call() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            HttpResponse response;
+            try {
+                response = transport.execute(request, context);
+            } catch (IOException e) {
+                if (!request.isAborted()) {
+                    host.failed();
+                }
+                throw e;
+            }
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (request != original && isRedirect(statusCode)) {
+                // A host that sends us back to the other one can't answer in its place.
+                consume(response);
+                host.failed();
+                throw new IOException("Redirected from " + host.httpHost);
+            }
+            if (isServerError(statusCode)) {
+                host.failed();
+                // An error doesn't win, it's only used if the other host doesn't answer either.
+                if (decided.get()) {
+                    consume(response);
+                    return null;
+                }
+                return response;
+            }
+            host.succeeded(SystemClock.elapsedRealtime() - start);
+            if (!decided.compareAndSet(false, true)) {
+                consume(response);
+                return null;
+            }
+            return response;
+        }
+    }
+
+    private final HttpTransport transport;
+    private final Host primary;
+    private final Host secondary;
+    private final ThreadPoolExecutor executor;
+    private double hedgeTokens = MAX_HEDGE_TOKENS;
+
+    /**
+     * @param threads most attempts sent at once, more than the connections to both hosts would only wait for a connection
+     */
+    public HedgedTransport(HttpTransport transport, Uri primary, Uri secondary, int threads) {
+        this.transport = transport;
+        this.primary = new Host(primary);
+        this.secondary = new Host(secondary);
+        executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        if (!isHedgeable(request)) {
+            return transport.execute(request, context);
+        }
+        earnHedgeToken();
+        Host first = primary.isHealthy() || !secondary.isHealthy() ? primary : secondary;
+        Host second = first == primary ? secondary : primary;
+        HttpUriRequest firstRequest = first.httpHost.getHostName().equals(request.getURI().getHost()) ? request : copy(request, first);
+        RequestTrace trace = RequestTrace.from(request.getParams());
+        AtomicBoolean decided = new AtomicBoolean();
+        CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(executor);
+        Attempt firstAttempt = new Attempt(request, firstRequest, new BasicHttpContext(context), first, decided, trace);
+        Attempt secondAttempt = null;
+        HttpUriRequest secondRequest = null;
+        Future<HttpResponse> firstFuture = completionService.submit(firstAttempt);
+        int pending = 1;
+        ExecutionException failure = null;
+        // Server error of an attempt, returned if no attempt does better.
+        HttpResponse errorResponse = null;
+        Attempt errorAttempt = null;
+        try {
+            Future<HttpResponse> finished = completionService.poll(hedgeDelay(first), TimeUnit.MILLISECONDS);
+            if (finished == null) {
+                secondAttempt = hedge(completionService, request, context, second, decided, trace);
+                if (secondAttempt != null) {
+                    secondRequest = secondAttempt.request;
+                    pending++;
+                }
+            }
+            while (pending > 0) {
+                if (finished == null) {
+                    finished = completionService.take();
+                }
+                pending--;
+                try {
+                    // Null means the other attempt has already won.
+                    HttpResponse response = finished.get();
+                    Attempt attempt = finished == firstFuture ? firstAttempt : secondAttempt;
+                    if (response != null && !isServerError(response.getStatusLine().getStatusCode())) {
+                        if (secondRequest != null) {
+                            (finished == firstFuture ? secondRequest : firstRequest).abort();
+                        }
+                        if (errorResponse != null) {
+                            consume(errorResponse);
+                        }
+                        return attempt.answered(response);
+                    }
+                    if (response != null) {
+                        if (errorResponse != null) {
+                            consume(errorResponse);
+                        }
+                        errorResponse = response;
+                        errorAttempt = attempt;
+                    }
+                } catch (ExecutionException e) {
+                    failure = e;
+                }
+                finished = null;
+                if (secondRequest == null) {
+                    // The first attempt failed without a hedge, e.g. before it was slow, so the other host is tried right away.
+                    secondAttempt = hedge(completionService, request, context, second, decided, trace);
+                    if (secondAttempt != null) {
+                        secondRequest = secondAttempt.request;
+                        pending++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            firstRequest.abort();
+            if (secondRequest != null) {
+                secondRequest.abort();
+            }
+            throw new InterruptedIOException();
+        }
+        if (errorResponse != null) {
+            return errorAttempt.answered(errorResponse);
+        }
+        throw failure != null ? asIOException(failure) : new IOException("No response");
+    }
+
+    /**
+     * Sends the request to the second host if it's healthy and a hedge is affordable, returns the sent attempt or null.
+     */
+    private Attempt hedge(CompletionService<HttpResponse> completionService, HttpUriRequest request, HttpContext context,
+                          Host second, AtomicBoolean decided, RequestTrace trace) throws IOException {
+        if (!second.isHealthy() || !takeHedgeToken()) {
+            return null;
+        }
+        Attempt attempt = new Attempt(request, copy(request, second), new BasicHttpContext(context), second, decided, trace);
+        completionService.submit(attempt);
+        return attempt;
+    }
+
+    @Override
+    public PoolStats stats() {
+        return transport.stats();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        transport.shutdown();
+    }
+
+    private boolean isHedgeable(HttpUriRequest request) {
+        if (!(request instanceof HttpGet) || request.getParams().getBooleanParameter(DISABLE_HEDGING, false)) {
+            return false;
+        }
+        String host = request.getURI().getHost();
+        return primary.httpHost.getHostName().equals(host) || secondary.httpHost.getHostName().equals(host);
+    }
+
+    private static long hedgeDelay(Host host) {
+        return Math.max(MIN_HEDGE_DELAY, host.latency.percentile(HEDGE_PERCENTILE, DEFAULT_HEDGE_DELAY));
+    }
+
+    private synchronized void earnHedgeToken() {
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + HEDGE_TOKENS_PER_REQUEST);
+    }
+
+    private synchronized boolean takeHedgeToken() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens--;
+        return true;
+    }
+
+    private static boolean isServerError(int statusCode) {
+        return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode >= HttpStatus.SC_MULTIPLE_CHOICES && statusCode < HttpStatus.SC_BAD_REQUEST && statusCode != HttpStatus.SC_NOT_MODIFIED;
+    }
+
+    private static void consume(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+    }
+
+    private static HttpUriRequest copy(HttpUriRequest request, Host host) throws IOException {
+        HttpGet copy;
+        try {
+            copy = new HttpGet(URIUtils.rewriteURI(request.getURI(), host.httpHost));
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage());
+        }
+        for (Header header : request.getAllHeaders()) {
+            copy.addHeader(header);
+        }
+        copy.setParams(request.getParams());
+        return copy;
+    }
+
+    private static IOException asIOException(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.chrome.codereview.requests;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Network layer used by {@link ServerCaller} to execute requests.
+ */
+public interface HttpTransport {
+
+    HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+
+    PoolStats stats();
+
+    void shutdown();
+
+}
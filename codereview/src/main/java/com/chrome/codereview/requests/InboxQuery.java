@@ -0,0 +1,132 @@
+package com.chrome.codereview.requests;
+
+import android.util.SparseArray;
+
+import com.chrome.codereview.model.Issue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the owner, cc and reviewer searches of a user by issue id, keeping the newest copy of every issue.
+ * Messages of an issue that is already known are skipped while parsing.
+ */
+public class InboxQuery {
+
+    public enum Role {
+        OWNER,
+        CC,
+        REVIEWER
+    }
+
+    public static class Result {
+
+        private final List<Issue> issues;
+        private final SparseArray<EnumSet<Role>> idToRoles;
+
+        private Result(List<Issue> issues, SparseArray<EnumSet<Role>> idToRoles) {
+            this.issues = issues;
+            this.idToRoles = idToRoles;
+        }
+
+        public List<Issue> issues() {
+            return issues;
+        }
+
+        public Set<Role> roles(int issueId) {
+            EnumSet<Role> roles = idToRoles.get(issueId);
+            return roles != null ? Collections.unmodifiableSet(roles) : Collections.<Role>emptySet();
+        }
+    }
+
+    class RoleListener implements ServerCaller.SearchListener, Issue.MessagesFilter {
+
+        private final Role role;
+
+        private RoleListener(Role role) {
+            this.role = role;
+        }
+
+        @Override
+        public void onIssueLoaded(Issue issue) {
+            merge(issue, role);
+        }
+
+        @Override
+        public boolean needsMessages(int issueId) {
+            synchronized (InboxQuery.this) {
+                Issue known = idToIssue.get(issueId);
+                return known == null || known.messagesSkipped();
+            }
+        }
+    }
+
+    private static final Comparator<Issue> NEWEST_FIRST = new Comparator<Issue>() {
+        @Override
+        public int compare(Issue lhs, Issue rhs) {
+            return rhs.lastModified().compareTo(lhs.lastModified());
+        }
+    };
+
+    private final SparseArray<Issue> idToIssue = new SparseArray<Issue>();
+    private final SparseArray<EnumSet<Role>> idToRoles = new SparseArray<EnumSet<Role>>();
+
+    RoleListener listenerFor(Role role) {
+        return new RoleListener(role);
+    }
+
+    private synchronized void merge(Issue issue, Role role) {
+        EnumSet<Role> roles = idToRoles.get(issue.id());
+        if (roles == null) {
+            roles = EnumSet.noneOf(Role.class);
+            idToRoles.put(issue.id(), roles);
+        }
+        roles.add(role);
+
+        Issue known = idToIssue.get(issue.id());
+        if (known == null || isBetter(issue, known)) {
+            idToIssue.put(issue.id(), issue);
+        }
+    }
+
+    private static boolean isBetter(Issue candidate, Issue known) {
+        int order = candidate.lastModified().compareTo(known.lastModified());
+        if (order != 0) {
+            return order > 0;
+        }
+        return known.messagesSkipped() && !candidate.messagesSkipped();
+    }
+
+    /**
+     * Issues whose newest copy arrived without messages; they have to be loaded separately.
+     */
+    synchronized List<Integer> incompleteIssues() {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < idToIssue.size(); i++) {
+            if (idToIssue.valueAt(i).messagesSkipped()) {
+                result.add(idToIssue.keyAt(i));
+            }
+        }
+        return result;
+    }
+
+    synchronized void replace(Issue issue) {
+        if (issue != null && idToIssue.get(issue.id()) != null) {
+            idToIssue.put(issue.id(), issue);
+        }
+    }
+
+    synchronized Result result() {
+        List<Issue> issues = new ArrayList<Issue>(idToIssue.size());
+        for (int i = 0; i < idToIssue.size(); i++) {
+            issues.add(idToIssue.valueAt(i));
+        }
+        Collections.sort(issues, NEWEST_FIRST);
+        return new Result(issues, idToRoles.clone());
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.chrome.codereview.requests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+
+/**
+ * Fixed-size histograms of request timings and payload sizes, per endpoint.
+ */
+public class NetworkMetrics {
+
+    public enum Endpoint {
+        SEARCH,
+        ISSUE,
+        PATCHSET,
+        DIFF,
+        PUBLISH,
+        INLINE_DRAFT,
+        EDIT_FLAGS,
+        XSRF,
+        OTHER
+    }
+
+    public enum Metric {
+        DNS("ms"),
+        CONNECT("ms"),
+        TTFB("ms"),
+        TRANSFER("ms"),
+        PARSE("ms"),
+        COMPRESSED_BYTES("B"),
+        DECOMPRESSED_BYTES("B");
+
+        final String unit;
+
+        Metric(String unit) {
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * Histogram with power of two buckets: bucket i counts values below 2^i that don't fit in the previous bucket.
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final long[] buckets = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        synchronized void add(long value) {
+            value = Math.max(0, value);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets[bucket]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        public synchronized long count() {
+            return count;
+        }
+
+        public synchronized long mean() {
+            return count != 0 ? sum / count : 0;
+        }
+
+        public synchronized long max() {
+            return max;
+        }
+
+        /**
+         * Upper bound of the bucket that holds the given percentile.
+         */
+        public synchronized long percentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen != 0) {
+                    return Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    private final EnumMap<Endpoint, EnumMap<Metric, Histogram>> histograms = new EnumMap<Endpoint, EnumMap<Metric, Histogram>>(Endpoint.class);
+
+    public NetworkMetrics() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            EnumMap<Metric, Histogram> metrics = new EnumMap<Metric, Histogram>(Metric.class);
+            for (Metric metric : Metric.values()) {
+                metrics.put(metric, new Histogram());
+            }
+            histograms.put(endpoint, metrics);
+        }
+    }
+
+    void record(Endpoint endpoint, Metric metric, long value) {
+        histograms.get(endpoint).get(metric).add(value);
+    }
+
+    public Histogram histogram(Endpoint endpoint, Metric metric) {
+        return histograms.get(endpoint).get(metric);
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Endpoint endpoint : Endpoint.values()) {
+            if (histogram(endpoint, Metric.TTFB).count() == 0) {
+                continue;
+            }
+            builder.append(endpoint).append('\n');
+            builder.append(String.format(Locale.US, "  %-20s %6s %8s %8s %8s %8s %8s%n", "", "count", "mean", "p50", "p90", "p99", "max"));
+            for (Metric metric : Metric.values()) {
+                Histogram histogram = histogram(endpoint, metric);
+                if (histogram.count() == 0) {
+                    continue;
+                }
+                builder.append(String.format(Locale.US, "  %-20s %6d %8d %8d %8d %8d %8d%n", metric + ", " + metric.unit, histogram.count(), histogram.mean(),
+                        histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99), histogram.max()));
+            }
+        }
+        return builder.toString();
+    }
+
+    public File dumpTo(File directory) throws IOException {
+        File file = new File(directory, "network_metrics_" + System.currentTimeMillis() + ".txt");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(dump());
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+}
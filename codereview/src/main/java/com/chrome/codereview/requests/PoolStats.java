@@ -0,0 +1,45 @@
+package com.chrome.codereview.requests;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class PoolStats {
+
+    private final int executedRequests;
+    private final int openedConnections;
+    private final int pooledConnections;
+    private final Map<String, Integer> hostToPooledConnections;
+
+    public PoolStats(int executedRequests, int openedConnections, int pooledConnections, Map<String, Integer> hostToPooledConnections) {
+        this.executedRequests = executedRequests;
+        this.openedConnections = openedConnections;
+        this.pooledConnections = pooledConnections;
+        this.hostToPooledConnections = Collections.unmodifiableMap(hostToPooledConnections);
+    }
+
+    public int executedRequests() {
+        return executedRequests;
+    }
+
+    public int openedConnections() {
+        return openedConnections;
+    }
+
+    public int reusedConnections() {
+        return Math.max(0, executedRequests - openedConnections);
+    }
+
+    public int pooledConnections() {
+        return pooledConnections;
+    }
+
+    public int pooledConnections(String host) {
+        Integer connections = hostToPooledConnections.get(host);
+        return connections != null ? connections : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + executedRequests + ", opened: " + openedConnections + ", reused: " + reusedConnections() + ", pooled: " + pooledConnections + " " + hostToPooledConnections;
+    }
+}
@@ -0,0 +1,184 @@
+package com.chrome.codereview.requests;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HttpTransport} backed by a shared pool of keep-alive connections with per-host limits.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final int HTTPS_PORT = 443;
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    private static class TrackingSocketFactory implements LayeredSocketFactory {
+
+        private final LayeredSocketFactory socketFactory;
+        private final AtomicInteger openedConnections = new AtomicInteger();
+
+        private TrackingSocketFactory(LayeredSocketFactory socketFactory) {
+            this.socketFactory = socketFactory;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return socketFactory.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            // The plain socket is connected here and layered with TLS once connected.
+            return new Socket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException, ConnectTimeoutException {
+            if (socket == null) {
+                socket = createSocket();
+            }
+            if (localAddress != null || localPort > 0) {
+                socket.bind(new InetSocketAddress(localAddress, Math.max(localPort, 0)));
+            }
+            long start = SystemClock.elapsedRealtime();
+            // The connection goes to the address resolved here, so the timed lookup is the one it used.
+            InetAddress address = InetAddress.getByName(host);
+            long resolved = SystemClock.elapsedRealtime();
+            Socket connected;
+            try {
+                socket.connect(new InetSocketAddress(address, port), HttpConnectionParams.getConnectionTimeout(params));
+                socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+                // Verifies the certificate against the host name, not the address.
+                connected = socketFactory.createSocket(socket, host, port, true);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                throw new ConnectTimeoutException("Connect to " + host + ":" + port + " timed out");
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            openedConnections.incrementAndGet();
+            RequestTrace trace = RequestTrace.from(params);
+            if (trace != null) {
+                trace.connected(resolved - start, SystemClock.elapsedRealtime() - resolved);
+            }
+            return connected;
+        }
+
+        @Override
+        public boolean isSecure(Socket socket) throws IllegalArgumentException {
+            return socketFactory.isSecure(socket);
+        }
+    }
+
+    private final DefaultHttpClient httpClient;
+    private final ThreadSafeClientConnManager connectionManager;
+    private final TrackingSocketFactory sslSocketFactory;
+    private final TransportConfig config;
+    private final AtomicInteger executedRequests = new AtomicInteger();
+
+    public PooledHttpTransport(Context context, TransportConfig config) {
+        this.config = config;
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, config.connectionTimeoutMillis());
+        HttpConnectionParams.setSoTimeout(params, config.socketTimeoutMillis());
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        HttpClientParams.setRedirecting(params, false);
+
+        ConnManagerParams.setMaxTotalConnections(params, config.maxTotalConnections());
+        ConnManagerParams.setTimeout(params, config.poolTimeoutMillis());
+        ConnPerRouteBean connPerRoute = new ConnPerRouteBean(config.maxConnectionsPerHost());
+        for (Map.Entry<String, Integer> entry : config.hostToMaxConnections().entrySet()) {
+            for (HttpRoute route : routesFor(entry.getKey())) {
+                connPerRoute.setMaxForRoute(route, entry.getValue());
+            }
+        }
+        ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+
+        sslSocketFactory = new TrackingSocketFactory(SSLCertificateSocketFactory.getHttpSocketFactory(config.socketTimeoutMillis(), new SSLSessionCache(context)));
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", sslSocketFactory, HTTPS_PORT));
+
+        connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+
+            private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = serverStrategy.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, PooledHttpTransport.this.config.keepAliveMillis()) : PooledHttpTransport.this.config.keepAliveMillis();
+            }
+        });
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(config.keepAliveMillis(), TimeUnit.MILLISECONDS);
+        executedRequests.incrementAndGet();
+        return httpClient.execute(request, context);
+    }
+
+    @Override
+    public PoolStats stats() {
+        Map<String, Integer> hostToPooledConnections = new HashMap<String, Integer>();
+        for (String host : config.hostToMaxConnections().keySet()) {
+            int connections = 0;
+            for (HttpRoute route : routesFor(host)) {
+                connections += connectionManager.getConnectionsInPool(route);
+            }
+            hostToPooledConnections.put(host, connections);
+        }
+        return new PoolStats(executedRequests.get(), sslSocketFactory.openedConnections.get(), connectionManager.getConnectionsInPool(), hostToPooledConnections);
+    }
+
+    @Override
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    private static HttpRoute[] routesFor(String host) {
+        // Routes planned from request URIs keep the implicit port (-1), so both forms are registered.
+        return new HttpRoute[]{
+                new HttpRoute(new HttpHost(host, -1, "https"), null, true),
+                new HttpRoute(new HttpHost(host, HTTPS_PORT, "https"), null, true)
+        };
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.chrome.codereview.requests;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs network work on a fixed set of threads, always picking the most important queued task whose class is below its concurrency cap.
+ * Work submitted from a scheduler thread runs inline, so nested tasks can't deadlock the pool.
+ */
+public class RequestScheduler {
+
+    public enum Priority {
+        INTERACTIVE,
+        PREFETCH,
+        BACKGROUND
+    }
+
+    private class Task<T> extends FutureTask<T> {
+
+        private final Object key;
+        private Priority priority;
+        private boolean queued;
+
+        private Task(Object key, Priority priority, Callable<T> callable) {
+            super(callable);
+            this.key = key;
+            this.priority = priority;
+        }
+
+        @Override
+        protected void done() {
+            if (key == null) {
+                return;
+            }
+            synchronized (queues) {
+                if (keyToTask.get(key) == this) {
+                    keyToTask.remove(key);
+                }
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private Worker(int number) {
+            super("RequestScheduler-" + number);
+        }
+
+        @Override
+        public void run() {
+            IS_WORKER.set(true);
+            while (true) {
+                Task<?> task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    finished(task);
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<Boolean> IS_WORKER = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private final EnumMap<Priority, ArrayDeque<Task<?>>> queues = new EnumMap<Priority, ArrayDeque<Task<?>>>(Priority.class);
+    private final EnumMap<Priority, Integer> running = new EnumMap<Priority, Integer>(Priority.class);
+    private final EnumMap<Priority, Integer> caps = new EnumMap<Priority, Integer>(Priority.class);
+    private final HashMap<Object, Task<?>> keyToTask = new HashMap<Object, Task<?>>();
+
+    /**
+     * @param threads number of threads, which is also the cap of {@link Priority#INTERACTIVE} tasks
+     * @param prefetchCap max number of concurrently running {@link Priority#PREFETCH} tasks
+     * @param backgroundCap max number of concurrently running {@link Priority#BACKGROUND} tasks
+     */
+    public RequestScheduler(int threads, int prefetchCap, int backgroundCap) {
+        if (threads <= 0 || prefetchCap <= 0 || backgroundCap <= 0) {
+            throw new IllegalArgumentException();
+        }
+        caps.put(Priority.INTERACTIVE, threads);
+        caps.put(Priority.PREFETCH, Math.min(prefetchCap, threads));
+        caps.put(Priority.BACKGROUND, Math.min(backgroundCap, threads));
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<Task<?>>());
+            running.put(priority, 0);
+        }
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public <T> Future<T> submit(Priority priority, Callable<T> callable) {
+        Task<T> task = new Task<T>(null, priority, callable);
+        if (IS_WORKER.get()) {
+            task.run();
+            return task;
+        }
+        synchronized (queues) {
+            enqueue(task);
+        }
+        return task;
+    }
+
+    public <T> T execute(Priority priority, Callable<T> callable) throws ExecutionException, InterruptedException {
+        Future<T> future = submit(priority, callable);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the callable and waits for the result, unless a task with the same key is already queued or running.
+     * Then that task is promoted to the given priority if needed, and its result is shared.
+     * Shared tasks are tracked here rather than by a separate in-flight map, since joining one has to see whether it is
+     * still queued, to promote it or to let a waiting worker run it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T executeShared(Object key, Priority priority, Callable<T> callable) throws ExecutionException, InterruptedException {
+        Task<T> task;
+        boolean runInline = false;
+        synchronized (queues) {
+            task = (Task<T>) keyToTask.get(key);
+            if (task == null) {
+                task = new Task<T>(key, priority, callable);
+                keyToTask.put(key, task);
+                if (IS_WORKER.get()) {
+                    runInline = true;
+                } else {
+                    enqueue(task);
+                }
+            } else if (task.queued && IS_WORKER.get()) {
+                // A worker waiting for a queued task could starve the pool, so it takes the task over.
+                queues.get(task.priority).remove(task);
+                task.queued = false;
+                runInline = true;
+            } else {
+                promote(task, priority);
+            }
+        }
+        if (runInline) {
+            task.run();
+        }
+        return task.get();
+    }
+
+    /**
+     * Moves a queued shared task to a more important class, e.g. when a prefetched page becomes visible.
+     */
+    public void promote(Object key, Priority priority) {
+        synchronized (queues) {
+            Task<?> task = keyToTask.get(key);
+            if (task != null) {
+                promote(task, priority);
+            }
+        }
+    }
+
+    private void promote(Task<?> task, Priority priority) {
+        if (!task.queued || task.priority.compareTo(priority) <= 0) {
+            return;
+        }
+        queues.get(task.priority).remove(task);
+        task.priority = priority;
+        queues.get(priority).addLast(task);
+        queues.notifyAll();
+    }
+
+    private void enqueue(Task<?> task) {
+        task.queued = true;
+        queues.get(task.priority).addLast(task);
+        queues.notifyAll();
+    }
+
+    private Task<?> take() throws InterruptedException {
+        synchronized (queues) {
+            while (true) {
+                for (Priority priority : Priority.values()) {
+                    ArrayDeque<Task<?>> queue = queues.get(priority);
+                    while (!queue.isEmpty() && queue.peekFirst().isCancelled()) {
+                        queue.pollFirst().queued = false;
+                    }
+                    if (!queue.isEmpty() && running.get(priority) < caps.get(priority)) {
+                        Task<?> task = queue.pollFirst();
+                        task.queued = false;
+                        running.put(priority, running.get(priority) + 1);
+                        return task;
+                    }
+                }
+                queues.wait();
+            }
+        }
+    }
+
+    private void finished(Task<?> task) {
+        synchronized (queues) {
+            running.put(task.priority, running.get(task.priority) - 1);
+            queues.notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.chrome.codereview.requests;
+
+import android.os.SystemClock;
+
+import org.apache.http.params.HttpParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and sizes of a single request, recorded into {@link NetworkMetrics} once the request is finished.
+ * The trace is passed to the connection layer as a request parameter, so DNS and connect times of new connections are attributed to it.
+ * A request sent more than once, e.g. by {@link HedgedTransport}, gives each attempt its own trace and keeps the connection of the one that answered.
+ */
+class RequestTrace {
+
+    static final String PARAMETER = "codereview.request.trace";
+
+    private final NetworkMetrics metrics;
+    private final NetworkMetrics.Endpoint endpoint;
+    private final long start = SystemClock.elapsedRealtime();
+    private long dns = -1;
+    private long connect = -1;
+    private long ttfb = -1;
+    private long transfer = -1;
+    private long parseStart = -1;
+    private long parse = -1;
+    private long decompressedBytes = -1;
+    private CountingInputStream compressedContent;
+    private boolean finished;
+
+    RequestTrace(NetworkMetrics metrics, NetworkMetrics.Endpoint endpoint) {
+        this.metrics = metrics;
+        this.endpoint = endpoint;
+    }
+
+    static RequestTrace from(HttpParams params) {
+        Object trace = params != null ? params.getParameter(PARAMETER) : null;
+        return trace instanceof RequestTrace ? (RequestTrace) trace : null;
+    }
+
+    synchronized void connected(long dns, long connect) {
+        this.dns = dns;
+        this.connect = connect;
+    }
+
+    /**
+     * Trace for one attempt of the request, only its connection timings are used, see {@link #attemptAnswered(RequestTrace)}.
+     */
+    RequestTrace attempt() {
+        return new RequestTrace(metrics, endpoint);
+    }
+
+    void attemptAnswered(RequestTrace attempt) {
+        long attemptDns;
+        long attemptConnect;
+        synchronized (attempt) {
+            attemptDns = attempt.dns;
+            attemptConnect = attempt.connect;
+        }
+        connected(attemptDns, attemptConnect);
+    }
+
+    synchronized void responseReceived() {
+        ttfb = SystemClock.elapsedRealtime() - start;
+    }
+
+    synchronized void contentOpened(CountingInputStream compressedContent) {
+        this.compressedContent = compressedContent;
+    }
+
+    synchronized void bodyRead(long decompressedBytes) {
+        transfer = SystemClock.elapsedRealtime() - start - Math.max(0, ttfb);
+        this.decompressedBytes = decompressedBytes;
+    }
+
+    /**
+     * For a body parsed as it was read, the time spent reading it is the transfer time and the rest is the parse time.
+     */
+    synchronized void bodyParsed(CountingInputStream content) {
+        long total = SystemClock.elapsedRealtime() - start - Math.max(0, ttfb);
+        transfer = Math.min(total, TimeUnit.NANOSECONDS.toMillis(content.readNanos()));
+        parse = total - transfer;
+        decompressedBytes = content.count();
+    }
+
+    synchronized void parseStarted() {
+        parseStart = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void parseFinished() {
+        parse = SystemClock.elapsedRealtime() - parseStart;
+    }
+
+    synchronized void finish() {
+        if (finished || ttfb == -1) {
+            return;
+        }
+        finished = true;
+        record(NetworkMetrics.Metric.DNS, dns);
+        record(NetworkMetrics.Metric.CONNECT, connect);
+        record(NetworkMetrics.Metric.TTFB, ttfb);
+        record(NetworkMetrics.Metric.TRANSFER, transfer);
+        record(NetworkMetrics.Metric.PARSE, parse);
+        record(NetworkMetrics.Metric.COMPRESSED_BYTES, compressedContent != null ? compressedContent.count() : -1);
+        record(NetworkMetrics.Metric.DECOMPRESSED_BYTES, decompressedBytes);
+    }
+
+    private void record(NetworkMetrics.Metric metric, long value) {
+        if (value >= 0) {
+            metrics.record(endpoint, metric, value);
+        }
+    }
+
+}
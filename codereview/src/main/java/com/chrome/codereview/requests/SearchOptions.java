@@ -2,6 +2,10 @@ package com.chrome.codereview.requests;
 
 import android.net.Uri;
 
+import com.chrome.codereview.utils.DateUtils;
+
+import java.util.Date;
+
 /**
  * Created by sergeyv on 13/4/14.
  */
@@ -23,6 +27,10 @@ public class SearchOptions {
             return Integer.toString(value);
         }
 
+        public boolean matches(boolean closed) {
+            return this == UNKNOWN || (this == CLOSED) == closed;
+        }
+
     }
 
     public static class Builder {
@@ -32,6 +40,7 @@ public class SearchOptions {
         private String reviewer;
         private String cc;
         private int limit = 1000;
+        private Date modifiedAfter;
 
         public Builder owner(String owner) {
             this.owner = owner;
@@ -66,8 +75,13 @@ public class SearchOptions {
             return this;
         }
 
+        public Builder modifiedAfter(Date modifiedAfter) {
+            this.modifiedAfter = modifiedAfter;
+            return this;
+        }
+
         public SearchOptions create() {
-            return new SearchOptions(owner, closeState, withMessages, reviewer, cc, limit);
+            return new SearchOptions(owner, closeState, withMessages, reviewer, cc, limit, modifiedAfter);
         }
 
     }
@@ -78,14 +92,28 @@ public class SearchOptions {
     private final String reviewer;
     private final String cc;
     private final int limit;
+    private final Date modifiedAfter;
 
-    public SearchOptions(String owner, CloseState closeState, boolean withMessages, String reviewer, String cc, int limit) {
+    public SearchOptions(String owner, CloseState closeState, boolean withMessages, String reviewer, String cc, int limit, Date modifiedAfter) {
         this.owner = owner;
         this.closeState = closeState;
         this.withMessages = withMessages;
         this.reviewer = reviewer;
         this.cc = cc;
         this.limit = limit;
+        this.modifiedAfter = modifiedAfter;
+    }
+
+    public Builder buildUpon() {
+        Builder builder = new Builder().owner(owner).closeState(closeState).reviewer(reviewer).cc(cc).limit(limit).modifiedAfter(modifiedAfter);
+        if (withMessages) {
+            builder.withMessages();
+        }
+        return builder;
+    }
+
+    public CloseState closeState() {
+        return closeState;
     }
 
     public void fillParameters(Uri.Builder builder) {
@@ -113,6 +141,10 @@ public class SearchOptions {
             builder.appendQueryParameter("cc", cc);
         }
 
+        if (modifiedAfter != null) {
+            builder.appendQueryParameter("modified_after", DateUtils.formatDate(modifiedAfter));
+        }
+
         builder.appendQueryParameter("limit", limit + "");
     }
 
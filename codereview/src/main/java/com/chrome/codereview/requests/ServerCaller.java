@@ -6,18 +6,22 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.LruCache;
 
 import com.chrome.codereview.CodereviewApplication;
 import com.chrome.codereview.data.IssueStateProvider;
 import com.chrome.codereview.model.Comment;
 import com.chrome.codereview.model.Diff;
+import com.chrome.codereview.model.DiffParser;
 import com.chrome.codereview.model.FileDiff;
+import com.chrome.codereview.model.Interdiff;
 import com.chrome.codereview.model.Issue;
 import com.chrome.codereview.model.PatchSet;
+import com.chrome.codereview.model.PatchSetFile;
 import com.chrome.codereview.model.PublishData;
 import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.GoogleAuthUtil;
@@ -33,6 +37,7 @@ import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
@@ -41,28 +46,39 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.URI;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by sergeyv on 16/4/14.
@@ -72,6 +88,73 @@ public class ServerCaller {
     private static class NotFoundException extends IOException {
     }
 
+    /**
+     * Counts the bytes of the response body as they come from the wire, before any decompression.
+     */
+    private static class TracedEntity extends HttpEntityWrapper {
+
+        private final RequestTrace trace;
+
+        private TracedEntity(HttpEntity entity, RequestTrace trace) {
+            super(entity);
+            this.trace = trace;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            CountingInputStream content = new CountingInputStream(super.getContent());
+            trace.contentOpened(content);
+            return content;
+        }
+    }
+
+    private interface JSONParser<T> {
+        T parse(JSONObject jsonObject) throws JSONException, ParseException;
+    }
+
+    private interface DiffStreamParser<T> {
+        T parse(Reader reader) throws IOException;
+    }
+
+    private static final JSONParser<JSONObject> RAW_JSON_PARSER = new JSONParser<JSONObject>() {
+        @Override
+        public JSONObject parse(JSONObject jsonObject) {
+            return jsonObject;
+        }
+    };
+
+    private static final JSONParser<Issue> ISSUE_PARSER = new JSONParser<Issue>() {
+        @Override
+        public Issue parse(JSONObject jsonObject) {
+            return Issue.fromJSONObject(jsonObject);
+        }
+    };
+
+    private static final Object SEARCH_RESULTS_MODEL = new Object();
+
+    public interface SearchListener {
+        void onIssueLoaded(Issue issue);
+    }
+
+    public interface DiffProgressListener {
+
+        /**
+         * Called from a network thread with the hunks of the file that are already downloaded.
+         */
+        void onDiffProgress(FileDiff partialDiff);
+    }
+
+    private static class DiffProgress {
+
+        private final String fileName;
+        private final DiffProgressListener listener;
+
+        private DiffProgress(String fileName, DiffProgressListener listener) {
+            this.fileName = fileName;
+            this.listener = listener;
+        }
+    }
+
     public enum State {
         OK,
         NEEDS_ACCOUNT,
@@ -93,28 +176,64 @@ public class ServerCaller {
 
     private static final Uri SEARCH_URL = BASE_URL.buildUpon().appendPath("search").appendQueryParameter("format", "json").build();
     private static final Uri XSRF_URL = BASE_URL.buildUpon().appendPath("xsrf_token").build();
-    private static final Uri AUTH_COOKIE_URL = BASE_URL.buildUpon().appendEncodedPath("_ah/login").appendQueryParameter("continue", "nowhere").build();
+    private static final String AUTH_COOKIE_PATH = "_ah/login";
     private static final Uri ISSUE_API_URL = BASE_URL.buildUpon().appendPath("api").build();
     private static final Uri INLINE_DRAFT = BASE_URL.buildUpon().appendPath("inline_draft").build();
     private static final String PUBLISH = "publish";
     private static final String ISSUE_PATH = "issue";
     private static final Uri DOWNLOAD_DIFF = BASE_URL.buildUpon().appendPath("download").build();
     private static final String COMMIT_PATH = "edit_flags";
-    private static final int N_THREADS = 3;
+    // Raw contents of a patch, the last segment is 0 for the base file and 1 for the new one.
+    private static final String CONTENT_PATH = "image";
+    private static final String BASE_CONTENT = "0";
+    private static final Pattern MESSAGE_ID_INPUT = Pattern.compile("<input[^>]*name=\"message_id\"[^>]*>");
+    private static final Pattern INPUT_VALUE = Pattern.compile("value=\"([^\"]*)\"");
+    private static final int VALIDATOR_CACHE_SIZE = 4 * 1024 * 1024;
+    // Whole patch set diffs are big, only the one being reviewed and one more (e.g. the previous upload) are kept.
+    private static final int PATCH_SET_DIFF_CACHE_SIZE = 2;
+    private static final int INTERDIFF_CACHE_SIZE = 8;
+    private static final int BASE_FILE_CACHE_SIZE = 4;
+    private static final String DIFF_CACHE_DIRECTORY = "diffs";
+    private static final String DELTA_SYNC_DIRECTORY = "delta_sync";
+    // Fixed, there is no setting for it. Enough for the diffs of a few large patch sets.
+    private static final long DIFF_DISK_CACHE_QUOTA = 32 * 1024 * 1024;
+    private static final int PRIMARY_HOST_CONNECTIONS = 6;
+    private static final int SECONDARY_HOST_CONNECTIONS = 2;
+    private static final int PREFETCH_CONCURRENCY = 3;
+    private static final int BACKGROUND_CONCURRENCY = 1;
+    private static final TransportConfig TRANSPORT_CONFIG = new TransportConfig.Builder()
+            .maxTotalConnections(PRIMARY_HOST_CONNECTIONS + SECONDARY_HOST_CONNECTIONS)
+            .maxConnectionsForHost(BASE_URL, PRIMARY_HOST_CONNECTIONS)
+            .maxConnectionsForHost(SECONDARY_URL, SECONDARY_HOST_CONNECTIONS)
+            .create();
 
-    private final AndroidHttpClient httpClient;
+    private final HttpTransport transport;
     private final BasicHttpContext httpContext;
-    private final ExecutorService service;
+    private final ValidatorCache validatorCache = new ValidatorCache(VALIDATOR_CACHE_SIZE);
+    private final NetworkMetrics metrics = new NetworkMetrics();
+    private final LruCache<String, Diff> patchSetDiffs = new LruCache<String, Diff>(PATCH_SET_DIFF_CACHE_SIZE);
+    private final LruCache<String, FileDiff> interdiffs = new LruCache<String, FileDiff>(INTERDIFF_CACHE_SIZE);
+    private final LruCache<String, List<String>> baseFiles = new LruCache<String, List<String>>(BASE_FILE_CACHE_SIZE);
+    private final RequestScheduler scheduler;
+    private final DiffDiskCache diffDiskCache;
     private Account chromiumAccount;
     private State state;
     private Context context;
     private HashSet<Integer> updatingIssues = new HashSet<Integer>();
+    private final HashMap<String, List<DiffProgress>> urlToDiffProgress = new HashMap<String, List<DiffProgress>>();
     private HashMap<Integer, Long> issueToModification = new HashMap<Integer, Long>();
+    private final HashMap<String, DeltaSync> keyToDeltaSync = new HashMap<String, DeltaSync>();
 
     public ServerCaller(Context context) {
+        this(context, new HedgedTransport(new PooledHttpTransport(context, TRANSPORT_CONFIG), BASE_URL, SECONDARY_URL,
+                PRIMARY_HOST_CONNECTIONS + SECONDARY_HOST_CONNECTIONS));
+    }
+
+    public ServerCaller(Context context, HttpTransport transport) {
         this.context = context;
-        service = Executors.newFixedThreadPool(N_THREADS);
-        httpClient = AndroidHttpClient.newInstance("");
+        this.transport = transport;
+        scheduler = new RequestScheduler(PRIMARY_HOST_CONNECTIONS, PREFETCH_CONCURRENCY, BACKGROUND_CONCURRENCY);
+        diffDiskCache = new DiffDiskCache(new File(context.getCacheDir(), DIFF_CACHE_DIRECTORY), DIFF_DISK_CACHE_QUOTA);
         httpContext = new BasicHttpContext();
         httpContext.setAttribute(ClientContext.COOKIE_STORE, new PersistentCookieStore(context));
         reset();
@@ -130,6 +249,9 @@ public class ServerCaller {
 
         if (hasValidAuthCookie()) {
             state = State.OK;
+            if (!hasValidAuthCookie(SECONDARY_URL)) {
+                loadSecondaryCookieInBackground();
+            }
         } else {
             state = State.NEEDS_AUTHORIZATION;
             clearToken();
@@ -155,30 +277,92 @@ public class ServerCaller {
         if (accountName == null) {
             return null;
         }
-        Future<List<Issue>> futureMineIssues = service.submit(createSearchCallable(new SearchOptions.Builder().owner(accountName).closeState(SearchOptions.CloseState.OPEN).withMessages().create()));
-        Future<List<Issue>> futureCcIssues = service.submit(createSearchCallable(new SearchOptions.Builder().cc(accountName).closeState(SearchOptions.CloseState.OPEN).withMessages().create()));
-        Future<List<Issue>> futureOnReviewIssues = service.submit(createSearchCallable(new SearchOptions.Builder().reviewer(accountName).closeState(SearchOptions.CloseState.OPEN).withMessages().create()));
+        return queryInbox(accountName).issues();
+    }
+
+    public InboxQuery.Result queryInbox(String accountName) {
+        InboxQuery query = new InboxQuery();
+        List<Future<List<Issue>>> futures = new ArrayList<Future<List<Issue>>>();
+        futures.add(submitInboxSearch(query, InboxQuery.Role.OWNER, new SearchOptions.Builder().owner(accountName)));
+        futures.add(submitInboxSearch(query, InboxQuery.Role.CC, new SearchOptions.Builder().cc(accountName)));
+        futures.add(submitInboxSearch(query, InboxQuery.Role.REVIEWER, new SearchOptions.Builder().reviewer(accountName)));
         try {
-            List<Issue> mineIssues = futureMineIssues.get();
-            List<Issue> ccIssues = futureCcIssues.get();
-            List<Issue> onReviewIssues = futureOnReviewIssues.get();
-            mineIssues.addAll(ccIssues);
-            mineIssues.addAll(onReviewIssues);
-            return mineIssues;
+            for (Future<List<Issue>> future : futures) {
+                future.get();
+            }
+            List<Future<Issue>> reloads = new ArrayList<Future<Issue>>();
+            for (final Integer issueId : query.incompleteIssues()) {
+                reloads.add(scheduler.submit(RequestScheduler.Priority.INTERACTIVE, new Callable<Issue>() {
+                    @Override
+                    public Issue call() throws Exception {
+                        return loadIssueWithMessages(issueId);
+                    }
+                }));
+            }
+            for (Future<Issue> reload : reloads) {
+                query.replace(reload.get());
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
             e.printStackTrace();
         }
-        return new ArrayList<Issue>();
+        return query.result();
+    }
+
+    private Future<List<Issue>> submitInboxSearch(InboxQuery query, InboxQuery.Role role, SearchOptions.Builder builder) {
+        InboxQuery.RoleListener listener = query.listenerFor(role);
+        return scheduler.submit(RequestScheduler.Priority.INTERACTIVE, createSearchCallable(builder.closeState(SearchOptions.CloseState.OPEN).withMessages().create(), listener, listener));
+    }
+
+    private Issue loadIssueWithMessages(int issueId) {
+        Uri uri = ISSUE_API_URL.buildUpon().appendPath(issueId + "").appendQueryParameter("messages", "true").build();
+        try {
+            return executeGetJSONRequest(uri, ISSUE_PARSER);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
     }
 
     public void tryToAuthenticate() throws UserRecoverableAuthException, GoogleAuthException, IOException, AuthenticationException {
         String token = GoogleAuthUtil.getToken(this.context, chromiumAccount.name, TOKEN_TYPE);
-        loadCookie(token);
+        loadCookie(BASE_URL, token);
+        loadSecondaryCookie(token);
         loadAndSaveXSRFToken();
     }
 
+    /**
+     * Hedged requests go to the secondary host, which needs its own cookie. Without it they are redirected to the login
+     * page, so the host would be taken for a failing one.
+     */
+    private void loadSecondaryCookie(String token) throws IOException {
+        try {
+            loadCookie(SECONDARY_URL, token);
+        } catch (AuthenticationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the secondary cookie for a user who is signed in already, e.g. with a cookie saved before hedging was added.
+     */
+    private void loadSecondaryCookieInBackground() {
+        scheduler.submit(RequestScheduler.Priority.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    loadSecondaryCookie(GoogleAuthUtil.getToken(context, chromiumAccount.name, TOKEN_TYPE));
+                } catch (GoogleAuthException e) {
+                    e.printStackTrace();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        });
+    }
+
     private void initChromiumAccount() {
         AccountManager accountManager = AccountManager.get(context);
         Account[] accounts = accountManager.getAccountsByType(GoogleAuthUtil.GOOGLE_ACCOUNT_TYPE);
@@ -198,20 +382,326 @@ public class ServerCaller {
     }
 
     public Diff loadDiff(int issueId, int patchSetId) throws IOException {
-        HttpGet get = new HttpGet(DOWNLOAD_DIFF.buildUpon().appendPath(ISSUE_PATH + issueId + "_" + patchSetId + ".diff").build().toString());
-        String diff = executeRequest(get);
-        return new Diff(patchSetId, diff);
+        return loadDiff(issueId, patchSetId, RequestScheduler.Priority.INTERACTIVE);
+    }
+
+    public Diff loadDiff(int issueId, int patchSetId, RequestScheduler.Priority priority) throws IOException {
+        return loadDiff(issueId, patchSetId, priority, null, null);
+    }
+
+    /**
+     * @param fileName file whose progress is reported to the listener
+     */
+    private Diff loadDiff(int issueId, final int patchSetId, RequestScheduler.Priority priority, String fileName, DiffProgressListener listener) throws IOException {
+        final String url = patchSetDiffUrl(issueId, patchSetId);
+        final String cacheKey = DiffDiskCache.key(issueId, patchSetId);
+        Diff cached = patchSetDiffs.get(url);
+        if (cached != null) {
+            return cached;
+        }
+        addDiffProgressListener(url, fileName, listener);
+        try {
+            return coalesce(url, priority, new Callable<Diff>() {
+                @Override
+                public Diff call() throws Exception {
+                    Diff result = new Diff(patchSetId, readDiff(url, cacheKey, new DiffStreamParser<Map<String, FileDiff>>() {
+                        @Override
+                        public Map<String, FileDiff> parse(Reader reader) throws IOException {
+                            return DiffParser.parseFiles(reader, hunkListenerFor(url));
+                        }
+                    }));
+                    patchSetDiffs.put(url, result);
+                    return result;
+                }
+            });
+        } finally {
+            removeDiffProgressListener(url, listener);
+        }
     }
 
     public FileDiff loadDiff(int issueId, int patchSetId, int patchId) throws IOException {
-        HttpGet get = new HttpGet(DOWNLOAD_DIFF.buildUpon().appendPath(ISSUE_PATH + issueId + "_" + patchSetId + "_" + patchId + ".diff").build().toString());
-        String diff = executeRequest(get);
-        return FileDiff.from(diff);
+        return loadDiff(issueId, patchSetId, patchId, RequestScheduler.Priority.INTERACTIVE);
+    }
+
+    public FileDiff loadDiff(int issueId, int patchSetId, int patchId, RequestScheduler.Priority priority) throws IOException {
+        return loadDiff(issueId, patchSetId, patchId, priority, null);
+    }
+
+    /**
+     * @param listener gets the file diff parsed so far as the download goes on, may be null
+     */
+    public FileDiff loadDiff(int issueId, int patchSetId, int patchId, RequestScheduler.Priority priority, DiffProgressListener listener) throws IOException {
+        final String url = fileDiffUrl(issueId, patchSetId, patchId);
+        final String cacheKey = DiffDiskCache.key(issueId, patchSetId, patchId);
+        addDiffProgressListener(url, null, listener);
+        try {
+            return coalesce(url, priority, new Callable<FileDiff>() {
+                @Override
+                public FileDiff call() throws Exception {
+                    return readDiff(url, cacheKey, new DiffStreamParser<FileDiff>() {
+                        @Override
+                        public FileDiff parse(Reader reader) throws IOException {
+                            return DiffParser.parseFile(reader, hunkListenerFor(url));
+                        }
+                    });
+                }
+            });
+        } finally {
+            removeDiffProgressListener(url, listener);
+        }
+    }
+
+    /**
+     * Serves the file from the diff of the whole patch set, so paging through files of a patch set takes a single download.
+     * Files that the patch set diff doesn't have are downloaded separately.
+     */
+    public FileDiff loadFileDiffFromPatchSet(int issueId, int patchSetId, int patchId, String path, RequestScheduler.Priority priority) throws IOException {
+        return loadFileDiffFromPatchSet(issueId, patchSetId, patchId, path, priority, null);
+    }
+
+    public FileDiff loadFileDiffFromPatchSet(int issueId, int patchSetId, int patchId, String path, RequestScheduler.Priority priority, DiffProgressListener listener) throws IOException {
+        boolean patchSetDiffCached = patchSetDiffs.get(patchSetDiffUrl(issueId, patchSetId)) != null || diffDiskCache.contains(DiffDiskCache.key(issueId, patchSetId));
+        if (!patchSetDiffCached && diffDiskCache.contains(DiffDiskCache.key(issueId, patchSetId, patchId))) {
+            return loadDiff(issueId, patchSetId, patchId, priority, listener);
+        }
+        FileDiff fileDiff = loadDiff(issueId, patchSetId, priority, path, listener).diffForFile(path);
+        return fileDiff != null ? fileDiff : loadDiff(issueId, patchSetId, patchId, priority, listener);
+    }
+
+    /**
+     * Whether the diff of the file is served without a download, from the memory or the disk cache.
+     */
+    public boolean isDiffCached(int issueId, int patchSetId, int patchId) {
+        return patchSetDiffs.get(patchSetDiffUrl(issueId, patchSetId)) != null || diffDiskCache.contains(DiffDiskCache.key(issueId, patchSetId))
+                || diffDiskCache.contains(DiffDiskCache.key(issueId, patchSetId, patchId));
+    }
+
+    /**
+     * Computes what changed in the file between two patch sets from their diffs and base files, which come from the caches
+     * when they were seen before. Results are kept for the recently compared pairs of patch sets.
+     *
+     * @param patchSetDiff whether the file of the newer patch set is served from the diff of the whole patch set
+     */
+    public FileDiff loadInterdiff(int issueId, int basePatchSetId, int patchSetId, int patchId, String path, boolean patchSetDiff,
+                                  RequestScheduler.Priority priority) throws IOException {
+        String key = issueId + "/" + basePatchSetId + ":" + patchSetId + "/" + path;
+        FileDiff cached = interdiffs.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        PatchSet basePatchSet = loadPatchSet(issueId, basePatchSetId);
+        if (basePatchSet == null) {
+            throw new IOException("Failed to load patch set " + basePatchSetId);
+        }
+        List<String> baseFile = loadBaseFileOrEmpty(issueId, patchSetId, patchId, priority);
+        FileDiff olderDiff = new FileDiff.Builder().create();
+        // A file the older patch set doesn't change is taken to be the base file of the newer one.
+        List<String> olderBaseFile = baseFile;
+        for (PatchSetFile file : basePatchSet.files()) {
+            if (file.path().equals(path)) {
+                olderDiff = loadFileDiff(issueId, basePatchSetId, file.id(), path, basePatchSet.files().size() > 1, priority);
+                olderBaseFile = loadBaseFileOrEmpty(issueId, basePatchSetId, file.id(), priority);
+                break;
+            }
+        }
+        FileDiff interdiff = Interdiff.compute(olderDiff, olderBaseFile, loadFileDiff(issueId, patchSetId, patchId, path, patchSetDiff, priority), baseFile);
+        interdiffs.put(key, interdiff);
+        return interdiff;
+    }
+
+    /**
+     * A file added by the patch has no base file on the server.
+     */
+    private List<String> loadBaseFileOrEmpty(int issueId, int patchSetId, int patchId, RequestScheduler.Priority priority) throws IOException {
+        try {
+            return loadBaseFile(issueId, patchSetId, patchId, priority);
+        } catch (NotFoundException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Lines of the base file of a patch, which the diff skips between its hunks. Diffs are downloaded with the context
+     * they were uploaded with, so the skipped lines come from the base file. It's downloaded only when skipped lines
+     * are asked for and kept on the disk like diffs, since it never changes either.
+     */
+    public List<String> loadBaseFile(int issueId, int patchSetId, int patchId, RequestScheduler.Priority priority) throws IOException {
+        final String url = BASE_URL.buildUpon().appendPath(issueId + "").appendPath(CONTENT_PATH).appendPath(patchSetId + "")
+                .appendPath(patchId + "").appendPath(BASE_CONTENT).build().toString();
+        List<String> cached = baseFiles.get(url);
+        if (cached != null) {
+            return cached;
+        }
+        final String cacheKey = DiffDiskCache.baseFileKey(issueId, patchSetId, patchId);
+        List<String> lines = coalesce(url, priority, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return readDiff(url, cacheKey, new DiffStreamParser<List<String>>() {
+                    @Override
+                    public List<String> parse(Reader reader) throws IOException {
+                        return readLines(reader);
+                    }
+                });
+            }
+        });
+        baseFiles.put(url, lines);
+        return lines;
+    }
+
+    private static List<String> readLines(Reader reader) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private FileDiff loadFileDiff(int issueId, int patchSetId, int patchId, String path, boolean patchSetDiff, RequestScheduler.Priority priority) throws IOException {
+        if (patchSetDiff) {
+            return loadFileDiffFromPatchSet(issueId, patchSetId, patchId, path, priority);
+        }
+        return loadDiff(issueId, patchSetId, patchId, priority);
+    }
+
+    private void addDiffProgressListener(String url, String fileName, DiffProgressListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (urlToDiffProgress) {
+            List<DiffProgress> progresses = urlToDiffProgress.get(url);
+            if (progresses == null) {
+                progresses = new ArrayList<DiffProgress>();
+                urlToDiffProgress.put(url, progresses);
+            }
+            progresses.add(new DiffProgress(fileName, listener));
+        }
+    }
+
+    private void removeDiffProgressListener(String url, DiffProgressListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (urlToDiffProgress) {
+            List<DiffProgress> progresses = urlToDiffProgress.get(url);
+            if (progresses == null) {
+                return;
+            }
+            for (Iterator<DiffProgress> iterator = progresses.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().listener == listener) {
+                    iterator.remove();
+                }
+            }
+            if (progresses.isEmpty()) {
+                urlToDiffProgress.remove(url);
+            }
+        }
+    }
+
+    /**
+     * Reports hunks of a download to everyone waiting for it, including requests that joined the download later.
+     */
+    private DiffParser.HunkListener hunkListenerFor(final String url) {
+        return new DiffParser.HunkListener() {
+            @Override
+            public void onHunkParsed(String fileName, FileDiff.Builder builder) {
+                List<DiffProgressListener> listeners = new ArrayList<DiffProgressListener>();
+                synchronized (urlToDiffProgress) {
+                    List<DiffProgress> progresses = urlToDiffProgress.get(url);
+                    if (progresses == null) {
+                        return;
+                    }
+                    for (DiffProgress progress : progresses) {
+                        if (TextUtils.equals(progress.fileName, fileName)) {
+                            listeners.add(progress.listener);
+                        }
+                    }
+                }
+                if (listeners.isEmpty()) {
+                    return;
+                }
+                FileDiff partialDiff = builder.snapshot();
+                for (DiffProgressListener listener : listeners) {
+                    listener.onDiffProgress(partialDiff);
+                }
+            }
+        };
+    }
+
+    /**
+     * Moves a queued diff download ahead of prefetch and background work, e.g. when its page becomes visible.
+     */
+    public void prioritizeDiff(int issueId, int patchSetId, int patchId) {
+        scheduler.promote(patchSetDiffUrl(issueId, patchSetId), RequestScheduler.Priority.INTERACTIVE);
+        scheduler.promote(fileDiffUrl(issueId, patchSetId, patchId), RequestScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Diffs of an uploaded patch set never change, so once downloaded they are served from the disk, also offline.
+     * A downloaded diff is parsed as it arrives and is written to the disk cache at the same time.
+     */
+    private <T> T readDiff(String url, String cacheKey, DiffStreamParser<T> parser) throws IOException {
+        Reader cached = diffDiskCache.open(cacheKey);
+        if (cached != null) {
+            try {
+                return parser.parse(cached);
+            } catch (IOException e) {
+                // A broken entry is downloaded again.
+                e.printStackTrace();
+                diffDiskCache.remove(cacheKey);
+            } finally {
+                cached.close();
+            }
+        }
+        HttpGet get = new HttpGet(url);
+        // A login redirect must fail like any other error instead of being parsed as a diff.
+        get.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+        RequestTrace trace = newTrace(get);
+        try {
+            HttpResponse response = execute(get, trace);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                // Anything but the diff itself would be cached for good, since cached diffs are never revalidated.
+                consume(response);
+                throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+            }
+            HttpEntity entity = decodedEntity(response);
+            CountingInputStream content = new CountingInputStream(entity.getContent());
+            Reader reader = new InputStreamReader(content, charset(entity));
+            DiffDiskCache.Editor editor = diffDiskCache.edit(cacheKey);
+            T result = null;
+            boolean parsed = false;
+            try {
+                result = parser.parse(editor != null ? editor.tee(reader) : reader);
+                parsed = true;
+            } finally {
+                reader.close();
+                if (editor != null && !parsed) {
+                    editor.abort();
+                }
+            }
+            if (editor != null) {
+                editor.commit();
+            }
+            trace.bodyParsed(content);
+            return result;
+        } finally {
+            trace.finish();
+        }
+    }
+
+    private static String patchSetDiffUrl(int issueId, int patchSetId) {
+        return DOWNLOAD_DIFF.buildUpon().appendPath(ISSUE_PATH + issueId + "_" + patchSetId + ".diff").build().toString();
+    }
+
+    private static String fileDiffUrl(int issueId, int patchSetId, int patchId) {
+        return DOWNLOAD_DIFF.buildUpon().appendPath(ISSUE_PATH + issueId + "_" + patchSetId + "_" + patchId + ".diff").build().toString();
     }
 
     private void loadAndSaveXSRFToken() throws IOException {
         HttpGet get = new HttpGet(XSRF_URL.toString());
         get.addHeader("X-Requesting-XSRF-Token", "");
+        get.getParams().setBooleanParameter(HedgedTransport.DISABLE_HEDGING, true);
         String xsrfToken = executeRequest(get);
         save(XSRF_TOKEN_PREFERENCE, xsrfToken);
         save(XSRF_TOKEN_TIME_PREFERENCE, System.currentTimeMillis());
@@ -227,21 +717,40 @@ public class ServerCaller {
     }
 
     private boolean hasValidAuthCookie() {
+        if (hasValidAuthCookie(BASE_URL)) {
+            state = State.OK;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean hasValidAuthCookie(Uri host) {
         CookieStore cookieStore = (CookieStore) httpContext.getAttribute(ClientContext.COOKIE_STORE);
         for (Cookie cookie : cookieStore.getCookies()) {
-            if (cookie.getName().equals(AUTH_COOKIE_NAME) && !cookie.isExpired(new Date())) {
-                state = State.OK;
+            if (cookie.getName().equals(AUTH_COOKIE_NAME) && !cookie.isExpired(new Date()) && isCookieFor(cookie, host)) {
                 return true;
             }
         }
         return false;
     }
 
-    private void loadCookie(String authToken) throws AuthenticationException, IOException {
-        String url = AUTH_COOKIE_URL.buildUpon().appendQueryParameter("auth", authToken).build().toString();
+    private static boolean isCookieFor(Cookie cookie, Uri host) {
+        String domain = cookie.getDomain();
+        if (domain == null) {
+            return true;
+        }
+        if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+        return host.getHost().equals(domain) || host.getHost().endsWith("." + domain);
+    }
+
+    private void loadCookie(Uri host, String authToken) throws AuthenticationException, IOException {
+        String url = host.buildUpon().appendEncodedPath(AUTH_COOKIE_PATH).appendQueryParameter("continue", "nowhere").appendQueryParameter("auth", authToken).build().toString();
         HttpGet method = new HttpGet(url);
-        httpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-        HttpResponse res = httpClient.execute(method, httpContext);
+        method.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+        method.getParams().setBooleanParameter(HedgedTransport.DISABLE_HEDGING, true);
+        HttpResponse res = transport.execute(method, httpContext);
         Header[] headers = res.getHeaders("Set-Cookie");
         if (res.getEntity() != null) {
             res.getEntity().consumeContent();
@@ -250,21 +759,64 @@ public class ServerCaller {
             throw new AuthenticationException("Failed to get cookie");
         }
 
-        if (!hasValidAuthCookie())
+        if (!hasValidAuthCookie(host))
             throw new AuthenticationException("Failed to get cookie");
+        if (host.equals(BASE_URL)) {
+            state = State.OK;
+        }
     }
 
-    public PatchSet loadPatchSet(int issueId, int patchSetId) {
+    public PatchSet loadPatchSet(int issueId, final int patchSetId) {
         Uri uri = ISSUE_API_URL.buildUpon().appendPath(issueId + "").appendPath(patchSetId + "").appendQueryParameter("comments", "true").build();
         try {
-            return PatchSet.from(patchSetId, executeGetJSONRequest(uri));
+            return executeGetJSONRequest(uri, new JSONParser<PatchSet>() {
+                @Override
+                public PatchSet parse(JSONObject jsonObject) throws JSONException, ParseException {
+                    return PatchSet.from(patchSetId, jsonObject);
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    public Issue publishAndReloadIssue(final int issueId, PublishData publishData) throws GoogleAuthException, IOException, AuthenticationException {
+    /**
+     * Patch sets that fail to load are left out, so they are the requested ids missing from the result.
+     */
+    public List<PatchSet> loadPatchSets(final int issueId, List<Integer> patchSetIds) {
+        List<Future<PatchSet>> futures = new ArrayList<Future<PatchSet>>(patchSetIds.size());
+        for (final int patchSetId : patchSetIds) {
+            futures.add(scheduler.submit(RequestScheduler.Priority.INTERACTIVE, new Callable<PatchSet>() {
+                @Override
+                public PatchSet call() throws Exception {
+                    return loadPatchSet(issueId, patchSetId);
+                }
+            }));
+        }
+
+        List<PatchSet> patchSets = new ArrayList<PatchSet>();
+        for (Future<PatchSet> future : futures) {
+            try {
+                PatchSet patchSet = future.get();
+                if (patchSet != null) {
+                    patchSets.add(patchSet);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        return patchSets;
+    }
+
+    /**
+     * The returned issue holds {@link PatchSet#stub(int)} placeholders, which are filled in with {@link #loadPatchSets(int, List)}.
+     */
+    public Issue publishAndReloadIssue(int issueId, PublishData publishData) throws GoogleAuthException, IOException, AuthenticationException {
         Uri uri = ISSUE_API_URL.buildUpon().appendPath(issueId + "").appendQueryParameter("messages", "true").build();
         synchronized (updatingIssues) {
             updatingIssues.add(issueId);
@@ -275,25 +827,11 @@ public class ServerCaller {
 
         Issue issue = null;
         try {
-            JSONObject jsonObject = executeGetJSONRequest(uri);
+            JSONObject jsonObject = executeGetJSONRequest(uri, RAW_JSON_PARSER);
             JSONArray patchSetsJson = jsonObject.getJSONArray("patchsets");
-            List<Future<PatchSet>> futures = new ArrayList<Future<PatchSet>>(patchSetsJson.length());
+            List<PatchSet> patchSets = new ArrayList<PatchSet>(patchSetsJson.length());
             for (int i = 0; i < patchSetsJson.length(); i++) {
-                final int patchSetId = patchSetsJson.getInt(i);
-                futures.add(service.submit(new Callable<PatchSet>() {
-                    @Override
-                    public PatchSet call() throws Exception {
-                        return loadPatchSet(issueId, patchSetId);
-                    }
-                }));
-            }
-
-            List<PatchSet> patchSets = new ArrayList<PatchSet>();
-            for (Future<PatchSet> future : futures) {
-                PatchSet patchSet = future.get();
-                if (patchSet != null) {
-                    patchSets.add(patchSet);
-                }
+                patchSets.add(PatchSet.stub(patchSetsJson.getInt(i)));
             }
             issue = Issue.fromJSONObject(jsonObject, patchSets);
             Intent intent = new Intent(ACTION_UPDATE_ISSUE_MODIFICATION_TIME);
@@ -315,27 +853,183 @@ public class ServerCaller {
         return issue;
     }
 
-    private List<Issue> search(SearchOptions options) {
-        Uri.Builder builder = SEARCH_URL.buildUpon();
-        options.fillParameters(builder);
+    private List<Issue> search(SearchOptions options, SearchListener listener) {
+        return search(options, listener, null);
+    }
+
+    private List<Issue> search(SearchOptions options, SearchListener listener, Issue.MessagesFilter filter) {
+        try {
+            return executeSearch(options, listener, filter);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Collections.emptyList();
+    }
+
+    private List<Issue> executeSearch(final SearchOptions options, final SearchListener listener, final Issue.MessagesFilter filter) throws IOException, ParseException {
+        try {
+            return scheduler.execute(RequestScheduler.Priority.INTERACTIVE, new Callable<List<Issue>>() {
+                @Override
+                public List<Issue> call() throws Exception {
+                    return streamSearch(options, listener, filter);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            throw asIOException(e);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Issue> streamSearch(SearchOptions options, SearchListener listener, Issue.MessagesFilter filter) throws IOException, ParseException {
+        String url = searchUrl(options);
+        HttpGet get = new HttpGet(url);
+        ValidatorCache.Entry cached = validatorCache.get(url);
+        List<Issue> cachedIssues = cached != null ? (List<Issue>) cached.modelFor(SEARCH_RESULTS_MODEL) : null;
+        if (cachedIssues != null) {
+            cached.addValidators(get);
+        }
+        RequestTrace trace = newTrace(get);
+        try {
+            HttpResponse response = execute(get, trace);
+            if (cachedIssues != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                consume(response);
+                for (Issue issue : cachedIssues) {
+                    notifyIssueLoaded(listener, issue);
+                }
+                return new ArrayList<Issue>(cachedIssues);
+            }
+            HttpEntity entity = decodedEntity(response);
+            CountingInputStream content = new CountingInputStream(entity.getContent());
+            List<Issue> issues;
+            try {
+                issues = readSearchResults(new JsonReader(new InputStreamReader(content, charset(entity))), listener, filter);
+            } finally {
+                content.close();
+            }
+            trace.bodyParsed(content);
+            // Results with skipped messages are incomplete, so they must not be replayed to other searches.
+            ValidatorCache.Entry entry = hasSkippedMessages(issues) ? null : ValidatorCache.Entry.forModel(response, SEARCH_RESULTS_MODEL, Collections.unmodifiableList(issues), (int) content.count() * 2);
+            validatorCache.put(url, entry);
+            return new ArrayList<Issue>(issues);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    private List<Issue> deltaSearch(SearchOptions options, SearchListener listener) {
+        DeltaSync deltaSync = deltaSyncFor(options);
         try {
-            return Issue.fromJSONArray(executeGetJSONRequest(builder.build()).getJSONArray("results"));
+            synchronized (deltaSync) {
+                Date cursor = deltaSync.cursor();
+                if (cursor == null) {
+                    return deltaSync.reset(executeSearch(options, listener, null));
+                }
+                // Closed issues are requested as well, so that closures since the last sync are dropped from the snapshot.
+                SearchOptions deltaOptions = options.buildUpon().closeState(SearchOptions.CloseState.UNKNOWN).modifiedAfter(cursor).create();
+                return deltaSync.merge(executeSearch(deltaOptions, null, null));
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
         return Collections.emptyList();
     }
 
-    public Callable<List<Issue>> createSearchCallable(final SearchOptions options) {
+    private DeltaSync deltaSyncFor(SearchOptions options) {
+        String key = searchUrl(options);
+        synchronized (keyToDeltaSync) {
+            DeltaSync deltaSync = keyToDeltaSync.get(key);
+            if (deltaSync == null) {
+                deltaSync = new DeltaSync(new File(context.getCacheDir(), DELTA_SYNC_DIRECTORY), key, options.closeState());
+                keyToDeltaSync.put(key, deltaSync);
+            }
+            return deltaSync;
+        }
+    }
+
+    private static String searchUrl(SearchOptions options) {
+        Uri.Builder builder = SEARCH_URL.buildUpon();
+        options.fillParameters(builder);
+        return builder.build().toString();
+    }
+
+    private static List<Issue> readSearchResults(JsonReader reader, SearchListener listener, Issue.MessagesFilter filter) throws IOException, ParseException {
+        List<Issue> issues = new ArrayList<Issue>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("results")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Issue issue = Issue.from(reader, filter);
+                issues.add(issue);
+                notifyIssueLoaded(listener, issue);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return issues;
+    }
+
+    private static boolean hasSkippedMessages(List<Issue> issues) {
+        for (Issue issue : issues) {
+            if (issue.messagesSkipped()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void notifyIssueLoaded(SearchListener listener, Issue issue) {
+        if (listener != null) {
+            listener.onIssueLoaded(issue);
+        }
+    }
+
+    public Callable<List<Issue>> createSearchCallable(SearchOptions options) {
+        return createSearchCallable(options, null);
+    }
+
+    /**
+     * Like {@link #createSearchCallable(SearchOptions, SearchListener)}, but after the first full search only issues
+     * modified since the previous call are downloaded and merged into a local snapshot.
+     * The listener is only notified during full searches.
+     */
+    public Callable<List<Issue>> createDeltaSearchCallable(final SearchOptions options, final SearchListener listener) {
         return new Callable<List<Issue>>() {
             @Override
             public List<Issue> call() throws Exception {
-                return search(options);
+                return deltaSearch(options, listener);
             }
         };
     }
 
-    public void inlineDraft(int issueId, int patchSetId, int patchId, Comment comment) throws IOException {
+    public Callable<List<Issue>> createSearchCallable(SearchOptions options, SearchListener listener) {
+        return createSearchCallable(options, listener, null);
+    }
+
+    private Callable<List<Issue>> createSearchCallable(final SearchOptions options, final SearchListener listener, final Issue.MessagesFilter filter) {
+        return new Callable<List<Issue>>() {
+            @Override
+            public List<Issue> call() throws Exception {
+                return search(options, listener, filter);
+            }
+        };
+    }
+
+    /**
+     * Saves the draft, or removes it if its text is empty, and returns the message id of the saved draft.
+     * A new draft gets its id from the server, the next change of the draft must send it, otherwise another draft is created.
+     *
+     * @return the message id, empty for a removed draft or when the id can't be found
+     */
+    public String inlineDraft(int issueId, int patchSetId, int patchId, Comment comment) throws IOException {
         ArrayList<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
         nameValuePairs.add(new BasicNameValuePair("side", comment.left() ? "a" : "b"));
         nameValuePairs.add(new BasicNameValuePair("snapshot", comment.left() ? "old" : "new"));
@@ -347,7 +1041,66 @@ public class ServerCaller {
         if (!TextUtils.isEmpty(comment.messageId())) {
             nameValuePairs.add(new BasicNameValuePair("message_id", comment.messageId()));
         }
-        executePost(INLINE_DRAFT, nameValuePairs);
+        HttpPost post = new HttpPost(INLINE_DRAFT.toString());
+        post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+        RequestTrace trace = newTrace(post);
+        String body;
+        try {
+            HttpResponse response = execute(post, trace);
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= HttpStatus.SC_BAD_REQUEST) {
+                consume(response);
+                throw new IOException("Failed to save inline draft: " + status);
+            }
+            body = readEntity(response, trace);
+        } finally {
+            trace.finish();
+        }
+        if (TextUtils.isEmpty(comment.text())) {
+            return "";
+        }
+        if (!TextUtils.isEmpty(comment.messageId())) {
+            return comment.messageId();
+        }
+        String messageId = draftMessageId(body);
+        return messageId != null ? messageId : findDraftMessageId(issueId, patchSetId, patchId, comment);
+    }
+
+    /**
+     * The response renders the comments of the line, a draft has a form with its message id. The new draft is the last one.
+     */
+    private static String draftMessageId(String body) {
+        String messageId = null;
+        Matcher input = MESSAGE_ID_INPUT.matcher(body);
+        while (input.find()) {
+            Matcher value = INPUT_VALUE.matcher(input.group());
+            if (value.find() && !TextUtils.isEmpty(value.group(1))) {
+                messageId = value.group(1);
+            }
+        }
+        return messageId;
+    }
+
+    /**
+     * Looks the draft up among the comments of the patch, for a response the id isn't found in.
+     */
+    private String findDraftMessageId(int issueId, int patchSetId, int patchId, Comment draft) {
+        PatchSet patchSet = loadPatchSet(issueId, patchSetId);
+        if (patchSet == null) {
+            return "";
+        }
+        for (PatchSetFile file : patchSet.files()) {
+            if (file.id() != patchId) {
+                continue;
+            }
+            for (Comment comment : file.comments()) {
+                if (comment.isDraft() && comment.line() == draft.line() && comment.left() == draft.left()
+                        && TextUtils.equals(comment.text(), draft.text())) {
+                    return comment.messageId();
+                }
+            }
+        }
+        return "";
     }
 
     public void checkCQBit(int issueId, int patchSetId, boolean commit) throws GoogleAuthException, IOException, AuthenticationException {
@@ -362,7 +1115,7 @@ public class ServerCaller {
     public boolean isClosedOrDeleted(int issueId) {
         Uri uri = ISSUE_API_URL.buildUpon().appendPath(issueId + "").build();
         try {
-            Issue issue = Issue.fromJSONObject(executeGetJSONRequest(uri));
+            Issue issue = executeGetJSONRequest(uri, ISSUE_PARSER, RequestScheduler.Priority.BACKGROUND);
             return issue.isClosed();
         } catch (NotFoundException e) {
             return true;
@@ -372,26 +1125,105 @@ public class ServerCaller {
         return false;
     }
 
-    private void executePost(Uri uri, List<? extends NameValuePair> parameters) throws IOException {
+    private int executePost(Uri uri, List<? extends NameValuePair> parameters) throws IOException {
         HttpPost post = new HttpPost(uri.toString());
         UrlEncodedFormEntity formEntity = new UrlEncodedFormEntity(parameters);
         post.setEntity(formEntity);
-        HttpResponse response = httpClient.execute(post, httpContext);
-        HttpEntity entity = response.getEntity();
-        if (entity != null) {
-            entity.consumeContent();
+        RequestTrace trace = newTrace(post);
+        post.getParams().setParameter(RequestTrace.PARAMETER, trace);
+        try {
+            HttpResponse response = transport.execute(post, httpContext);
+            trace.responseReceived();
+            consume(response);
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            trace.finish();
         }
     }
 
-    private String executeRequest(HttpUriRequest request) throws IOException {
+    private HttpResponse execute(HttpUriRequest request, RequestTrace trace) throws IOException {
         request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
-        BasicHttpParams params = new BasicHttpParams();
-        HttpProtocolParams.setUserAgent(params, "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:6.0) Gecko/20100101 Firefox/6.0");
-        request.setParams(params);
-        HttpResponse response = httpClient.execute(request, httpContext);
+        HttpProtocolParams.setUserAgent(request.getParams(), "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:6.0) Gecko/20100101 Firefox/6.0");
+        request.getParams().setParameter(RequestTrace.PARAMETER, trace);
+        HttpResponse response = transport.execute(request, httpContext);
+        trace.responseReceived();
+        if (response.getEntity() != null) {
+            response.setEntity(new TracedEntity(response.getEntity(), trace));
+        }
         if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            consume(response);
             throw new NotFoundException();
         }
+        return response;
+    }
+
+    private String executeRequest(HttpUriRequest request) throws IOException {
+        RequestTrace trace = newTrace(request);
+        try {
+            return readEntity(execute(request, trace), trace);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    private RequestTrace newTrace(HttpUriRequest request) {
+        return new RequestTrace(metrics, endpointOf(request.getURI()));
+    }
+
+    private static NetworkMetrics.Endpoint endpointOf(URI uri) {
+        List<String> segments = Uri.parse(uri.toString()).getPathSegments();
+        String first = segments.isEmpty() ? "" : segments.get(0);
+        String last = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+        if (first.equals(SEARCH_URL.getLastPathSegment())) {
+            return NetworkMetrics.Endpoint.SEARCH;
+        }
+        if (first.equals(ISSUE_API_URL.getLastPathSegment())) {
+            return segments.size() > 2 ? NetworkMetrics.Endpoint.PATCHSET : NetworkMetrics.Endpoint.ISSUE;
+        }
+        if (first.equals(DOWNLOAD_DIFF.getLastPathSegment())) {
+            return NetworkMetrics.Endpoint.DIFF;
+        }
+        if (first.equals(INLINE_DRAFT.getLastPathSegment())) {
+            return NetworkMetrics.Endpoint.INLINE_DRAFT;
+        }
+        if (first.equals(XSRF_URL.getLastPathSegment())) {
+            return NetworkMetrics.Endpoint.XSRF;
+        }
+        if (last.equals(PUBLISH)) {
+            return NetworkMetrics.Endpoint.PUBLISH;
+        }
+        if (last.equals(COMMIT_PATH)) {
+            return NetworkMetrics.Endpoint.EDIT_FLAGS;
+        }
+        return NetworkMetrics.Endpoint.OTHER;
+    }
+
+    private static void consume(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+    }
+
+    private static String readEntity(HttpResponse response, RequestTrace trace) throws IOException {
+        HttpEntity entity = decodedEntity(response);
+        final CountingInputStream content = new CountingInputStream(entity.getContent());
+        String body = EntityUtils.toString(new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() {
+                return content;
+            }
+        });
+        trace.bodyRead(content.count());
+        return body;
+    }
+
+    private static String charset(HttpEntity entity) {
+        String charset = EntityUtils.getContentCharSet(entity);
+        return charset != null ? charset : HTTP.UTF_8;
+    }
+
+    private static HttpEntity decodedEntity(HttpResponse response) {
         HttpEntity entity = response.getEntity();
         Header contentEncodingHeader = entity.getContentEncoding();
         if (contentEncodingHeader != null) {
@@ -403,12 +1235,101 @@ public class ServerCaller {
                 }
             }
         }
-        String entityString = EntityUtils.toString(entity);
-        return entityString;
+        return entity;
     }
 
-    private JSONObject executeGetJSONRequest(Uri uri) throws IOException, JSONException {
-        return new JSONObject(executeRequest(new HttpGet(uri.toString())));
+    private <T> T executeGetJSONRequest(Uri uri, JSONParser<T> parser) throws IOException, JSONException, ParseException {
+        return executeGetJSONRequest(uri, parser, RequestScheduler.Priority.INTERACTIVE);
+    }
+
+    private <T> T executeGetJSONRequest(final Uri uri, final JSONParser<T> parser, RequestScheduler.Priority priority) throws IOException, JSONException, ParseException {
+        // The same url can be parsed into different models, so the parser is a part of the key.
+        String key = parser.getClass().getName() + " " + uri;
+        try {
+            return scheduler.executeShared(key, priority, new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return fetchJSON(uri, parser);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JSONException) {
+                throw (JSONException) e.getCause();
+            }
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            throw asIOException(e);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Runs the callable on the scheduler, sharing the result of identical in-flight GETs between all callers.
+     */
+    private <T> T coalesce(String key, RequestScheduler.Priority priority, Callable<T> callable) throws IOException {
+        try {
+            return scheduler.executeShared(key, priority, callable);
+        } catch (ExecutionException e) {
+            throw asIOException(e);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static IOException asIOException(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T fetchJSON(Uri uri, JSONParser<T> parser) throws IOException, JSONException, ParseException {
+        String url = uri.toString();
+        HttpGet get = new HttpGet(url);
+        ValidatorCache.Entry cached = validatorCache.get(url);
+        if (cached != null && cached.body() != null) {
+            cached.addValidators(get);
+        } else {
+            cached = null;
+        }
+        RequestTrace trace = newTrace(get);
+        try {
+            HttpResponse response = execute(get, trace);
+            if (cached != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                consume(response);
+                Object model = cached.modelFor(parser.getClass());
+                if (model != null) {
+                    return (T) model;
+                }
+                trace.parseStarted();
+                T parsed = parser.parse(new JSONObject(cached.body()));
+                trace.parseFinished();
+                cached.setModel(parser.getClass(), parsed);
+                return parsed;
+            }
+            String body = readEntity(response, trace);
+            trace.parseStarted();
+            T parsed = parser.parse(new JSONObject(body));
+            trace.parseFinished();
+            ValidatorCache.Entry entry = ValidatorCache.Entry.from(response, body);
+            if (entry != null) {
+                entry.setModel(parser.getClass(), parsed);
+            }
+            validatorCache.put(url, entry);
+            return parsed;
+        } finally {
+            trace.finish();
+        }
     }
 
     private void save(String name, String value) {
@@ -426,6 +1347,14 @@ public class ServerCaller {
         preferences.edit().remove(XSRF_TOKEN_PREFERENCE).apply();
     }
 
+    public PoolStats poolStats() {
+        return transport.stats();
+    }
+
+    public NetworkMetrics metrics() {
+        return metrics;
+    }
+
     public void updateIssueState(Issue issue, long modificationTime) {
         synchronized (updatingIssues) {
             if (updatingIssues.contains(issue.id())) {
@@ -0,0 +1,119 @@
+package com.chrome.codereview.requests;
+
+import android.net.Uri;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TransportConfig {
+
+    public static class Builder {
+        private int maxTotalConnections = 8;
+        private int maxConnectionsPerHost = 2;
+        private Map<String, Integer> hostToMaxConnections = new HashMap<String, Integer>();
+        private long keepAliveMillis = 30 * 1000;
+        private int connectionTimeoutMillis = 20 * 1000;
+        private int socketTimeoutMillis = 60 * 1000;
+        private long poolTimeoutMillis = 60 * 1000;
+
+        public Builder maxTotalConnections(int maxTotalConnections) {
+            if (maxTotalConnections <= 0) {
+                throw new IllegalArgumentException();
+            }
+            this.maxTotalConnections = maxTotalConnections;
+            return this;
+        }
+
+        public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+            if (maxConnectionsPerHost <= 0) {
+                throw new IllegalArgumentException();
+            }
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        public Builder maxConnectionsForHost(Uri host, int maxConnections) {
+            if (maxConnections <= 0) {
+                throw new IllegalArgumentException();
+            }
+            hostToMaxConnections.put(host.getHost(), maxConnections);
+            return this;
+        }
+
+        public Builder keepAlive(long keepAliveMillis) {
+            this.keepAliveMillis = keepAliveMillis;
+            return this;
+        }
+
+        public Builder connectionTimeout(int connectionTimeoutMillis) {
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            return this;
+        }
+
+        public Builder socketTimeout(int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            return this;
+        }
+
+        public Builder poolTimeout(long poolTimeoutMillis) {
+            this.poolTimeoutMillis = poolTimeoutMillis;
+            return this;
+        }
+
+        public TransportConfig create() {
+            return new TransportConfig(maxTotalConnections, maxConnectionsPerHost, hostToMaxConnections, keepAliveMillis, connectionTimeoutMillis, socketTimeoutMillis, poolTimeoutMillis);
+        }
+    }
+
+    private final int maxTotalConnections;
+    private final int maxConnectionsPerHost;
+    private final Map<String, Integer> hostToMaxConnections;
+    private final long keepAliveMillis;
+    private final int connectionTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final long poolTimeoutMillis;
+
+    public TransportConfig(int maxTotalConnections, int maxConnectionsPerHost, Map<String, Integer> hostToMaxConnections, long keepAliveMillis, int connectionTimeoutMillis, int socketTimeoutMillis, long poolTimeoutMillis) {
+        this.maxTotalConnections = maxTotalConnections;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.hostToMaxConnections = Collections.unmodifiableMap(new HashMap<String, Integer>(hostToMaxConnections));
+        this.keepAliveMillis = keepAliveMillis;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.poolTimeoutMillis = poolTimeoutMillis;
+    }
+
+    public int maxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public int maxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public Map<String, Integer> hostToMaxConnections() {
+        return hostToMaxConnections;
+    }
+
+    public int maxConnectionsForHost(Uri host) {
+        Integer maxConnections = hostToMaxConnections.get(host.getHost());
+        return maxConnections != null ? maxConnections : maxConnectionsPerHost;
+    }
+
+    public long keepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public int connectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    public int socketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public long poolTimeoutMillis() {
+        return poolTimeoutMillis;
+    }
+}
@@ -0,0 +1,113 @@
+package com.chrome.codereview.requests;
+
+import android.util.LruCache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * Keeps response bodies and parsed models together with their HTTP validators,
+ * so that repeated GETs can be revalidated with a conditional request.
+ */
+class ValidatorCache {
+
+    private static final int ENTRY_OVERHEAD = 256;
+
+    static class Entry {
+
+        private final String etag;
+        private final String lastModified;
+        private final String body;
+        private final int size;
+        private Object parserType;
+        private Object model;
+
+        private Entry(String etag, String lastModified, String body, int size) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+            this.size = size;
+        }
+
+        String body() {
+            return body;
+        }
+
+        synchronized Object modelFor(Object parserType) {
+            return this.parserType == parserType ? model : null;
+        }
+
+        synchronized void setModel(Object parserType, Object model) {
+            this.parserType = parserType;
+            this.model = model;
+        }
+
+        void addValidators(HttpRequest request) {
+            if (etag != null) {
+                request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        static Entry from(HttpResponse response, String body) {
+            return create(response, body, ENTRY_OVERHEAD + body.length() * 2);
+        }
+
+        /**
+         * Creates an entry for a response that was parsed while streaming, so only the model is kept.
+         */
+        static Entry forModel(HttpResponse response, Object parserType, Object model, int estimatedSize) {
+            Entry entry = create(response, null, ENTRY_OVERHEAD + estimatedSize);
+            if (entry != null) {
+                entry.setModel(parserType, model);
+            }
+            return entry;
+        }
+
+        private static Entry create(HttpResponse response, String body, int size) {
+            String etag = headerValue(response, HttpHeaders.ETAG);
+            String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+            return new Entry(etag, lastModified, body, size);
+        }
+
+        private static String headerValue(HttpResponse response, String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+
+    ValidatorCache(int maxSizeBytes) {
+        entries = new LruCache<String, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.size();
+            }
+        };
+    }
+
+    Entry get(String url) {
+        return entries.get(url);
+    }
+
+    void put(String url, Entry entry) {
+        if (entry == null) {
+            entries.remove(url);
+            return;
+        }
+        entries.put(url, entry);
+    }
+
+}
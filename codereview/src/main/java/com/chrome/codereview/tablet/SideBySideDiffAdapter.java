@@ -2,23 +2,21 @@ package com.chrome.codereview.tablet;
 
 import android.content.Context;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.TextView;
 
+import com.chrome.codereview.CommentIndex;
 import com.chrome.codereview.DiffAdapter;
+import com.chrome.codereview.DiffLineView;
+import com.chrome.codereview.DiffRows;
 import com.chrome.codereview.R;
 import com.chrome.codereview.model.Comment;
 import com.chrome.codereview.model.FileDiff;
 import com.chrome.codereview.utils.ViewUtils;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by sergeyv on 21/6/14.
@@ -32,103 +30,134 @@ public class SideBySideDiffAdapter extends DiffAdapter {
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-
+        if (rows.type(position) == DiffRows.TYPE_SKIP && skippedLinesListener != null) {
+            skippedLinesListener.showSkippedLines(position);
+            return;
+        }
+        // Drawn rows have no part views to click, the touched side is commented on instead.
+        if (view instanceof DiffLineView && rows.type(position) == DiffRows.TYPE_LINE && commentActionListener != null) {
+            DiffLineView lineView = (DiffLineView) view;
+            int column = lineView.touchedColumn();
+            if (lineView.lineNumber(column) != NO_LINE_NUMBER && !lineView.isEmpty(column)) {
+                commentActionListener.writeComment(lineView.lineNumber(column), column == 0);
+            }
+        }
     }
 
-    private static class CommentPair {
-        Comment left;
-        Comment right;
-    }
+    public static final DiffRows.Layout LAYOUT = new DiffRows.Layout() {
+        @Override
+        public void addRows(DiffRows.Builder builder) {
+            new RowsLayout(builder).layout();
+        }
 
-    private static class SkippingLine {
-        int skippedLines = 0;
-    }
+        @Override
+        public void addComments(DiffRows.Builder builder, int leftLineNumber, int rightLineNumber) {
+            CommentIndex comments = builder.comments();
+            int leftSlot = leftLineNumber != NO_LINE_NUMBER ? comments.first(leftLineNumber, true) : CommentIndex.NO_SLOT;
+            int rightSlot = rightLineNumber != NO_LINE_NUMBER ? comments.first(rightLineNumber, false) : CommentIndex.NO_SLOT;
+            while (leftSlot != CommentIndex.NO_SLOT || rightSlot != CommentIndex.NO_SLOT) {
+                builder.addRow(DiffRows.TYPE_COMMENTS, leftSlot, rightSlot);
+                leftSlot = leftSlot != CommentIndex.NO_SLOT ? comments.next(leftSlot) : CommentIndex.NO_SLOT;
+                rightSlot = rightSlot != CommentIndex.NO_SLOT ? comments.next(rightSlot) : CommentIndex.NO_SLOT;
+            }
+        }
+    };
 
-    private static class Content {
-        private int leftLineNumber = NO_LINE_NUMBER;
-        private int rightLineNumber = NO_LINE_NUMBER;
-        private boolean isChanged = true;
-        private String left = "";
-        private String right = "";
-    }
+    /**
+     * Pairs removed lines with the added lines that follow them, and puts the comments of a row right after it.
+     */
+    private static class RowsLayout {
+
+        private final FileDiff diff;
+        private final DiffRows.Builder builder;
+        // Removed lines waiting for the added lines of the same change.
+        private int[] pendingLeft = new int[16];
+        private int pendingStart;
+        private int pendingEnd;
+        private int previousLeftLineNumber = NO_LINE_NUMBER;
+        private int previousRightLineNumber = NO_LINE_NUMBER;
+        private boolean hasPrevious;
+        private boolean afterMarker;
+        private int marker;
 
-    private final List<Object> mergedDiffLines;
-
-    public SideBySideDiffAdapter(Context context, FileDiff diff, List<Comment> comments) {
-        super(context, diff, comments);
-        mergedDiffLines = new ArrayList<Object>(diff.content().size());
-        LinkedList<Content> left = new LinkedList<Content>();
-        for (FileDiff.DiffLine diffLine : diff.content()) {
-            switch (diffLine.type()) {
-                case MARKER:
-                    mergedDiffLines.addAll(left);
-                    left.clear();
-                    mergedDiffLines.add(new SkippingLine());
-                    break;
-                case BOTH_SIDE:
-                    mergedDiffLines.addAll(left);
-                    left.clear();
-                    Content content = new Content();
-                    content.isChanged = false;
-                    content.leftLineNumber = diffLine.leftLineNumber();
-                    content.rightLineNumber = diffLine.rightLineNumber();
-                    content.left = diffLine.text().substring(1);
-                    content.right = diffLine.text().substring(1);
-                    mergedDiffLines.add(content);
-                    break;
-                case LEFT:
-                    Content leftContent = new Content();
-                    leftContent.leftLineNumber = diffLine.leftLineNumber();
-                    leftContent.left = diffLine.text().substring(1);
-                    left.add(leftContent);
-                    break;
-                case RIGHT:
-                    Content rightContent = left.isEmpty() ? new Content() : left.removeFirst();
-                    rightContent.right = diffLine.text().substring(1);
-                    rightContent.rightLineNumber = diffLine.rightLineNumber();
-                    mergedDiffLines.add(rightContent);
-                    break;
+        RowsLayout(DiffRows.Builder builder) {
+            this.builder = builder;
+            diff = builder.fileDiff();
+        }
+
+        void layout() {
+            for (int diffLine = 0; diffLine < diff.size(); diffLine++) {
+                switch (diff.type(diffLine)) {
+                    case MARKER:
+                        flushLeft();
+                        afterMarker = hasPrevious;
+                        marker = diffLine;
+                        break;
+                    case BOTH_SIDE:
+                        flushLeft();
+                        addContent(diffLine, diffLine);
+                        break;
+                    case LEFT:
+                        if (pendingEnd == pendingLeft.length) {
+                            pendingLeft = Arrays.copyOf(pendingLeft, pendingEnd * 2);
+                        }
+                        pendingLeft[pendingEnd++] = diffLine;
+                        break;
+                    case RIGHT:
+                        int left = pendingStart < pendingEnd ? pendingLeft[pendingStart++] : DiffRows.NO_INDEX;
+                        addContent(left, diffLine);
+                        break;
+                }
             }
+            flushLeft();
         }
-        mergedDiffLines.addAll(left);
-        Content previousContent = null;
-        SkippingLine skippingLine = null;
-        for (Object object : mergedDiffLines) {
-            if (object instanceof SkippingLine) {
-                skippingLine = previousContent != null ? (SkippingLine) object : null;
-                continue;
+
+        private void flushLeft() {
+            while (pendingStart < pendingEnd) {
+                addContent(pendingLeft[pendingStart++], DiffRows.NO_INDEX);
             }
-            Content content = (Content) object;
-            if (skippingLine != null) {
-                if (content.rightLineNumber != NO_LINE_NUMBER && previousContent.rightLineNumber != NO_LINE_NUMBER) {
-                    skippingLine.skippedLines = content.rightLineNumber - previousContent.rightLineNumber - 1;
+            pendingStart = 0;
+            pendingEnd = 0;
+        }
+
+        private void addContent(int leftDiffLine, int rightDiffLine) {
+            int leftLineNumber = leftDiffLine != DiffRows.NO_INDEX ? diff.leftLineNumber(leftDiffLine) : NO_LINE_NUMBER;
+            int rightLineNumber = rightDiffLine != DiffRows.NO_INDEX ? diff.rightLineNumber(rightDiffLine) : NO_LINE_NUMBER;
+            if (afterMarker) {
+                int skippedLines = 0;
+                if (rightLineNumber != NO_LINE_NUMBER && previousRightLineNumber != NO_LINE_NUMBER) {
+                    skippedLines = rightLineNumber - previousRightLineNumber - 1;
                 }
-                if (content.leftLineNumber != NO_LINE_NUMBER && previousContent.leftLineNumber != NO_LINE_NUMBER) {
-                    skippingLine.skippedLines = content.leftLineNumber - previousContent.leftLineNumber - 1;
+                if (leftLineNumber != NO_LINE_NUMBER && previousLeftLineNumber != NO_LINE_NUMBER) {
+                    skippedLines = leftLineNumber - previousLeftLineNumber - 1;
                 }
-                skippingLine = null;
-            }
-            previousContent = content;
-        }
-        for (Iterator<Object> iterator = mergedDiffLines.iterator(); iterator.hasNext(); ) {
-            Object object = iterator.next();
-            if (object instanceof SkippingLine) {
-                SkippingLine skip = (SkippingLine) object;
-                if (skip.skippedLines == 0) {
-                    iterator.remove();
+                if (skippedLines != 0) {
+                    builder.addRow(DiffRows.TYPE_SKIP, skippedLines, marker);
                 }
+                afterMarker = false;
             }
+            builder.addRow(DiffRows.TYPE_LINE, leftDiffLine, rightDiffLine);
+            hasPrevious = true;
+            previousLeftLineNumber = leftLineNumber;
+            previousRightLineNumber = rightLineNumber;
+
+            LAYOUT.addComments(builder, leftLineNumber, rightLineNumber);
         }
-        resetComments(comments);
+    }
+
+    public SideBySideDiffAdapter(Context context, DiffRows rows) {
+        super(context, rows);
     }
 
     @Override
     public int getItemViewType(int position) {
-        Object object = linesWithComments.get(position);
-        if (object instanceof SkippingLine) {
-            return TYPE_SKIP;
-        } else {
-            return object instanceof CommentPair ? TYPE_COMMENTS : TYPE_DIFF;
+        switch (rows.type(position)) {
+            case DiffRows.TYPE_SKIP:
+                return TYPE_SKIP;
+            case DiffRows.TYPE_COMMENTS:
+                return TYPE_COMMENTS;
+            default:
+                return TYPE_DIFF;
         }
     }
 
@@ -141,98 +170,137 @@ public class SideBySideDiffAdapter extends DiffAdapter {
     public View getView(int position, View convertView, ViewGroup parent) {
         switch (getItemViewType(position)) {
             case TYPE_DIFF:
-                return getDiffView((Content) linesWithComments.get(position), convertView, parent);
+                if (rows.type(position) == DiffRows.TYPE_CONTEXT) {
+                    return getContextView(rows.context(rows.firstIndex(position)), rows.secondIndex(position), convertView, parent);
+                }
+                return getDiffView(rows.firstIndex(position), rows.secondIndex(position), convertView, parent);
             case TYPE_COMMENTS:
-                return getCommentsView((CommentPair) linesWithComments.get(position), convertView, parent);
+                return getCommentsView(rows.comment(rows.firstIndex(position)), rows.comment(rows.secondIndex(position)), convertView, parent);
             case TYPE_SKIP:
-                return getSkipLinesView((SkippingLine) linesWithComments.get(position), convertView, parent);
+                return getSkipLinesView(rows.firstIndex(position), convertView, parent);
         }
         throw new IllegalStateException("Unreachable");
     }
 
-    private View getCommentsView(CommentPair commentPair, View convertView, ViewGroup parent) {
+    private View getCommentsView(Comment leftComment, Comment rightComment, View convertView, ViewGroup parent) {
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.double_comment_item, parent, false);
         }
         View leftCommentView = convertView.findViewById(R.id.left_comment);
         View rightCommentView = convertView.findViewById(R.id.right_comment);
-        leftCommentView.setVisibility(commentPair.left != null ? View.VISIBLE : View.INVISIBLE);
-        rightCommentView.setVisibility(commentPair.right != null ? View.VISIBLE : View.INVISIBLE);
-        if (commentPair.left != null) {
-            fillCommentView(commentPair.left, leftCommentView);
+        leftCommentView.setVisibility(leftComment != null ? View.VISIBLE : View.INVISIBLE);
+        rightCommentView.setVisibility(rightComment != null ? View.VISIBLE : View.INVISIBLE);
+        if (leftComment != null) {
+            fillCommentView(leftComment, leftCommentView);
         }
-        if (commentPair.right != null) {
-            fillCommentView(commentPair.right, rightCommentView);
+        if (rightComment != null) {
+            fillCommentView(rightComment, rightCommentView);
         }
         return convertView;
     }
 
-    private View getSkipLinesView(SkippingLine skippingLine, View convertView, ViewGroup parent) {
+    private View getSkipLinesView(int skippedLines, View convertView, ViewGroup parent) {
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.skipping_line, parent, false);
         }
-        ViewUtils.setText(convertView, android.R.id.text1, context.getString(R.string.skipping_lines, skippingLine.skippedLines));
+        int text = skippedLinesListener != null ? R.string.show_skipped_lines : R.string.skipping_lines;
+        ViewUtils.setText(convertView, android.R.id.text1, context.getString(text, skippedLines));
         return convertView;
     }
 
-    private void initDiffLines(View partView, String line, int background, int lineNumber) {
+    private void initDiffLines(View partView, int diffLine, int background, int lineNumber) {
+        TextView line = (TextView) partView.findViewById(R.id.line);
+        if (diffLine != DiffRows.NO_INDEX) {
+            bindLineText(line, diffLine, false);
+        } else {
+            clearLineText(line);
+        }
+        initLinePart(partView, background, lineNumber, !TextUtils.isEmpty(line.getText()));
+    }
+
+    private void initLinePart(View partView, int background, int lineNumber, boolean commentable) {
         int backgroundRes = lineNumber != NO_LINE_NUMBER ? background : R.drawable.diff_no_line_bg;
         partView.setBackgroundDrawable(context.getResources().getDrawable(backgroundRes));
-        ViewUtils.setText(partView, R.id.line, line);
         ViewUtils.setText(partView, R.id.lineNumber, lineNumber != NO_LINE_NUMBER ? lineNumber + "" : "");
-        partView.setTag(lineNumber);
-        if (!TextUtils.isEmpty(line)) {
+        // Recycled views keep their click listener, the tag tells whether the line can be commented on.
+        partView.setTag(commentable ? lineNumber : NO_LINE_NUMBER);
+        if (commentable) {
             partView.setOnClickListener(this);
         }
     }
 
-    private View getDiffView(Content content, View convertView, ViewGroup parent) {
+    /**
+     * Expanded lines aren't in the diff, so they can't have comments.
+     */
+    private View getContextView(FileDiff expanded, int line, View convertView, ViewGroup parent) {
+        if (lineStyle != null) {
+            DiffLineView view = lineView(convertView, 2, true);
+            bindContextLine(view, 0, expanded, line, expanded.leftLineNumber(line));
+            bindContextLine(view, 1, expanded, line, expanded.rightLineNumber(line));
+            return view;
+        }
         if (convertView == null) {
             convertView = inflater.inflate(R.layout.side_by_side_diff_item, parent, false);
         }
-        int leftBg = content.isChanged ? R.drawable.diff_removed_line_bg : R.drawable.diff_default_line_bg;
-        int rightBg = content.isChanged ? R.drawable.diff_added_line_bg : R.drawable.diff_default_line_bg;
+        View left = convertView.findViewById(R.id.left);
+        View right = convertView.findViewById(R.id.right);
+        bindContextLineText((TextView) left.findViewById(R.id.line), expanded, line, false);
+        bindContextLineText((TextView) right.findViewById(R.id.line), expanded, line, false);
+        initLinePart(left, R.drawable.diff_default_line_bg, expanded.leftLineNumber(line), false);
+        initLinePart(right, R.drawable.diff_default_line_bg, expanded.rightLineNumber(line), false);
+        return convertView;
+    }
 
-        initDiffLines(convertView.findViewById(R.id.left), content.left, leftBg, content.leftLineNumber);
-        initDiffLines(convertView.findViewById(R.id.right), content.right, rightBg, content.rightLineNumber);
+    private View getDiffView(int leftDiffLine, int rightDiffLine, View convertView, ViewGroup parent) {
+        if (lineStyle != null) {
+            return getDrawnDiffView(leftDiffLine, rightDiffLine, convertView);
+        }
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.side_by_side_diff_item, parent, false);
+        }
+        // Both sides show the same diff line only when it's unchanged.
+        boolean isChanged = leftDiffLine != rightDiffLine;
+        int leftBg = isChanged ? R.drawable.diff_removed_line_bg : R.drawable.diff_default_line_bg;
+        int rightBg = isChanged ? R.drawable.diff_added_line_bg : R.drawable.diff_default_line_bg;
+
+        int leftLineNumber = leftDiffLine != DiffRows.NO_INDEX ? fileDiff.leftLineNumber(leftDiffLine) : NO_LINE_NUMBER;
+        int rightLineNumber = rightDiffLine != DiffRows.NO_INDEX ? fileDiff.rightLineNumber(rightDiffLine) : NO_LINE_NUMBER;
+        initDiffLines(convertView.findViewById(R.id.left), leftDiffLine, leftBg, leftLineNumber);
+        initDiffLines(convertView.findViewById(R.id.right), rightDiffLine, rightBg, rightLineNumber);
         return convertView;
     }
 
-    @Override
-    protected void rebuildWithComments(HashMap<Pair<Integer, Boolean>, List<Comment>> lineToComments) {
-        for (Object object : mergedDiffLines) {
-            linesWithComments.add(object);
-            if (object instanceof SkippingLine) {
-                continue;
-            }
-            Content content = (Content) object;
-            Iterator<Comment> leftIterator = iteratorFor(lineToComments, content.leftLineNumber, true);
-            Iterator<Comment> rightIterator = iteratorFor(lineToComments, content.rightLineNumber, false);
-
-            while (leftIterator.hasNext() || rightIterator.hasNext()) {
-                Comment leftComment = leftIterator.hasNext() ? leftIterator.next() : null;
-                Comment rightComment = rightIterator.hasNext() ? rightIterator.next() : null;
-                CommentPair commentPair = new CommentPair();
-                commentPair.left = leftComment;
-                commentPair.right = rightComment;
-                linesWithComments.add(commentPair);
-            }
+    private View getDrawnDiffView(int leftDiffLine, int rightDiffLine, View convertView) {
+        DiffLineView view = lineView(convertView, 2, true);
+        boolean isChanged = leftDiffLine != rightDiffLine;
+        bindDrawnSide(view, 0, leftDiffLine, isChanged ? DiffLineView.BACKGROUND_REMOVED : DiffLineView.BACKGROUND_DEFAULT);
+        bindDrawnSide(view, 1, rightDiffLine, isChanged ? DiffLineView.BACKGROUND_ADDED : DiffLineView.BACKGROUND_DEFAULT);
+        return view;
+    }
+
+    private void bindDrawnSide(DiffLineView view, int column, int diffLine, int background) {
+        if (diffLine == DiffRows.NO_INDEX) {
+            view.clearColumn(column, DiffLineView.BACKGROUND_NO_LINE);
+            return;
         }
+        int lineNumber = column == 0 ? fileDiff.leftLineNumber(diffLine) : fileDiff.rightLineNumber(diffLine);
+        bindLine(view, column, diffLine, false, lineNumber, background);
     }
 
     @Override
     public void onClick(View v) {
         if (v.getId() == R.id.left || v.getId() == R.id.right) {
+            if (commentActionListener == null) {
+                return;
+            }
             int lineNumber = (Integer) v.getTag();
+            if (lineNumber == NO_LINE_NUMBER) {
+                return;
+            }
             commentActionListener.writeComment(lineNumber, v.getId() == R.id.left);
             return;
         }
         super.onClick(v);
     }
 
-    private static Iterator<Comment> iteratorFor(HashMap<Pair<Integer, Boolean>, List<Comment>> lineToComments, int lineNumber, boolean left) {
-        List<Comment> leftComments = lineToComments.get(new Pair<Integer, Boolean>(lineNumber, left));
-        return leftComments != null ? leftComments.iterator() : Collections.<Comment>emptyList().iterator();
-    }
-
 }
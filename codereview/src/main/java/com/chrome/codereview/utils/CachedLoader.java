@@ -38,6 +38,13 @@ public abstract class CachedLoader<T> extends AsyncTaskLoader<T> {
         super.deliverResult(data);
     }
 
+    /**
+     * Delivers an intermediate result, which isn't kept as the result of the loader.
+     */
+    protected void deliverPartialResult(T data) {
+        super.deliverResult(data);
+    }
+
     @Override
     public void onCanceled(T data) {
         result = data;
@@ -28,7 +28,10 @@ public class DateUtils {
     }
 
     public static Date getDate(JSONObject jsonObject, String name) throws JSONException, ParseException {
-        String lastModifiedString = jsonObject.getString(name);
+        return getDate(jsonObject.getString(name));
+    }
+
+    public static Date getDate(String lastModifiedString) throws ParseException {
         SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
         format.setLenient(false);
         format.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -36,6 +39,21 @@ public class DateUtils {
         return date;
     }
 
+    /**
+     * Formats the date like the server does, so that {@link #getDate(String)} reads it back.
+     */
+    public static String formatServerDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'000'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    public static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
     public static String createAgoText(Context context, Date lastModified) {
         long time = System.currentTimeMillis() - lastModified.getTime();
         long[] times = new long[] {YEAR, MONTH, WEEK, DAY, HOUR, MINUTE};
@@ -0,0 +1,44 @@
+package com.chrome.codereview.utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JsonReaderUtils {
+
+    private JsonReaderUtils() {
+    }
+
+    public static String nextString(JsonReader reader, String defaultValue) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return defaultValue;
+        }
+        return reader.nextString();
+    }
+
+    public static boolean nextBoolean(JsonReader reader, boolean defaultValue) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return defaultValue;
+        }
+        return reader.nextBoolean();
+    }
+
+    public static List<String> nextStringList(JsonReader reader) throws IOException {
+        List<String> result = new ArrayList<String>();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return result;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(reader.nextString());
+        }
+        reader.endArray();
+        return result;
+    }
+}
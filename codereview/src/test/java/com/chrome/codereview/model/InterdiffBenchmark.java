@@ -0,0 +1,57 @@
+package com.chrome.codereview.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times interdiffs of large files, both of patch sets with the same base file and of rebased ones, and prints the
+ * median of a few runs for each case.
+ */
+public class InterdiffBenchmark {
+
+    private static final int RUNS = 7;
+
+    public static void main(String[] args) {
+        System.out.println("lines\tchanged\tsame base ms\trebased ms\trebased hunk lines");
+        for (int lineCount : new int[]{1000, 5000, 20000}) {
+            for (double changeRate : new double[]{0.01, 0.1, 0.5, 1}) {
+                run(lineCount, changeRate);
+            }
+        }
+    }
+
+    private static void run(int lineCount, double changeRate) {
+        Random random = new Random(lineCount);
+        List<String> base = TestFiles.random(random, lineCount, 1000000);
+        // A change rate of 1 makes unrelated files.
+        List<String> rebasedBase = changeRate < 1 ? TestFiles.edit(random, base, 0.01) : TestFiles.random(random, lineCount, 1000000);
+        List<String> from = TestFiles.edit(random, base, changeRate);
+        List<String> to = changeRate < 1 ? TestFiles.edit(random, base, changeRate) : TestFiles.random(random, lineCount, 1000000);
+        List<String> rebased = changeRate < 1 ? TestFiles.edit(random, rebasedBase, changeRate) : to;
+        FileDiff fromDiff = TestFiles.unifiedDiff(base, from, 3);
+        FileDiff toDiff = TestFiles.unifiedDiff(base, to, 3);
+        FileDiff rebasedDiff = TestFiles.unifiedDiff(rebasedBase, rebased, 3);
+
+        long[] sameBase = new long[RUNS];
+        long[] rebasedTimes = new long[RUNS];
+        FileDiff interdiff = null;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Interdiff.compute(fromDiff, base, toDiff, base);
+            sameBase[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            interdiff = Interdiff.compute(fromDiff, base, rebasedDiff, rebasedBase);
+            rebasedTimes[i] = System.nanoTime() - start;
+        }
+        System.out.println(lineCount + "\t" + (int) (changeRate * 100) + "%\t" + median(sameBase) + "\t" + median(rebasedTimes)
+                + "\t" + interdiff.size());
+    }
+
+    private static long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000000;
+    }
+
+}
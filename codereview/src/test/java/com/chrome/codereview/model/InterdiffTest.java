@@ -0,0 +1,86 @@
+package com.chrome.codereview.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class InterdiffTest {
+
+    @Test
+    public void comparesPatchSetsOfTheSameBase() {
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            List<String> base = TestFiles.random(random, random.nextInt(200), 1 + random.nextInt(50));
+            List<String> from = TestFiles.edit(random, base, random.nextDouble() * 0.2);
+            List<String> to = TestFiles.edit(random, random.nextBoolean() ? from : base, random.nextDouble() * 0.2);
+            FileDiff interdiff = Interdiff.compute(TestFiles.unifiedDiff(base, from, 3), base, TestFiles.unifiedDiff(base, to, 3), base);
+            assertEquals(to, TestFiles.apply(interdiff, from));
+        }
+    }
+
+    @Test
+    public void comparesRebasedPatchSets() {
+        Random random = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            List<String> fromBase = TestFiles.random(random, random.nextInt(200), 1 + random.nextInt(50));
+            List<String> toBase = TestFiles.edit(random, fromBase, random.nextDouble() * 0.2);
+            List<String> from = TestFiles.edit(random, fromBase, random.nextDouble() * 0.2);
+            List<String> to = TestFiles.edit(random, toBase, random.nextDouble() * 0.2);
+            FileDiff interdiff = Interdiff.compute(TestFiles.unifiedDiff(fromBase, from, 3), fromBase, TestFiles.unifiedDiff(toBase, to, 3), toBase);
+            assertEquals(to, TestFiles.apply(interdiff, from));
+        }
+    }
+
+    @Test
+    public void comparesPatchSetsAddingTheFile() {
+        Random random = new Random(3);
+        List<String> empty = Collections.emptyList();
+        List<String> from = TestFiles.random(random, 100, 20);
+        List<String> to = TestFiles.edit(random, from, 0.1);
+        FileDiff interdiff = Interdiff.compute(TestFiles.unifiedDiff(empty, from, 3), empty, TestFiles.unifiedDiff(empty, to, 3), empty);
+        assertEquals(to, TestFiles.apply(interdiff, from));
+    }
+
+    @Test
+    public void replacesUnrelatedRebasedFilesWhole() {
+        Random random = new Random(4);
+        List<String> fromBase = TestFiles.random(random, 20000, 1000000);
+        List<String> toBase = TestFiles.random(random, 20000, 1000000);
+        List<String> from = TestFiles.edit(random, fromBase, 0.01);
+        List<String> to = TestFiles.edit(random, toBase, 0.01);
+        FileDiff interdiff = Interdiff.compute(TestFiles.unifiedDiff(fromBase, from, 3), fromBase, TestFiles.unifiedDiff(toBase, to, 3), toBase);
+        assertEquals(to, TestFiles.apply(interdiff, from));
+        List<FileDiff.LineType> expected = new ArrayList<FileDiff.LineType>();
+        expected.add(FileDiff.LineType.MARKER);
+        expected.addAll(Collections.nCopies(from.size(), FileDiff.LineType.LEFT));
+        expected.addAll(Collections.nCopies(to.size(), FileDiff.LineType.RIGHT));
+        assertEquals(expected, types(interdiff));
+    }
+
+    @Test
+    public void comparesLargeRebasedFilesWithFewChanges() {
+        Random random = new Random(5);
+        List<String> fromBase = TestFiles.random(random, 10000, 1000000);
+        List<String> toBase = TestFiles.edit(random, fromBase, 0.01);
+        List<String> from = TestFiles.edit(random, fromBase, 0.01);
+        List<String> to = TestFiles.edit(random, toBase, 0.01);
+        FileDiff interdiff = Interdiff.compute(TestFiles.unifiedDiff(fromBase, from, 3), fromBase, TestFiles.unifiedDiff(toBase, to, 3), toBase);
+        assertEquals(to, TestFiles.apply(interdiff, from));
+        // Only the changed lines and their context are shown, not a replace of the whole file.
+        assertEquals(true, interdiff.size() < from.size() / 2);
+    }
+
+    private static List<FileDiff.LineType> types(FileDiff diff) {
+        List<FileDiff.LineType> types = new ArrayList<FileDiff.LineType>(diff.size());
+        for (int line = 0; line < diff.size(); line++) {
+            types.add(diff.type(line));
+        }
+        return types;
+    }
+
+}
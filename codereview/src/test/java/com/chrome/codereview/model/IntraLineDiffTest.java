@@ -0,0 +1,58 @@
+package com.chrome.codereview.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntraLineDiffTest {
+
+    @Test
+    public void marksChangedWords() {
+        FileDiff diff = hunk(new String[]{"int a = 1;"}, new String[]{"int b = 1;"});
+        LineSpans spans = IntraLineDiff.compute(diff);
+        assertEquals(1, spanCount(spans, 1));
+        assertEquals(1, spanCount(spans, 2));
+    }
+
+    @Test
+    public void comparesShortLinesAfterOneOverBudget() {
+        String longLeft = words("a", 1000);
+        String longRight = words("b", 1000);
+        FileDiff diff = hunk(new String[]{longLeft, "int a = 1;"}, new String[]{longRight, "int b = 1;"});
+        LineSpans spans = IntraLineDiff.compute(diff);
+        // The long pair costs more than a whole hunk may, only it is left without intra-line changes.
+        assertEquals(0, spanCount(spans, 1));
+        assertEquals(0, spanCount(spans, 3));
+        assertEquals(1, spanCount(spans, 2));
+        assertEquals(1, spanCount(spans, 4));
+    }
+
+    private static FileDiff hunk(String[] removed, String[] added) {
+        FileDiff.Builder builder = new FileDiff.Builder();
+        addLine(builder, FileDiff.LineType.MARKER, 1, 1, "@@ -1," + removed.length + " +1," + added.length + " @@");
+        for (int i = 0; i < removed.length; i++) {
+            addLine(builder, FileDiff.LineType.LEFT, i + 1, 0, "-" + removed[i]);
+        }
+        for (int i = 0; i < added.length; i++) {
+            addLine(builder, FileDiff.LineType.RIGHT, 0, i + 1, "+" + added[i]);
+        }
+        return builder.create();
+    }
+
+    private static void addLine(FileDiff.Builder builder, FileDiff.LineType type, int leftLine, int rightLine, String text) {
+        builder.addLine(type, leftLine, rightLine, text.toCharArray(), 0, text.length());
+    }
+
+    private static String words(String prefix, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(prefix).append(i).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static int spanCount(LineSpans spans, int line) {
+        return spans.endSpan(line) - spans.firstSpan(line);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.chrome.codereview.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MyersDiffTest {
+
+    @Test
+    public void keepsLongestCommonSubsequence() {
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            int[] a = randomInts(random, random.nextInt(30), 1 + random.nextInt(5));
+            int[] b = randomInts(random, random.nextInt(30), 1 + random.nextInt(5));
+            boolean[] removed = new boolean[a.length];
+            boolean[] added = new boolean[b.length];
+            MyersDiff.diff(a, b, removed, added);
+            int[] keptA = kept(a, removed);
+            int[] keptB = kept(b, added);
+            assertEquals(longestCommonSubsequence(a, b), keptA.length);
+            assertTrue(Arrays.equals(keptA, keptB));
+        }
+    }
+
+    @Test
+    public void replacesWholeSequencesOverBudget() {
+        Random random = new Random(2);
+        int[] a = randomInts(random, 20000, 1000000);
+        int[] b = randomInts(random, 20000, 1000000);
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        assertFalse(MyersDiff.diff(a, b, removed, added, 1000000));
+        assertEquals(0, kept(a, removed).length);
+        assertEquals(0, kept(b, added).length);
+    }
+
+    @Test
+    public void finishesSmallChangesWithinBudget() {
+        Random random = new Random(3);
+        int[] a = randomInts(random, 20000, 1000000);
+        int[] b = a.clone();
+        for (int i = 0; i < 50; i++) {
+            b[i * 397] = -1 - i;
+        }
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        assertTrue(MyersDiff.diff(a, b, removed, added, Interdiff.MAX_DIFF_COST));
+        assertEquals(a.length - 50, kept(a, removed).length);
+    }
+
+    private static int[] randomInts(Random random, int length, int bound) {
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = random.nextInt(bound);
+        }
+        return result;
+    }
+
+    private static int[] kept(int[] values, boolean[] changed) {
+        int count = 0;
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!changed[i]) {
+                result[count++] = values[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int longestCommonSubsequence(int[] a, int[] b) {
+        int[][] lengths = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                lengths[i][j] = a[i] == b[j] ? lengths[i + 1][j + 1] + 1 : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        return lengths[0][0];
+    }
+
+}
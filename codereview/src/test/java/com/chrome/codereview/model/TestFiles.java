@@ -0,0 +1,181 @@
+package com.chrome.codereview.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random files and the unified diffs between them, for the tests and the benchmark of the diff model.
+ */
+class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * Lines drawn from a vocabulary of the given size, a small one makes many equal lines.
+     */
+    static List<String> random(Random random, int lineCount, int vocabulary) {
+        List<String> lines = new ArrayList<String>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            lines.add("line " + random.nextInt(vocabulary));
+        }
+        return lines;
+    }
+
+    /**
+     * Copy of the file with each line replaced, removed or followed by an added line with the given probability.
+     */
+    static List<String> edit(Random random, List<String> file, double changeRate) {
+        List<String> lines = new ArrayList<String>(file.size());
+        for (String line : file) {
+            if (random.nextDouble() >= changeRate) {
+                lines.add(line);
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    lines.add("changed " + random.nextInt());
+                    break;
+                case 1:
+                    break;
+                default:
+                    lines.add(line);
+                    lines.add("added " + random.nextInt());
+                    break;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Unified diff from the base file to the new one with the given number of context lines, as the server sends it.
+     */
+    static FileDiff unifiedDiff(List<String> base, List<String> file, int context) {
+        int[] baseIds = new int[base.size()];
+        int[] fileIds = new int[file.size()];
+        HashMap<String, Integer> vocabulary = new HashMap<String, Integer>();
+        for (int i = 0; i < baseIds.length; i++) {
+            baseIds[i] = id(vocabulary, base.get(i));
+        }
+        for (int i = 0; i < fileIds.length; i++) {
+            fileIds[i] = id(vocabulary, file.get(i));
+        }
+        boolean[] removed = new boolean[baseIds.length];
+        boolean[] added = new boolean[fileIds.length];
+        MyersDiff.diff(baseIds, fileIds, removed, added);
+
+        FileDiff.Builder builder = new FileDiff.Builder();
+        int l = 0;
+        int r = 0;
+        while (l < base.size() || r < file.size()) {
+            if ((l < base.size() && removed[l]) || (r < file.size() && added[r])) {
+                // Start of a change, the hunk takes the context lines before it and goes on until context * 2 + 1
+                // unchanged lines follow the last change.
+                int back = 0;
+                while (back < context && l - back > 0 && r - back > 0 && !removed[l - back - 1] && !added[r - back - 1]) {
+                    back++;
+                }
+                int hunkLeft = l - back;
+                int hunkRight = r - back;
+                int leftEnd = l;
+                int rightEnd = r;
+                int unchanged = 0;
+                while ((l < base.size() || r < file.size()) && unchanged <= 2 * context) {
+                    if (l < base.size() && removed[l]) {
+                        l++;
+                        unchanged = 0;
+                    } else if (r < file.size() && added[r]) {
+                        r++;
+                        unchanged = 0;
+                    } else {
+                        l++;
+                        r++;
+                        unchanged++;
+                    }
+                    if (unchanged <= context) {
+                        leftEnd = l;
+                        rightEnd = r;
+                    }
+                }
+                addHunk(builder, base, file, removed, added, hunkLeft, hunkRight, leftEnd, rightEnd);
+                l = leftEnd;
+                r = rightEnd;
+            } else {
+                l++;
+                r++;
+            }
+        }
+        return builder.create();
+    }
+
+    private static void addHunk(FileDiff.Builder builder, List<String> base, List<String> file, boolean[] removed, boolean[] added,
+                                int l, int r, int leftEnd, int rightEnd) {
+        // An empty range of a unified diff starts at the line before it.
+        int leftStart = leftEnd > l ? l + 1 : l;
+        int rightStart = rightEnd > r ? r + 1 : r;
+        addLine(builder, FileDiff.LineType.MARKER, leftStart, rightStart,
+                "@@ -" + leftStart + "," + (leftEnd - l) + " +" + rightStart + "," + (rightEnd - r) + " @@");
+        while (l < leftEnd || r < rightEnd) {
+            if (l < leftEnd && removed[l]) {
+                addLine(builder, FileDiff.LineType.LEFT, l + 1, 0, "-" + base.get(l));
+                l++;
+            } else if (r < rightEnd && added[r]) {
+                addLine(builder, FileDiff.LineType.RIGHT, 0, r + 1, "+" + file.get(r));
+                r++;
+            } else {
+                addLine(builder, FileDiff.LineType.BOTH_SIDE, l + 1, r + 1, " " + file.get(r));
+                l++;
+                r++;
+            }
+        }
+    }
+
+    /**
+     * Applies the diff to the lines of its left side, which must be the whole file the diff was made from.
+     */
+    static List<String> apply(FileDiff diff, List<String> file) {
+        List<String> result = new ArrayList<String>();
+        // Next line of the file that is not copied yet, numbered from 1.
+        int next = 1;
+        for (int line = 0; line < diff.size(); line++) {
+            switch (diff.type(line)) {
+                case MARKER:
+                    break;
+                case LEFT:
+                    result.addAll(file.subList(next - 1, diff.leftLineNumber(line) - 1));
+                    next = diff.leftLineNumber(line) + 1;
+                    break;
+                case BOTH_SIDE:
+                    result.addAll(file.subList(next - 1, diff.leftLineNumber(line) - 1));
+                    next = diff.leftLineNumber(line) + 1;
+                    result.add(diff.text(line).substring(1));
+                    break;
+                default:
+                    // Unchanged lines before an added one are copied until it gets its number in the new file.
+                    int copied = diff.rightLineNumber(line) - 1 - result.size();
+                    result.addAll(file.subList(next - 1, next - 1 + copied));
+                    next += copied;
+                    result.add(diff.text(line).substring(1));
+                    break;
+            }
+        }
+        result.addAll(file.subList(next - 1, file.size()));
+        return result;
+    }
+
+    private static void addLine(FileDiff.Builder builder, FileDiff.LineType type, int leftLine, int rightLine, String text) {
+        builder.addLine(type, leftLine, rightLine, text.toCharArray(), 0, text.length());
+    }
+
+    private static int id(HashMap<String, Integer> vocabulary, String line) {
+        Integer id = vocabulary.get(line);
+        if (id == null) {
+            id = vocabulary.size();
+            vocabulary.put(line, id);
+        }
+        return id;
+    }
+
+}